@@ -35,9 +35,18 @@
 
 package com.ibm.opencard.terminal.pcsc10;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import opencard.core.util.Tracer;
 
 /** <tt>OCFPCSC1</tt> for PCSC card terminals.
+  *
+  * <p>The native methods are not synchronized. Calls are serialized per PC/SC context
+  * and per card handle instead, so that card handles of different readers can be used
+  * concurrently and a blocking <tt>getStatusChange()</tt> does not delay transmissions.
+  * All methods using the same context or the same card handle are serialized, regardless
+  * of the <tt>OCFPCSC1</tt> instance they are called on. The <tt>SCard*</tt> native methods
+  * remain accessible for existing callers, but calls made directly to them are not serialized.
   *
   * @author  Stephan Breideneich (sbreiden@de.ibm.com)
   * @version $Id: OCFPCSC1.java,v 1.1.1.1 2004/04/08 10:29:27 asc Exp $
@@ -47,6 +56,15 @@ public class OCFPCSC1 {
 
   private Tracer iTracer = new Tracer(this, OCFPCSC1.class);
 
+  /** Lock objects for established contexts */
+  private static final ConcurrentHashMap<Integer, Object> contextLocks = new ConcurrentHashMap<Integer, Object>();
+
+  /** Lock objects for connected card handles */
+  private static final ConcurrentHashMap<Integer, Object> cardLocks = new ConcurrentHashMap<Integer, Object>();
+
+  /** Lock for calls not bound to a context or card handle */
+  private static final Object globalLock = new Object();
+
   /** Constructor with initialization of the OCF tracing mechanism.
    *  @exception com.ibm.opencard.terminal.pcsc10.PcscException
    *		 thrown when error occured in PC/SC-Interface
@@ -67,6 +85,110 @@ public class OCFPCSC1 {
       e.printStackTrace();
     }
   }
+
+  /** Get the lock object for a context or card handle. */
+  private static Object getLock(ConcurrentHashMap<Integer, Object> locks, int handle) {
+    Integer key = Integer.valueOf(handle);
+    Object lock = locks.get(key);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = locks.putIfAbsent(key, newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**************************************************************/
+  /*								*/
+  /* serialized access to the native Methods			*/
+  /*								*/
+  /**************************************************************/
+
+  /* returns a list of terminals found in the PCSC resource manager */
+  public String[] listReaders(String groups) throws PcscException {
+    synchronized (globalLock) {
+      return SCardListReaders(groups);
+    }
+  }
+
+  /* returns the context */
+  public int establishContext(int scope) throws PcscException {
+    int context;
+    synchronized (globalLock) {
+      context = SCardEstablishContext(scope);
+    }
+    getLock(contextLocks, context);
+    return context;
+  }
+
+  public void releaseContext(int context) throws PcscException {
+    try {
+      synchronized (getLock(contextLocks, context)) {
+        SCardReleaseContext(context);
+      }
+    } finally {
+      contextLocks.remove(Integer.valueOf(context));
+    }
+  }
+
+  /* returns the SCARDHANDLE */
+  public int connect(int context, String reader, int shareMode, int preferredProtocol, Integer activeProtocol)
+				  throws PcscException {
+    int card;
+    synchronized (getLock(contextLocks, context)) {
+      card = SCardConnect(context, reader, shareMode, preferredProtocol, activeProtocol);
+    }
+    getLock(cardLocks, card);
+    return card;
+  }
+
+  public void reconnect(int card, int shareMode, int preferredProtocol, int initialization, Integer activeProtocol)
+				  throws PcscException {
+    synchronized (getLock(cardLocks, card)) {
+      SCardReconnect(card, shareMode, preferredProtocol, initialization, activeProtocol);
+    }
+  }
+
+  public void disconnect(int card, int disposition) throws PcscException {
+    try {
+      synchronized (getLock(cardLocks, card)) {
+        SCardDisconnect(card, disposition);
+      }
+    } finally {
+      cardLocks.remove(Integer.valueOf(card));
+    }
+  }
+
+  public void getStatusChange(int context, int timeout, PcscReaderState[] readerState)
+				  throws PcscException {
+    synchronized (getLock(contextLocks, context)) {
+      SCardGetStatusChange(context, timeout, readerState);
+    }
+  }
+
+  /* returns the AttributeBuffer */
+  public byte[] getAttrib(int card, int attrId) throws PcscException {
+    synchronized (getLock(cardLocks, card)) {
+      return SCardGetAttrib(card, attrId);
+    }
+  }
+
+  /* returns the count of received bytes in OutBuffer */
+  public byte[] control(int card, int controlCode, byte[] inBuffer) throws PcscException {
+    synchronized (getLock(cardLocks, card)) {
+      return SCardControl(card, controlCode, inBuffer);
+    }
+  }
+
+  /* returns the receiveBuffer */
+  public byte[] transmit(int card, byte[] sendBuffer) throws PcscException {
+    synchronized (getLock(cardLocks, card)) {
+      return SCardTransmit(card, sendBuffer);
+    }
+  }
+
   /**************************************************************/
   /*								*/
   /* native Methods						*/
@@ -77,42 +199,42 @@ public class OCFPCSC1 {
   public native void initTrace();
 
   /* returns a list of terminals found in the PCSC resource manager */
-  public native synchronized String[] SCardListReaders(String groups)
+  public native String[] SCardListReaders(String groups)
 				  throws PcscException;
 
   /* returns the context */
-  public native synchronized int  SCardEstablishContext(int scope)
+  public native int  SCardEstablishContext(int scope)
 				  throws PcscException;
 
-  public native synchronized void SCardReleaseContext(int context)
+  public native void SCardReleaseContext(int context)
 				  throws PcscException;
 
   /* returns the SCARDHANDLE */
-  public native synchronized int  SCardConnect(int context, String reader,
+  public native int  SCardConnect(int context, String reader,
 				  int shareMode, int preferredProtocol, Integer activeProtocol)
 				  throws PcscException;
 
-  public native synchronized void SCardReconnect(int card, int shareMode,
+  public native void SCardReconnect(int card, int shareMode,
 				  int preferredProtocoll,  int initialization, Integer activeProtocol)
 				  throws PcscException;
 
-  public native synchronized void SCardDisconnect(int card, int disposition)
+  public native void SCardDisconnect(int card, int disposition)
 				  throws PcscException;
 
-  public native synchronized void SCardGetStatusChange(int context, int timeout, PcscReaderState[] readerState)
+  public native void SCardGetStatusChange(int context, int timeout, PcscReaderState[] readerState)
 				  throws PcscException;
 
   /* returns the AttributeBuffer */
-  public native synchronized byte[] SCardGetAttrib(int card, int attrId)
+  public native byte[] SCardGetAttrib(int card, int attrId)
 				  throws PcscException;
 
   /* returns the count of received bytes in OutBuffer */
-  public native synchronized byte[] SCardControl(int card, int controlCode, byte[] inBuffer)
+  public native byte[] SCardControl(int card, int controlCode, byte[] inBuffer)
 				  throws PcscException;
 
   /* returns the receiveBuffer */
   /* the DLL has to manage the special behaviour of the T0/T1 protocol */
-  public native synchronized byte[] SCardTransmit(int card, byte[] sendBuffer)
+  public native byte[] SCardTransmit(int card, byte[] sendBuffer)
 				  throws PcscException;
 
   /* is called by the native methods to trace via OCF trace mechanism */
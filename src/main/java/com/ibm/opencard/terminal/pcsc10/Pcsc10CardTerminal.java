@@ -118,7 +118,7 @@ public class Pcsc10CardTerminal
         pcsc = new OCFPCSC1();
 
         /* connect to the PCSC resource manager */
-        context = pcsc.SCardEstablishContext(Pcsc10Constants.SCARD_SCOPE_USER);
+        context = pcsc.establishContext(Pcsc10Constants.SCARD_SCOPE_USER);
 
         itracer.debug("Pcsc10CardTerminal", "Driver initialized");
 
@@ -177,7 +177,7 @@ public class Pcsc10CardTerminal
 
       try {
         itracer.debug("close", "release context");
-        pcsc.SCardReleaseContext(context);
+        pcsc.releaseContext(context);
 
       } catch (PcscException e) {
         throw translatePcscException(e);
@@ -202,7 +202,7 @@ public class Pcsc10CardTerminal
 
       try {
     	  
-		pcsc.SCardReconnect(cardHandle,
+		pcsc.reconnect(cardHandle,
    			  			  Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
    			  			  Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
    			  			  Pcsc10Constants.SCARD_UNPOWER_CARD,
@@ -239,7 +239,7 @@ public class Pcsc10CardTerminal
       
       try {
     	  
-		pcsc.SCardReconnect(cardHandle,
+		pcsc.reconnect(cardHandle,
    			  			  Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
    			  			  Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
    			  			  initializationMode,
@@ -291,7 +291,7 @@ public class Pcsc10CardTerminal
 
       try {
         /* set the timeout to 1 second */
-        pcsc.SCardGetStatusChange(context, 1, rState);
+        pcsc.getStatusChange(context, 1, rState);
 
         // PTR 0219: check if a card is present but unresponsive
         if ( ((rState[0].EventState & SCARD_STATE_MUTE)!=0)
@@ -406,7 +406,7 @@ public class Pcsc10CardTerminal
 //                   Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
 //                   Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
 //                   returnedProtocol);
-          cardHandle = pcsc.SCardConnect(context,
+          cardHandle = pcsc.connect(context,
                   getName(),
                   Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
                   Pcsc10Constants.SCARD_PROTOCOL_T1,
@@ -416,7 +416,7 @@ public class Pcsc10CardTerminal
     	
         if ((e.returnCode() == 0x8010000F) || (e.returnCode() == 0x00000032)) {
             try {
-                cardHandle = pcsc.SCardConnect(context,
+                cardHandle = pcsc.connect(context,
                         getName(),
                         Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
                         Pcsc10Constants.SCARD_PROTOCOL_T0,
@@ -440,7 +440,7 @@ public class Pcsc10CardTerminal
     if (cardHandle != 0) {
       try {
         itracer.debug("cardDisconnect", "disconnect smartcard - cardHandle=" + cardHandle);
-        pcsc.SCardDisconnect(cardHandle, disposition);
+        pcsc.disconnect(cardHandle, disposition);
       } catch (PcscException e) {
         throw translatePcscException(e);
       } finally {
@@ -468,7 +468,7 @@ public class Pcsc10CardTerminal
       throw new CardTerminalException("no card present", this);
 
     try {
-      byte[] responseData = pcsc.SCardControl(cardHandle, 0, cmd);
+      byte[] responseData = pcsc.control(cardHandle, 0, cmd);
       return responseData;
 
     } catch (PcscException e) {
@@ -499,7 +499,7 @@ public class Pcsc10CardTerminal
     try {
       byte[] apdu = capdu.getBytes();
       capdu.clear();
-      responseData = pcsc.SCardTransmit(cardHandle, apdu);
+      responseData = pcsc.transmit(cardHandle, apdu);
       Arrays.fill(apdu, (byte)0);
     } catch (PcscException e) {
 
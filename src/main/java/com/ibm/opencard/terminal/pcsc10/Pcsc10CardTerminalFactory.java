@@ -124,7 +124,7 @@ public class Pcsc10CardTerminalFactory implements CardTerminalFactory {
     itracer.debug("Pcsc10CardTerminalFactory", "get reader list from PC/SC");
     String[] terminals = null;
     try {
-      terminals = pcsc.SCardListReaders(null);
+      terminals = pcsc.listReaders(null);
     } catch (PcscException e) {
       throw new CardTerminalException("Pcsc10CardTerminalFactory: " + e.getMessage());
     }
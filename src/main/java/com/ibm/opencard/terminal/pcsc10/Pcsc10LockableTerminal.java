@@ -117,7 +117,7 @@ Pollable {
       pcsc = new OCFPCSC1();
 
       /* connect to the PCSC resource manager */
-      context = pcsc.SCardEstablishContext(Pcsc10Constants.SCARD_SCOPE_USER);
+      context = pcsc.establishContext(Pcsc10Constants.SCARD_SCOPE_USER);
 
       itracer.debug("Pcsc10LockableTerminal", "Driver initialized");
 
@@ -172,7 +172,7 @@ Pollable {
 
       try {
         itracer.debug("close", "release context");
-        pcsc.SCardReleaseContext(context);
+        pcsc.releaseContext(context);
 
       } catch (PcscException e) {
         throw translatePcscException(e);
@@ -196,11 +196,11 @@ Pollable {
       Integer returnedProtocol = new Integer(0);
 
       try {
-        pcsc.SCardReconnect(cardHandle,
-                            Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
-                            Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
-                            Pcsc10Constants.SCARD_RESET_CARD,
-                            returnedProtocol);
+        pcsc.reconnect(cardHandle,
+                       Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
+                       Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
+                       Pcsc10Constants.SCARD_RESET_CARD,
+                       returnedProtocol);
 
         cid = new CardID(this,0, cachedATR);
       } catch (PcscException e) {
@@ -267,7 +267,7 @@ Pollable {
 
     try {
       /* set the timeout to 1 second */
-      pcsc.SCardGetStatusChange(context, 1, rState);
+      pcsc.getStatusChange(context, 1, rState);
     } catch (PcscException e) {
       throw translatePcscException(e);
     }
@@ -289,7 +289,7 @@ Pollable {
       byte[] response= new byte[1];
 
       try {
-        response = pcsc.SCardGetAttrib(cardHandle, Pcsc10Constants.SCARD_ATTR_ICC_PRESENCE);
+        response = pcsc.getAttrib(cardHandle, Pcsc10Constants.SCARD_ATTR_ICC_PRESENCE);
       } catch (PcscException e) {
         throw translatePcscException(e);
       }
@@ -322,21 +322,21 @@ Pollable {
       Integer returnedProtocol = new Integer(0);
       if (cardPresent) {
         itracer.debug("isCardPresent", "status change, reconnecting share exclusive");
-        pcsc.SCardReconnect(cardHandle,
-                            Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
-                            Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
-                            Pcsc10Constants.SCARD_UNPOWER_CARD,
-                            returnedProtocol);
+        pcsc.reconnect(cardHandle,
+                       Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
+                       Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
+                       Pcsc10Constants.SCARD_UNPOWER_CARD,
+                       returnedProtocol);
 
-        cachedATR = pcsc.SCardGetAttrib(cardHandle, Pcsc10Constants.SCARD_ATTR_ATR_STRING);
+        cachedATR = pcsc.getAttrib(cardHandle, Pcsc10Constants.SCARD_ATTR_ATR_STRING);
 
       } else {
         itracer.debug("isCardPresent", "status change, reconnecting share direct");
-        pcsc.SCardReconnect(cardHandle,
-                            Pcsc10Constants.SCARD_SHARE_DIRECT,
-                            Pcsc10Constants.SCARD_PROTOCOL_OPTIMAL,
-                            Pcsc10Constants.SCARD_LEAVE_CARD,
-                            returnedProtocol);
+        pcsc.reconnect(cardHandle,
+                       Pcsc10Constants.SCARD_SHARE_DIRECT,
+                       Pcsc10Constants.SCARD_PROTOCOL_OPTIMAL,
+                       Pcsc10Constants.SCARD_LEAVE_CARD,
+                       returnedProtocol);
         cachedATR = null;
       }
     } catch (PcscException e) {
@@ -423,11 +423,11 @@ Pollable {
     Integer returnedProtocol = new Integer(0);    
     try {
       itracer.debug("cardConnect", "connect to smartcard");
-      cardHandle = pcsc.SCardConnect(context,
-                                     getName(),
-                                     Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
-                                     Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
-                                     returnedProtocol);
+      cardHandle = pcsc.connect(context,
+                                getName(),
+                                Pcsc10Constants.SCARD_SHARE_EXCLUSIVE,
+                                Pcsc10Constants.SCARD_PROTOCOL_T0 | Pcsc10Constants.SCARD_PROTOCOL_T1,
+                                returnedProtocol);
       itracer.debug("cardConnect", "got card handle: " + cardHandle);                   
     } catch (PcscException e) {
       throw translatePcscException(e);
@@ -442,7 +442,7 @@ Pollable {
     if (cardHandle != 0) {
       try {
         itracer.debug("cardDisconnect", "disconnect smartcard - cardHandle=" + cardHandle);
-        pcsc.SCardDisconnect(cardHandle, disposition);
+        pcsc.disconnect(cardHandle, disposition);
       } catch (PcscException e) {
         throw translatePcscException(e);
       } finally {
@@ -495,7 +495,7 @@ Pollable {
     }
 
     try {
-      byte[] responseData = pcsc.SCardControl(cardHandle, 0, cmd);
+      byte[] responseData = pcsc.control(cardHandle, 0, cmd);
       return responseData;
 
     } catch (PcscException e) {
@@ -524,7 +524,7 @@ Pollable {
 
     byte [] responseData = null;
     try {
-      responseData = pcsc.SCardTransmit(cardHandle, capdu.getBytes());
+      responseData = pcsc.transmit(cardHandle, capdu.getBytes());
     } catch (PcscException e) {
 
       // check for SemaphoreTimeout
@@ -600,11 +600,11 @@ Pollable {
     Integer returnedProtocol = new Integer(0);    
     try {
       itracer.debug("readerConnect", "connect to reader");
-      cardHandle = pcsc.SCardConnect(context,
-                                     getName(),
-                                     Pcsc10Constants.SCARD_SHARE_DIRECT,
-                                     Pcsc10Constants.SCARD_PROTOCOL_OPTIMAL,
-                                     returnedProtocol);
+      cardHandle = pcsc.connect(context,
+                                getName(),
+                                Pcsc10Constants.SCARD_SHARE_DIRECT,
+                                Pcsc10Constants.SCARD_PROTOCOL_OPTIMAL,
+                                returnedProtocol);
       itracer.debug("readerConnect", "got card handle: " + cardHandle);                   
     } catch (PcscException e) {
       throw translatePcscException(e);
@@ -4,5 +4,25 @@ import de.cardcontact.opencard.service.smartcardhsm.SmartCardHSMCardService;
 
 public interface OcfService {
 
+    /**
+     * Returns the service of a connected SmartCard-HSM, waiting a default time for one to be inserted if none is present.
+     *
+     * @return the card service or null if OCF is not started, waiting was interrupted or no SmartCard-HSM became available in time
+     */
     SmartCardHSMCardService getSmartCardHSMCardService();
+
+    /**
+     * Returns the service of a connected SmartCard-HSM, waiting at most the given time for one to be inserted.
+     *
+     * @param timeout the maximum time to wait in milliseconds, 0 to return immediately
+     * @return the card service or null if OCF is not started or no SmartCard-HSM became available in time
+     */
+    SmartCardHSMCardService waitForSmartCardHSMCardService(long timeout);
+
+    /**
+     * Tells whether a session to a SmartCard-HSM is currently established.
+     *
+     * @return true if getSmartCardHSMCardService() will return without waiting
+     */
+    boolean isReady();
 }
@@ -2,35 +2,74 @@ package de.blackned.ocf.impl;
 
 import de.blackned.ocf.OcfService;
 import de.cardcontact.opencard.service.smartcardhsm.SmartCardHSMCardService;
+import opencard.core.event.CTListener;
+import opencard.core.event.CardTerminalEvent;
+import opencard.core.event.EventGenerator;
 import opencard.core.service.CardRequest;
 import opencard.core.service.CardServiceException;
 import opencard.core.service.SmartCard;
 import opencard.core.terminal.CardTerminal;
 import opencard.core.terminal.CardTerminalException;
-import opencard.opt.iso.fs.FileAccessCardService;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Service;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Keeps a live session to every inserted SmartCard-HSM.
+ *
+ * Sessions are established and torn down from card terminal events, so a card that is removed and inserted again
+ * is reconnected automatically. The card service of each session is published as OSGi service with the properties
+ * {@link #PROPERTY_TERMINAL} and {@link #PROPERTY_SLOT}.
+ */
 @Component
 @Service(OcfService.class)
-public class OcfServiceImpl implements OcfService {
+public class OcfServiceImpl implements OcfService, CTListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(OcfService.class);
 
+    /** Service property containing the name of the card terminal holding the token */
+    public static final String PROPERTY_TERMINAL = "ocf.terminal";
+
+    /** Service property containing the slot number holding the token */
+    public static final String PROPERTY_SLOT = "ocf.slot";
+
+    /** Time in milliseconds getSmartCardHSMCardService() waits for a SmartCard-HSM to be inserted */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    /** Established sessions in order of insertion, keyed by terminal name and slot */
+    private final Map<String, HSMSession> sessions = new LinkedHashMap<String, HSMSession>();
+
+    private BundleContext bundleContext;
+
+    /** Set while OCF is started, waiting callers return immediately if not set */
+    private boolean started;
+
     @Activate
-    protected void activate() {
+    protected void activate(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
         try {
             SmartCard.start();
+            synchronized (sessions) {
+                started = true;
+            }
+            EventGenerator.getGenerator().addCTListener(this);
+            EventGenerator.getGenerator().createEventsForPresentCards(this);
         } catch (Exception e) {
             LOGGER.error("Smart card could not be started.", e);
         }
@@ -38,24 +77,207 @@ public class OcfServiceImpl implements OcfService {
 
     @Deactivate
     protected void deactivate() {
+        EventGenerator.getGenerator().removeCTListener(this);
+
+        List<HSMSession> closing;
+        synchronized (sessions) {
+            started = false;
+            closing = new ArrayList<HSMSession>(sessions.values());
+            sessions.clear();
+            sessions.notifyAll();
+        }
+        for (HSMSession session : closing) {
+            closeSession(session);
+        }
+
         try {
             SmartCard.shutdown();
         } catch (Exception e) {
             LOGGER.error("Smart card could not be stopped.", e);
         }
+        bundleContext = null;
     }
 
     public SmartCardHSMCardService getSmartCardHSMCardService() {
+        return waitForSmartCardHSMCardService(DEFAULT_TIMEOUT);
+    }
+
+    public SmartCardHSMCardService waitForSmartCardHSMCardService(long timeout) {
+        long deadline = System.currentTimeMillis() + Math.min(timeout, Long.MAX_VALUE - System.currentTimeMillis());
+        synchronized (sessions) {
+            while (sessions.isEmpty()) {
+                if (!started) {
+                    return null;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    sessions.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return sessions.values().iterator().next().service;
+        }
+    }
+
+    public boolean isReady() {
+        synchronized (sessions) {
+            return !sessions.isEmpty();
+        }
+    }
+
+    /**
+     * Establishes a session if the inserted card is a SmartCard-HSM.
+     *
+     * @param ctEvent the card insertion event
+     */
+    public void cardInserted(CardTerminalEvent ctEvent) {
+        CardTerminal terminal = ctEvent.getCardTerminal();
+        String key = sessionKey(terminal, ctEvent.getSlotID());
+
+        synchronized (sessions) {
+            if (sessions.containsKey(key)) {
+                return;
+            }
+        }
+
+        HSMSession session = openSession(ctEvent);
+        if (session == null) {
+            return;
+        }
+
+        HSMSession published = null;
+        synchronized (sessions) {
+            // Skip if deactivated meanwhile or a concurrent insertion event already established a session
+            if (started && !sessions.containsKey(key)) {
+                sessions.put(key, session);
+                sessions.notifyAll();
+                published = session;
+            }
+        }
+
+        if (published == null) {
+            closeSession(session);
+            return;
+        }
+
+        // The removal event may have been dispatched while the session was opened
+        if (!isCardPresent(terminal, ctEvent.getSlotID())) {
+            synchronized (sessions) {
+                if (!sessions.remove(key, published)) {
+                    return;
+                }
+            }
+            LOGGER.info("Card removed from {} while establishing session.", key);
+            closeSession(published);
+            return;
+        }
+
+        LOGGER.info("SmartCard-HSM session established in {}.", key);
+    }
+
+    private boolean isCardPresent(CardTerminal terminal, int slotID) {
         try {
-            CardRequest cardRequest = new CardRequest(CardRequest.ANYCARD, null, FileAccessCardService.class);
-            SmartCard sc = SmartCard.waitForCard(cardRequest);
+            return terminal.isCardPresent(slotID);
+        } catch (CardTerminalException e) {
+            LOGGER.debug("Card presence could not be determined.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Terminates the session for the slot from which the card was removed.
+     *
+     * @param ctEvent the card removal event
+     */
+    public void cardRemoved(CardTerminalEvent ctEvent) {
+        String key = sessionKey(ctEvent.getCardTerminal(), ctEvent.getSlotID());
+
+        HSMSession session;
+        synchronized (sessions) {
+            session = sessions.remove(key);
+        }
+
+        if (session != null) {
+            LOGGER.info("SmartCard-HSM session in {} terminated.", key);
+            closeSession(session);
+        }
+    }
+
+    private HSMSession openSession(CardTerminalEvent ctEvent) {
+        CardRequest cardRequest = new CardRequest(CardRequest.ANYCARD, ctEvent.getCardTerminal(), SmartCardHSMCardService.class);
+        SmartCard sc = null;
+        try {
+            sc = SmartCard.getSmartCard(ctEvent, cardRequest);
+            if (sc == null) {
+                return null;
+            }
+            sc.setCardServiceCaching(true);
             Object service = sc.getCardService(SmartCardHSMCardService.class, true);
             if (service instanceof SmartCardHSMCardService) {
-                return (SmartCardHSMCardService)service;
+                HSMSession session = new HSMSession(sc, (SmartCardHSMCardService)service);
+                session.registration = register(ctEvent, session.service);
+                return session;
             }
-        } catch (CardTerminalException | ClassNotFoundException | CardServiceException e) {
+        } catch (ClassNotFoundException e) {
+            LOGGER.debug("Card is not a SmartCard-HSM.", e);
+        } catch (CardTerminalException | CardServiceException e) {
             LOGGER.error("Smart Card could not be read.", e);
         }
+
+        if (sc != null) {
+            try {
+                sc.close();
+            } catch (CardTerminalException e) {
+                LOGGER.debug("Smart card could not be closed.", e);
+            }
+        }
         return null;
     }
+
+    private ServiceRegistration register(CardTerminalEvent ctEvent, SmartCardHSMCardService service) {
+        BundleContext context = bundleContext;
+        if (context == null) {
+            return null;
+        }
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(PROPERTY_TERMINAL, ctEvent.getCardTerminal().getName());
+        properties.put(PROPERTY_SLOT, Integer.valueOf(ctEvent.getSlotID()));
+        return context.registerService(SmartCardHSMCardService.class.getName(), service, properties);
+    }
+
+    private void closeSession(HSMSession session) {
+        if (session.registration != null) {
+            try {
+                session.registration.unregister();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Service already unregistered.", e);
+            }
+        }
+        try {
+            session.card.close();
+        } catch (CardTerminalException e) {
+            LOGGER.debug("Smart card could not be closed.", e);
+        }
+    }
+
+    private static String sessionKey(CardTerminal terminal, int slotID) {
+        return terminal.getName() + "#" + slotID;
+    }
+
+    private static final class HSMSession {
+        private final SmartCard card;
+        private final SmartCardHSMCardService service;
+        private ServiceRegistration registration;
+
+        private HSMSession(SmartCard card, SmartCardHSMCardService service) {
+            this.card = card;
+            this.service = service;
+        }
+    }
 }
@@ -18,6 +18,8 @@
 
 package de.cardcontact.opencard.service.isocard;
 
+import java.util.Arrays;
+
 import opencard.core.service.CardChannel;
 import opencard.core.service.CardService;
 import opencard.core.service.CardServiceException;
@@ -250,6 +252,7 @@ public class IsoCardService extends CardService implements FileAccessCardService
 		ResponseAPDU res;
 		int remaining, expected, maxapdulen;
 		byte[] response = null;
+		int responseLength = 0;
 
 		// Check parameter
 		if ((offset < 0) || (offset > 0x7FFF) || ((length != READ_SEVERAL) && (length < 0))) {
@@ -349,17 +352,15 @@ public class IsoCardService extends CardService implements FileAccessCardService
 						sfi = 0;
 					}
 
-					int len = res.getLength() - 2;		/* Ignore SW1/SW2 */
+					int len = res.dataLength();		/* Ignore SW1/SW2 */
 
+					// Allocate the requested length once, grow by doubling when reading several
 					if (response == null) {
-						response = new byte[len];
-						System.arraycopy(res.getBuffer(), 0, response, 0, len);
-					} else {
-						byte[] buff = new byte[response.length + len];
-						System.arraycopy(response, 0, buff, 0, response.length);
-						System.arraycopy(res.getBuffer(), 0, buff, response.length, len);
-						response = buff;
+						response = new byte[length == READ_SEVERAL ? len : Math.max(length, len)];
+					} else if (responseLength + len > response.length) {
+						response = Arrays.copyOf(response, Math.max(responseLength + len, response.length * 2));
 					}
+					responseLength += res.copyDataTo(response, responseLength);
 					offset += len;
 					remaining -= len;
 					if ((res.sw() == IsoConstants.RC_EOF) || (len < expected))
@@ -374,6 +375,8 @@ public class IsoCardService extends CardService implements FileAccessCardService
 
 		if (response == null) {
 			response = new byte[0];
+		} else if (responseLength < response.length) {
+			response = Arrays.copyOf(response, responseLength);
 		}
 		return response;
 	}
@@ -429,8 +432,8 @@ public class IsoCardService extends CardService implements FileAccessCardService
 				sfi = 0;
 			}
 
-			response = new byte[res.data().length];
-			System.arraycopy(res.data(), 0, response, 0, res.data().length);
+			response = new byte[res.dataLength()];
+			res.copyDataTo(response, 0);
 
 		} finally {
 			releaseCardChannel();
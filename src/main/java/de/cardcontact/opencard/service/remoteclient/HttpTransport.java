@@ -0,0 +1,319 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|  
+ * |#       #|  Copyright (c) 1999-2013 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  --------- 
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.service.remoteclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP transport for the remote scripting protocol.
+ * 
+ * Response bodies are always read to the end and closed, so that the underlying connection is
+ * returned to the keep-alive cache of the JRE and reused for the next exchange with the server.
+ * Request bodies are streamed with a fixed length, responses are read regardless of a
+ * Content-Length header, e.g. if sent with chunked transfer encoding.
+ * 
+ * Compressed responses (gzip or deflate) are accepted if compression is enabled. Requests are only
+ * compressed if explicitly requested, as not all servers support compressed request bodies.
+ * 
+ * @author lew
+ */
+public class HttpTransport {
+
+	/** Default timeout in ms for establishing the connection */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+	/** Default timeout in ms for waiting on the response, which includes processing time at the server */
+	public static final int DEFAULT_READ_TIMEOUT = 120000;
+
+	private String contentType;
+	private String session = null;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private boolean acceptCompressed = true;
+	private boolean compressRequests = false;
+
+	private int responseCode = -1;
+	private String responseMessage = null;
+
+
+
+	/**
+	 * Create transport
+	 * 
+	 * @param contentType the content type of request bodies
+	 */
+	public HttpTransport(String contentType) {
+		this.contentType = contentType;
+	}
+
+
+
+	/**
+	 * Set the session cookie send with each request
+	 * 
+	 * @param session the cookie in the format name=value or null
+	 */
+	public void setSession(String session) {
+		this.session = session;
+	}
+
+
+
+	/**
+	 * Return the session cookie, which is updated with each Set-Cookie header received
+	 * 
+	 * @return the cookie in the format name=value or null
+	 */
+	public String getSession() {
+		return session;
+	}
+
+
+
+	/**
+	 * Set the timeouts for connection establishment and reading responses
+	 * 
+	 * @param connectTimeout the connect timeout in ms, 0 for infinite
+	 * @param readTimeout the read timeout in ms, 0 for infinite
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+
+
+	/**
+	 * Enable or disable compressed responses
+	 * 
+	 * @param acceptCompressed true to send Accept-Encoding: gzip, deflate
+	 */
+	public void setAcceptCompressed(boolean acceptCompressed) {
+		this.acceptCompressed = acceptCompressed;
+	}
+
+
+
+	/**
+	 * Enable or disable compression of request bodies with gzip
+	 * 
+	 * @param compressRequests true to compress request bodies
+	 */
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+	}
+
+
+
+	/**
+	 * Return the status code of the last response
+	 * 
+	 * @return the HTTP status code or -1 if no response was received
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+
+
+	/**
+	 * Return the status message of the last response
+	 * 
+	 * @return the HTTP status message or null
+	 */
+	public String getResponseMessage() {
+		return responseMessage;
+	}
+
+
+
+	/**
+	 * Post the request body and return the response body
+	 * 
+	 * @param serverURL the URL to post to
+	 * @param body the request body
+	 * @return the response body or null if the response has no body or is not successful
+	 * @throws IOException
+	 */
+	public byte[] post(String serverURL, byte[] body) throws IOException {
+		return post(openConnection(serverURL, compressRequests ? -1 : body.length), body);
+	}
+
+
+
+	/**
+	 * Create and configure a connection for a POST request with a body of yet unknown length
+	 * 
+	 * The connection may be connected before the request body is known, e.g. to establish the connection
+	 * in the background while the body is created. The request body is buffered and sent with a
+	 * Content-Length header, so no chunked transfer encoding is required at the server.
+	 * 
+	 * @param serverURL the URL to post to
+	 * @return the unconnected connection
+	 * @throws IOException
+	 */
+	public HttpURLConnection openConnection(String serverURL) throws IOException {
+		URL url = new URL(serverURL);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+		connection.setDoInput(true);
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", contentType);
+
+		if (session != null) {
+			connection.setRequestProperty("Cookie", session);
+		}
+		if (acceptCompressed) {
+			connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		}
+		if (compressRequests) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		}
+		return connection;
+	}
+
+
+
+	/**
+	 * Create and configure a connection for a POST request
+	 * 
+	 * @param serverURL the URL to post to
+	 * @param length the length of the request body or -1 to use chunked transfer encoding
+	 * @return the unconnected connection
+	 * @throws IOException
+	 */
+	public HttpURLConnection openConnection(String serverURL, int length) throws IOException {
+		HttpURLConnection connection = openConnection(serverURL);
+
+		if (length < 0) {
+			connection.setChunkedStreamingMode(0);
+		} else {
+			connection.setFixedLengthStreamingMode(length);
+		}
+		return connection;
+	}
+
+
+
+	/**
+	 * Post the request body on a connection obtained from openConnection() and return the response body
+	 * 
+	 * @param connection the connection
+	 * @param body the request body
+	 * @return the response body or null if the response has no body or is not successful
+	 * @throws IOException
+	 */
+	public byte[] post(HttpURLConnection connection, byte[] body) throws IOException {
+		responseCode = -1;
+		responseMessage = null;
+
+		OutputStream os = connection.getOutputStream();
+		if (compressRequests) {
+			os = new GZIPOutputStream(os);
+		}
+		try {
+			os.write(body);
+		} finally {
+			os.close();
+		}
+
+		responseCode = connection.getResponseCode();
+		responseMessage = connection.getResponseMessage();
+
+		// The session returned from the server may differ from the given one
+		String cookie = connection.getHeaderField("Set-Cookie");
+		if (cookie != null) {
+			session = cookie.split(";")[0];
+		}
+
+		if (responseCode >= 400) {
+			// Drain the error stream to allow reuse of the connection
+			InputStream es = connection.getErrorStream();
+			if (es != null) {
+				drain(es);
+			}
+			return null;
+		}
+
+		InputStream is = connection.getInputStream();
+		String encoding = connection.getContentEncoding();
+		if ("gzip".equalsIgnoreCase(encoding)) {
+			is = new GZIPInputStream(is);
+		} else if ("deflate".equalsIgnoreCase(encoding)) {
+			is = new InflaterInputStream(is);
+		}
+
+		byte[] data = readFully(is);
+		return data.length == 0 ? null : data;
+	}
+
+
+
+	/**
+	 * Read the stream to the end and close it
+	 * 
+	 * @param is the input stream
+	 * @return the content
+	 * @throws IOException
+	 */
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+		byte[] buffer = new byte[4096];
+
+		try	{
+			int bread;
+			while ((bread = is.read(buffer)) != -1) {
+				bos.write(buffer, 0, bread);
+			}
+		}
+		finally {
+			is.close();
+		}
+		return bos.toByteArray();
+	}
+
+
+
+	private static void drain(InputStream is) {
+		try	{
+			readFully(is);
+		}
+		catch(IOException e) {
+			// Ignore, connection will not be reused
+		}
+	}
+}
@@ -25,19 +25,17 @@
 package de.cardcontact.opencard.service.remoteclient;
 
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import de.cardcontact.tlv.TLVDataSizeException;
 import de.cardcontact.tlv.TLVEncodingException;
-import de.cardcontact.tlv.TagSizeException;
 
 import opencard.core.OpenCardException;
 import opencard.core.service.CardChannel;
@@ -63,43 +61,26 @@ import opencard.core.terminal.ResponseAPDU;
  */
 public class RemoteClient extends CardService implements RemoteUpdateService {
 
-	private HttpURLConnection connection;
-	private String session = null;
 	private String contentType = "application/org.openscdp-content-mgt-response;version=1.0";
+	private HttpTransport transport = new HttpTransport(contentType);
+	private boolean pipelining = false;
+
+	/** Decoder for command scripting templates, reused for each template */
+	private final RemoteProtocolEncoder decoder = new RemoteProtocolEncoder();
+
+	/** Encoder for response scripting templates, reused for each template */
+	private final RemoteProtocolEncoder encoder = new RemoteProtocolEncoder();
 
 
 
 	/**
-	 * Read full binary contents
+	 * Return the HTTP transport used to connect to the remote administration server,
+	 * e.g. to configure timeouts or compression
 	 * 
-	 * @param connection the http connection
-	 * @return null if no data returned or a byte array containing the response
-	 *
-	 * @throws IOException
+	 * @return the transport
 	 */
-	private byte[] readFully(HttpURLConnection connection) throws IOException {
-		int resplen = connection.getContentLength();
-		
-		if (resplen <= 0) {
-			return null;
-		}
-		
-		byte[] resp = new byte[resplen];
-		InputStream is = connection.getInputStream();
-
-		try	{
-			int offset = 0;
-			int bread = 0;
-			while ((resplen > 0) && (bread = is.read(resp, offset, resplen)) != -1) {
-				offset += bread;
-				resplen -= bread;
-			}
-		}
-		finally {
-			is.close();
-		}
-
-		return resp;
+	public HttpTransport getTransport() {
+		return transport;
 	}
 
 
@@ -113,35 +94,14 @@ public class RemoteClient extends CardService implements RemoteUpdateService {
 	 * @throws TLVEncodingException 
 	 */
 	private byte[] initialConnect(String serverURL) throws IOException, TLVEncodingException {
-		URL url = new URL(serverURL);
-		connection = (HttpURLConnection) url.openConnection();
-		connection.setDoInput(true);
-		connection.setDoOutput(true);
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Content-Type", contentType);
-
-		// Use the given sessionid if available
-		if (session != null) {
-			connection.addRequestProperty("Cookie", session);
-		}
-		
 		RemoteProtocolEncoder rpe = new RemoteProtocolEncoder();
 		rpe.add(new RemoteProtocolUnit(getCard().getCardID()));
-		OutputStream writer = connection.getOutputStream();
 
-		writer.write(rpe.encodeInitiationTemplate());
-		writer.close();
-
-		// The session returned from the server may differ from the given one
-		String cookie = connection.getHeaderField("Set-Cookie");
-		if (cookie != null) {
-			session = cookie.split(";")[0];
-		}
-
-		byte[] data = readFully(connection);
+		byte[] data = transport.post(serverURL, rpe.encodeInitiationTemplate());
+		checkResponse(serverURL);
 
 		if (data == null) {
-			throw new CardServiceException("No data received from server. HTTP code " + connection.getResponseCode() + " " + connection.getResponseMessage());
+			throw new CardServiceException("No data received from server. HTTP code " + transport.getResponseCode() + " " + transport.getResponseMessage());
 		}
 
 		return data;
@@ -158,51 +118,60 @@ public class RemoteClient extends CardService implements RemoteUpdateService {
 	 * @param rst The response APDU that will be send to the server
 	 * @return The new command APDU or null if it's not exists.
 	 * @throws IOException
-	 * @throws TLVEncodingException
-	 * @throws TagSizeException
-	 * @throws TLVDataSizeException
 	 */
-	private byte[] processNext(String serverURL, byte[] rst) throws IOException, TLVEncodingException, TagSizeException, TLVDataSizeException {
-		URL url = new URL(serverURL);	
+	private byte[] processNext(String serverURL, byte[] rst) throws IOException {
+		byte[] data = transport.post(serverURL, rst);
+		checkResponse(serverURL);
+		return data;
+	}
 
-		connection = (HttpURLConnection) url.openConnection();
-		connection.setDoInput(true);
-		connection.setDoOutput(true);
-		connection.setRequestMethod("POST");
-		connection.addRequestProperty("Cookie", session);
-		connection.setRequestProperty("Content-Type", contentType);
 
-		DataOutputStream writer = new DataOutputStream(connection.getOutputStream());
 
-		writer.write(rst);
-		writer.close();
+	/**
+	 * Check the status code of the last response received from the server
+	 * 
+	 * @param serverURL The url of the remote administration server
+	 * @throws FileNotFoundException if the server returned 404
+	 * @throws CardServiceException if the server returned any other status than 200
+	 */
+	private void checkResponse(String serverURL) throws FileNotFoundException, CardServiceException {
+		int code = transport.getResponseCode();
 
-		return readFully(connection);
+		if (code == 404) {
+			throw new FileNotFoundException(serverURL);
+		}
+		if (code != 200) {
+			throw new CardServiceException("Request to " + serverURL + " failed. HTTP code " + code + " " + transport.getResponseMessage());
+		}
 	}
 
 
 
-	private RemoteProtocolUnit sendCommandAPDU(RemoteProtocolUnit rpu) throws InvalidCardChannelException, CardTerminalException{
-		ResponseAPDU res;
-		CardChannel channel;
+	/**
+	 * Enable or disable pipelining
+	 * 
+	 * With pipelining enabled, the connection for the next request to the server is established
+	 * in the background while the card processes the current command scripting template.
+	 * 
+	 * @param pipelining true to enable pipelining
+	 */
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
 
+
+	private RemoteProtocolUnit sendCommandAPDU(CardChannel channel, RemoteProtocolUnit rpu) throws InvalidCardChannelException, CardTerminalException{
 		CommandAPDU capdu = (CommandAPDU)rpu.getPayload();
-		try {
-			allocateCardChannel();
-			channel = getCardChannel();
-			res = channel.sendCommandAPDU(capdu);
-		} finally {
-			releaseCardChannel();
-		}
+		ResponseAPDU res = channel.sendCommandAPDU(capdu);
 
 		return new RemoteProtocolUnit(res);
 	}
 
 
 
-	private RemoteProtocolUnit resetCard(RemoteProtocolUnit rpu) throws CardTerminalException {
-		SmartCard sc = getCard();
-		CardID cid = sc.reset(false);
+	private RemoteProtocolUnit resetCard(CardChannel channel, RemoteProtocolUnit rpu) throws CardTerminalException {
+		CardID cid = getCard().reset(channel, false);
 		
 		if (cid == null) {
 			throw new CardTerminalException("Could not reset card");
@@ -212,25 +181,49 @@ public class RemoteClient extends CardService implements RemoteUpdateService {
 
 
 
+	/**
+	 * Execute the command scripting template and return the response scripting template
+	 * 
+	 * The card channel is allocated once for all commands in the template. It is only released
+	 * while the notification listener is called, so that the listener can use the card.
+	 */
 	private byte[] process(byte[] cst, RemoteNotificationListener notificationListener) throws TLVEncodingException {
-		RemoteProtocolEncoder rpe = new RemoteProtocolEncoder();
-
-		rpe.decodeCommandScriptingTemplate(cst);
-		List<RemoteProtocolUnit> rpus = rpe.getRemoteProtocolUnits();
+		decoder.clear();
+		decoder.decodeCommandScriptingTemplate(cst);
+		List<RemoteProtocolUnit> rpus = decoder.getRemoteProtocolUnits();
 
-		rpe = new RemoteProtocolEncoder();
+		RemoteProtocolEncoder rpe = encoder;
+		rpe.clear();
 
+		CardChannel channel = null;
 		try	{
 			for (RemoteProtocolUnit rpu : rpus) {
 				switch(rpu.getAction()) {
 				case APDU:
-					rpe.add(sendCommandAPDU(rpu));
+					if (channel == null) {
+						allocateCardChannel();
+						channel = getCardChannel();
+					}
+					RemoteProtocolUnit res = sendCommandAPDU(channel, rpu);
+					rpe.add(res);
+					if (!rpu.isExpected(res)) {
+						// Skip remaining commands, the server sees the number of responses
+						return rpe.encodeResponseScriptingTemplate();
+					}
 					break;
 				case RESET:
-					rpe.add(resetCard(rpu));
+					if (channel == null) {
+						allocateCardChannel();
+						channel = getCardChannel();
+					}
+					rpe.add(resetCard(channel, rpu));
 					break;
 				case NOTIFY:
 					if (notificationListener != null) {
+						if (channel != null) {
+							channel = null;
+							releaseCardChannel();
+						}
 						notificationListener.remoteNotify(rpu.getId(), rpu.getMessage());
 					}
 					break;
@@ -238,6 +231,12 @@ public class RemoteClient extends CardService implements RemoteUpdateService {
 			}
 		} catch(OpenCardException cte) {
 			rpe.add(new RemoteProtocolUnit(RemoteProtocolUnit.Action.CLOSE, -1, cte.getMessage()));
+		} catch(InvalidCardChannelException icce) {
+			rpe.add(new RemoteProtocolUnit(RemoteProtocolUnit.Action.CLOSE, -1, icce.getMessage()));
+		} finally {
+			if (channel != null) {
+				releaseCardChannel();
+			}
 		}
 
 		return rpe.encodeResponseScriptingTemplate();
@@ -245,19 +244,68 @@ public class RemoteClient extends CardService implements RemoteUpdateService {
 
 
 
+	/**
+	 * Start establishing the connection for the next request in the background
+	 */
+	private Future<HttpURLConnection> prepareNext(ExecutorService executor, final String serverURL) {
+		return executor.submit(new Callable<HttpURLConnection>() {
+			@Override
+			public HttpURLConnection call() throws IOException {
+				HttpURLConnection connection = transport.openConnection(serverURL);
+				connection.connect();
+				return connection;
+			}
+		});
+	}
+
+
+
+	/**
+	 * Send the response scripting template on the prepared connection or on a new connection
+	 * if the connection could not be prepared
+	 */
+	private byte[] processNext(String serverURL, Future<HttpURLConnection> next, byte[] rst) throws IOException {
+		HttpURLConnection connection;
+		try	{
+			connection = next.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting to " + serverURL);
+		}
+		catch(ExecutionException e) {
+			// Retry on a new connection
+			return processNext(serverURL, rst);
+		}
+		byte[] data = transport.post(connection, rst);
+		checkResponse(serverURL);
+		return data;
+	}
+
+
+
 	@Override
 	public void update(String serverURL, String sessionId, RemoteNotificationListener notificationListener) throws CardServiceException {
 		
+		ExecutorService executor = null;
+
 		if (sessionId != null) {
-			session = "JSESSIONID=" + sessionId;
+			transport.setSession("JSESSIONID=" + sessionId);
 		}
 		try {
 			byte[] cst = initialConnect(serverURL);
-			int code = connection.getResponseCode();
-			while( code == 200) {
-				byte[] rst = process(cst, notificationListener);
-				cst = processNext(serverURL, rst);
-				code = connection.getResponseCode();
+			while (cst != null) {
+				if (pipelining) {
+					if (executor == null) {
+						executor = Executors.newSingleThreadExecutor();
+					}
+					Future<HttpURLConnection> next = prepareNext(executor, serverURL);
+					byte[] rst = process(cst, notificationListener);
+					cst = processNext(serverURL, next, rst);
+				} else {
+					byte[] rst = process(cst, notificationListener);
+					cst = processNext(serverURL, rst);
+				}
 			}
 		} catch (CardServiceException e) {
 			throw e;
@@ -267,10 +315,10 @@ public class RemoteClient extends CardService implements RemoteUpdateService {
 			throw new CardServiceException("IO error during connection to " + serverURL + "(" + e.getMessage() + ")");
 		} catch (TLVEncodingException e) {
 			throw new CardServiceException(e.getMessage());
-		} catch (TagSizeException e) {
-			throw new CardServiceException(e.getMessage());
-		} catch (TLVDataSizeException e) {
-			throw new CardServiceException(e.getMessage());
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
 		}
 	}
 }
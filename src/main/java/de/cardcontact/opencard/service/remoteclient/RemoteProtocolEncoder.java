@@ -24,29 +24,29 @@
 
 package de.cardcontact.opencard.service.remoteclient;
 
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
+import opencard.core.terminal.APDU;
 import opencard.core.terminal.CardID;
 import opencard.core.terminal.CardTerminalException;
 import opencard.core.terminal.CommandAPDU;
 import opencard.core.terminal.ResponseAPDU;
 
-import de.cardcontact.opencard.service.remoteclient.RemoteProtocolUnit.Action;
-import de.cardcontact.tlv.ConstructedTLV;
-import de.cardcontact.tlv.GPTLV_Generic;
-import de.cardcontact.tlv.NativeTLVList;
-import de.cardcontact.tlv.PrimitiveTLV;
-import de.cardcontact.tlv.TLV;
-import de.cardcontact.tlv.TLVDataSizeException;
 import de.cardcontact.tlv.TLVEncodingException;
-import de.cardcontact.tlv.TagSizeException;
 
 /**
  * Encode a list of RemoteProtocolUnits for transfer using RAMOverHttp encoding
  * 
+ * Templates are written directly into the output without building a TLV object tree. The length of the
+ * template is determined in a first pass over the RemoteProtocolUnits, the encoding is written in a second pass.
+ * Templates are decoded using a TLVCursor, so no objects are created for the individual elements.
+ * 
  * @author asc
  *
  */
@@ -61,15 +61,26 @@ public class RemoteProtocolEncoder {
 	private static final int INTEGER = 0x02;
 	private static final int UTF8String = 0x0C;
 	private static final int RESET = 0xC0;
+	private static final int EXPECTED_SW = 0xC1;
 	private static final int ATR = 0xC0;
 	private static final int NOTIFY = 0xE0;
 	private static final int CLOSE = 0xE1;
 	private static final int VERSION = 0xE2;
 
+	/** Template types selecting the elements written for each RemoteProtocolUnit */
+	private enum Template { COMMAND, RESPONSE, INITIATION };
+
 	private int executedCommands = 1;
 
 	ArrayList<RemoteProtocolUnit> rpus= new ArrayList<RemoteProtocolUnit>(1);
 
+	/** Cursors reused for decoding */
+	private final TLVCursor outer = new TLVCursor();
+	private final TLVCursor inner = new TLVCursor();
+
+	/** Buffer reused for encoding into an OutputStream */
+	private ByteBuffer scratch = null;
+
 	public RemoteProtocolEncoder() {
 	}
 
@@ -87,246 +98,537 @@ public class RemoteProtocolEncoder {
 
 
 
-	private RemoteProtocolUnit decodeRPU(RemoteProtocolUnit.Action action, byte[] rpu) throws TLVEncodingException {
-		int id = 0;
-		String str = null;
+	/**
+	 * Remove all RemoteProtocolUnits, so that the encoder can be reused for the next template
+	 */
+	public void clear() {
+		rpus.clear();
+		executedCommands = 1;
+	}
 
-		try {
-			NativeTLVList list = new NativeTLVList(rpu);
 
-			for (int i = 0; i < list.getLength(); i++) {
-				GPTLV_Generic rpuenc = list.get(i);
 
-				switch(rpuenc.getTag()) {
-				case INTEGER:
-					id = (new BigInteger(rpuenc.getValue())).intValue();
-					break;
-				case UTF8String:
-					str = new String(rpuenc.getValue(), "UTF-8");
-					break;
-				}
-			}
-		} catch (TagSizeException e) {
-			throw new TLVEncodingException();
-		} catch (TLVDataSizeException e) {
-			throw new TLVEncodingException();
-		} catch (UnsupportedEncodingException e) {
-			throw new TLVEncodingException();
+	/**
+	 * Return the number of bytes required to encode the length field for the given length
+	 */
+	private static int sizeOfLength(int length) {
+		if (length < 0x80) {
+			return 1;
+		} else if (length < 0x100) {
+			return 2;
+		} else if (length < 0x10000) {
+			return 3;
 		}
-		
-		return new RemoteProtocolUnit(action, id, str);
+		return 4;
 	}
 
 
 
-	public byte[] encodeCommandScriptingTemplate() {
+	/**
+	 * Return the number of bytes required to encode a primitive element with single byte tag
+	 */
+	private static int sizeOfTLV(int length) {
+		return 1 + sizeOfLength(length) + length;
+	}
 
-		ConstructedTLV cst;
-		
-		try	{
-			cst = new ConstructedTLV(COMMAND_SCRIPTING_TEMPLATE);
-		
-			for (RemoteProtocolUnit rpu : rpus) {
-				switch(rpu.getAction()) {
-				case APDU:
-					CommandAPDU com = (CommandAPDU)rpu.getPayload();
-					cst.add(new PrimitiveTLV(COMMAND_APDU, com.getBytes()));
-					break;
-				case RESET:
-					cst.add(new PrimitiveTLV(RESET, new byte[] {} ));
-					break;
-				case NOTIFY:
-					ConstructedTLV notify = new ConstructedTLV(NOTIFY);
-					notify.add(new PrimitiveTLV(INTEGER, BigInteger.valueOf(rpu.getId()).toByteArray()));
-					notify.add(new PrimitiveTLV(UTF8String, rpu.getMessage().getBytes("UTF-8")));
-					cst.add(notify);
-					break;
-				case CLOSE:
-					ConstructedTLV closemsg = new ConstructedTLV(CLOSE);
-					closemsg.add(new PrimitiveTLV(UTF8String, rpu.getMessage().getBytes("UTF-8")));
-					cst.add(closemsg);
-					break;
-				}
-			}
+
+
+	/**
+	 * Return the number of bytes required to encode the value as minimal two's-complement integer
+	 */
+	private static int sizeOfInteger(int value) {
+		int n = 4;
+		while ((n > 1) && (((value >> ((n - 1) * 8 - 1)) == 0) || ((value >> ((n - 1) * 8 - 1)) == -1))) {
+			n--;
 		}
-		catch(Exception e) {
-			e.printStackTrace();
-			return null;
+		return n;
+	}
+
+
+
+	private static void putTagAndLength(ByteBuffer bb, int tag, int length) {
+		bb.put((byte)tag);
+		if (length < 0x80) {
+			bb.put((byte)length);
+		} else {
+			int n = sizeOfLength(length) - 1;
+			bb.put((byte)(0x80 | n));
+			while (n > 0) {
+				n--;
+				bb.put((byte)(length >> (n * 8)));
+			}
 		}
-		
-		return cst.getBytes();
 	}
 
 
 
-	public void decodeCommandScriptingTemplate(byte[] cst) throws TLVEncodingException {
-		try {
-			NativeTLVList list = new NativeTLVList(cst);
-			GPTLV_Generic csttlv = list.get(0);
+	private static void putTLV(ByteBuffer bb, int tag, byte[] value, int offset, int length) {
+		putTagAndLength(bb, tag, length);
+		bb.put(value, offset, length);
+	}
+
+
+
+	/**
+	 * Return the UTF-8 encoded message of the RemoteProtocolUnit
+	 */
+	private static byte[] getMessageBytes(RemoteProtocolUnit rpu) {
+		String msg = rpu.getMessage();
+		return msg == null ? new byte[0] : msg.getBytes(StandardCharsets.UTF_8);
+	}
+
+
 
-			if (csttlv.getTag() != COMMAND_SCRIPTING_TEMPLATE) {
-				throw new TLVEncodingException("Expected tag 'AA' in Command Scripting Template");
+	/**
+	 * Return the length of the encoding of the RemoteProtocolUnit in the given template, 0 if not encoded
+	 */
+	private static int sizeOf(Template template, RemoteProtocolUnit rpu) {
+		switch(template) {
+		case COMMAND:
+			switch(rpu.getAction()) {
+			case APDU:
+				APDU com = (APDU)rpu.getPayload();
+				return (rpu.getExpectedSW() != -1 ? sizeOfTLV(2) : 0) + sizeOfTLV(com.getLength());
+			case RESET:
+				return sizeOfTLV(0);
+			case NOTIFY:
+				return sizeOfTLV(sizeOfTLV(sizeOfInteger(rpu.getId())) + sizeOfTLV(getMessageBytes(rpu).length));
+			case CLOSE:
+				return sizeOfTLV(sizeOfTLV(getMessageBytes(rpu).length));
 			}
-			
-			list = new NativeTLVList(csttlv.getValue());
-
-			for (int i = 0; i < list.getLength(); i++) {
-				GPTLV_Generic rpuenc = list.get(i);
-				
-				switch(rpuenc.getTag()) {
-				case COMMAND_APDU:
-					CommandAPDU apdu = new CommandAPDU(rpuenc.getValue());
-					rpus.add(new RemoteProtocolUnit(apdu));
-					break;
-				case RESET:
-					rpus.add(new RemoteProtocolUnit(RemoteProtocolUnit.Action.RESET));
-					break;
-				case NOTIFY:
-					rpus.add(decodeRPU(RemoteProtocolUnit.Action.NOTIFY, rpuenc.getValue()));
-					break;
-				case CLOSE:
-					rpus.add(decodeRPU(RemoteProtocolUnit.Action.CLOSE, rpuenc.getValue()));
-					break;
-				}
+			break;
+		case RESPONSE:
+			switch(rpu.getAction()) {
+			case APDU:
+				return sizeOfTLV(((APDU)rpu.getPayload()).getLength());
+			case RESET:
+				return sizeOfTLV(((CardID)rpu.getPayload()).getATR().length);
+			case CLOSE:
+				return sizeOfTLV(sizeOfTLV(getMessageBytes(rpu).length));
+			default:
+				break;
+			}
+			break;
+		case INITIATION:
+			if (rpu.getAction() == RemoteProtocolUnit.Action.RESET) {
+				return sizeOfTLV(((CardID)rpu.getPayload()).getATR().length);
 			}
-		} catch (TagSizeException e) {
-			throw new TLVEncodingException();
-		} catch (TLVDataSizeException e) {
-			throw new TLVEncodingException();
+			break;
 		}
+		return 0;
 	}
 
 
 
-	public byte[] encodeResponseScriptingTemplate() {
+	/**
+	 * Write the encoding of the RemoteProtocolUnit in the given template
+	 */
+	private static void put(ByteBuffer bb, Template template, RemoteProtocolUnit rpu) {
+		byte[] msg;
 
-		ConstructedTLV cst;
-		
-		try	{
-			cst = new ConstructedTLV(RESPONSE_SCRIPTING_TEMPLATE);
-		
-			for (RemoteProtocolUnit rpu : rpus) {
-				switch(rpu.getAction()) {
-				case APDU:
-					ResponseAPDU com = (ResponseAPDU)rpu.getPayload();
-					cst.add(new PrimitiveTLV(RESPONSE_APDU, com.getBytes()));
-					break;
-				case RESET:
-					cst.add(new PrimitiveTLV(ATR, ((CardID)rpu.getPayload()).getATR()));
-					break;
-				case CLOSE:
-					ConstructedTLV closemsg = new ConstructedTLV(CLOSE);
-					closemsg.add(new PrimitiveTLV(UTF8String, rpu.getMessage().getBytes("UTF-8")));
-					cst.add(closemsg);
-					break;
+		switch(template) {
+		case COMMAND:
+			switch(rpu.getAction()) {
+			case APDU:
+				APDU com = (APDU)rpu.getPayload();
+				int sw = rpu.getExpectedSW();
+				if (sw != -1) {
+					putTagAndLength(bb, EXPECTED_SW, 2);
+					bb.put((byte)(sw >> 8));
+					bb.put((byte)sw);
+				}
+				putTLV(bb, COMMAND_APDU, com.getBuffer(), 0, com.getLength());
+				break;
+			case RESET:
+				putTagAndLength(bb, RESET, 0);
+				break;
+			case NOTIFY:
+				msg = getMessageBytes(rpu);
+				int id = rpu.getId();
+				int idlen = sizeOfInteger(id);
+				putTagAndLength(bb, NOTIFY, sizeOfTLV(idlen) + sizeOfTLV(msg.length));
+				putTagAndLength(bb, INTEGER, idlen);
+				while (idlen > 0) {
+					idlen--;
+					bb.put((byte)(id >> (idlen * 8)));
 				}
+				putTLV(bb, UTF8String, msg, 0, msg.length);
+				break;
+			case CLOSE:
+				msg = getMessageBytes(rpu);
+				putTagAndLength(bb, CLOSE, sizeOfTLV(msg.length));
+				putTLV(bb, UTF8String, msg, 0, msg.length);
+				break;
 			}
-			cst.add(new PrimitiveTLV(EXECUTED_COMMANDS, new byte[] { (byte) this.executedCommands } ));
+			break;
+		case RESPONSE:
+			switch(rpu.getAction()) {
+			case APDU:
+				APDU res = (APDU)rpu.getPayload();
+				putTLV(bb, RESPONSE_APDU, res.getBuffer(), 0, res.getLength());
+				break;
+			case RESET:
+				byte[] atr = ((CardID)rpu.getPayload()).getATR();
+				putTLV(bb, ATR, atr, 0, atr.length);
+				break;
+			case CLOSE:
+				msg = getMessageBytes(rpu);
+				putTagAndLength(bb, CLOSE, sizeOfTLV(msg.length));
+				putTLV(bb, UTF8String, msg, 0, msg.length);
+				break;
+			default:
+				break;
+			}
+			break;
+		case INITIATION:
+			if (rpu.getAction() == RemoteProtocolUnit.Action.RESET) {
+				byte[] atr = ((CardID)rpu.getPayload()).getATR();
+				putTLV(bb, ATR, atr, 0, atr.length);
+			}
+			break;
 		}
-		catch(Exception e) {
-			e.printStackTrace();
-			return null;
+	}
+
+
+
+	private static int tagOf(Template template) {
+		switch(template) {
+		case COMMAND:
+			return COMMAND_SCRIPTING_TEMPLATE;
+		case RESPONSE:
+			return RESPONSE_SCRIPTING_TEMPLATE;
+		default:
+			return INITIATION_TEMPLATE;
 		}
-		
-		return cst.getBytes();
 	}
 
 
 
-	public void decodeResponseScriptingTemplate(byte[] cst) throws TLVEncodingException {
-		try {
-			NativeTLVList list = new NativeTLVList(cst);
-			GPTLV_Generic csttlv = list.get(0);
-			
-			if (csttlv.getTag() != RESPONSE_SCRIPTING_TEMPLATE) {
-				throw new TLVEncodingException("Expected tag 'AB' in Response Scripting Template");
+	/**
+	 * Return the length of the value of the template
+	 */
+	private int sizeOfValue(Template template) {
+		int length = 0;
+		for (RemoteProtocolUnit rpu : rpus) {
+			length += sizeOf(template, rpu);
+		}
+		if (template == Template.RESPONSE) {
+			length += sizeOfTLV(1);
+		}
+		return length;
+	}
+
+
+
+	/**
+	 * Return the length of the complete template
+	 */
+	private int sizeOf(Template template) {
+		return sizeOfTLV(sizeOfValue(template));
+	}
+
+
+
+	/**
+	 * Write the template into the buffer
+	 */
+	private void encode(Template template, ByteBuffer bb) {
+		int length = sizeOfValue(template);
+
+		if (bb.remaining() < sizeOfTLV(length)) {
+			throw new BufferOverflowException();
+		}
+
+		putTagAndLength(bb, tagOf(template), length);
+		for (RemoteProtocolUnit rpu : rpus) {
+			put(bb, template, rpu);
+		}
+		if (template == Template.RESPONSE) {
+			putTagAndLength(bb, EXECUTED_COMMANDS, 1);
+			bb.put((byte)executedCommands);
+		}
+	}
+
+
+
+	/**
+	 * Write the template into the stream
+	 */
+	private void encode(Template template, OutputStream os) throws IOException {
+		int length = sizeOf(template);
+
+		if ((scratch == null) || (scratch.capacity() < length)) {
+			scratch = ByteBuffer.allocate(Math.max(length, 256));
+		}
+		scratch.clear();
+		encode(template, scratch);
+		os.write(scratch.array(), 0, scratch.position());
+	}
+
+
+
+	/**
+	 * Return the template as byte array
+	 */
+	private byte[] encode(Template template) {
+		byte[] buffer = new byte[sizeOf(template)];
+		encode(template, ByteBuffer.wrap(buffer));
+		return buffer;
+	}
+
+
+
+	/**
+	 * Return the length of the command scripting template
+	 * 
+	 * @return the number of bytes written by encodeCommandScriptingTemplate()
+	 */
+	public int getCommandScriptingTemplateLength() {
+		return sizeOf(Template.COMMAND);
+	}
+
+
+
+	public byte[] encodeCommandScriptingTemplate() {
+		return encode(Template.COMMAND);
+	}
+
+
+
+	/**
+	 * Write the command scripting template into the buffer
+	 * 
+	 * @param bb the buffer, which must have getCommandScriptingTemplateLength() bytes remaining
+	 * @throws BufferOverflowException if the buffer is too small
+	 */
+	public void encodeCommandScriptingTemplate(ByteBuffer bb) {
+		encode(Template.COMMAND, bb);
+	}
+
+
+
+	/**
+	 * Write the command scripting template into the stream
+	 * 
+	 * @param os the stream
+	 * @throws IOException
+	 */
+	public void encodeCommandScriptingTemplate(OutputStream os) throws IOException {
+		encode(Template.COMMAND, os);
+	}
+
+
+
+	/**
+	 * Position the outer cursor on the template and the inner cursor before the first element of the template
+	 */
+	private void enterTemplate(byte[] buffer, int offset, int length, int tag, String name) throws TLVEncodingException {
+		outer.reset(buffer, offset, length);
+
+		if (!outer.next() || (outer.getTag() != tag)) {
+			throw new TLVEncodingException("Expected tag '" + Integer.toHexString(tag).toUpperCase() + "' in " + name);
+		}
+		inner.reset(outer);
+	}
+
+
+
+	/**
+	 * Decode a NOTIFY or CLOSE element at the position of the inner cursor
+	 */
+	private RemoteProtocolUnit decodeRPU(RemoteProtocolUnit.Action action) throws TLVEncodingException {
+		int id = 0;
+		String str = null;
+
+		outer.reset(inner);
+		while (outer.next()) {
+			switch(outer.getTag()) {
+			case INTEGER:
+				// Sign extend minimal two's-complement encoding
+				int len = outer.getValueLength();
+				id = outer.getIntValue();
+				if ((len < 4) && (outer.getBuffer()[outer.getValueOffset()] < 0)) {
+					id |= -1 << (len * 8);
+				}
+				break;
+			case UTF8String:
+				str = new String(outer.getBuffer(), outer.getValueOffset(), outer.getValueLength(), StandardCharsets.UTF_8);
+				break;
 			}
-			
-			list = new NativeTLVList(csttlv.getValue());
-
-			for (int i = 0; i < list.getLength(); i++) {
-				GPTLV_Generic rpuenc = list.get(i);
-
-				switch(rpuenc.getTag()) {
-				case RESPONSE_APDU:
-					ResponseAPDU apdu = new ResponseAPDU(rpuenc.getValue());
-					rpus.add(new RemoteProtocolUnit(apdu));
-					break;
-				case EXECUTED_COMMANDS:
-					this.executedCommands = rpuenc.getValue()[0] & 0xFF;
-					break;
-				case ATR:
-					CardID cardID = new CardID(rpuenc.getValue());
-					rpus.add(new RemoteProtocolUnit(cardID));
-					break;
-				case CLOSE:
-					rpus.add(decodeRPU(RemoteProtocolUnit.Action.CLOSE, rpuenc.getValue()));
-					break;
+		}
+
+		return new RemoteProtocolUnit(action, id, str);
+	}
+
+
+
+	public void decodeCommandScriptingTemplate(byte[] cst) throws TLVEncodingException {
+		decodeCommandScriptingTemplate(cst, 0, cst.length);
+	}
+
+
+
+	/**
+	 * Decode the command scripting template contained in the buffer and add the RemoteProtocolUnits
+	 * 
+	 * @param cst the buffer
+	 * @param offset the offset of the template in the buffer
+	 * @param length the length of the encoded template
+	 * @throws TLVEncodingException if the template is not correctly encoded
+	 */
+	public void decodeCommandScriptingTemplate(byte[] cst, int offset, int length) throws TLVEncodingException {
+		enterTemplate(cst, offset, length, COMMAND_SCRIPTING_TEMPLATE, "Command Scripting Template");
+
+		int expectedSW = -1;
+
+		while (inner.next()) {
+			switch(inner.getTag()) {
+			case EXPECTED_SW:
+				if (inner.getValueLength() != 2) {
+					throw new TLVEncodingException("Expected status word must have two bytes");
 				}
+				expectedSW = inner.getIntValue();
+				break;
+			case COMMAND_APDU:
+				CommandAPDU apdu = new CommandAPDU(inner.getValue());
+				rpus.add(new RemoteProtocolUnit(apdu, expectedSW));
+				expectedSW = -1;
+				break;
+			case RESET:
+				rpus.add(new RemoteProtocolUnit(RemoteProtocolUnit.Action.RESET));
+				break;
+			case NOTIFY:
+				rpus.add(decodeRPU(RemoteProtocolUnit.Action.NOTIFY));
+				break;
+			case CLOSE:
+				rpus.add(decodeRPU(RemoteProtocolUnit.Action.CLOSE));
+				break;
 			}
-		} catch (TagSizeException e) {
-			throw new TLVEncodingException();
-		} catch (CardTerminalException e) {
-			throw new TLVEncodingException();
-		} catch (TLVDataSizeException e) {
-			throw new TLVEncodingException();
 		}
 	}
 
 
 
-	public byte[] encodeInitiationTemplate() {
+	/**
+	 * Return the length of the response scripting template
+	 * 
+	 * @return the number of bytes written by encodeResponseScriptingTemplate()
+	 */
+	public int getResponseScriptingTemplateLength() {
+		return sizeOf(Template.RESPONSE);
+	}
 
-		ConstructedTLV pit;
-		
-		try	{
-			pit = new ConstructedTLV(INITIATION_TEMPLATE);
-		
-			for (RemoteProtocolUnit rpu : rpus) {
-				switch(rpu.getAction()) {
-				case RESET:
-					pit.add(new PrimitiveTLV(ATR, ((CardID)rpu.getPayload()).getATR()));
-					break;
+
+
+	public byte[] encodeResponseScriptingTemplate() {
+		return encode(Template.RESPONSE);
+	}
+
+
+
+	/**
+	 * Write the response scripting template into the buffer
+	 * 
+	 * @param bb the buffer, which must have getResponseScriptingTemplateLength() bytes remaining
+	 * @throws BufferOverflowException if the buffer is too small
+	 */
+	public void encodeResponseScriptingTemplate(ByteBuffer bb) {
+		encode(Template.RESPONSE, bb);
+	}
+
+
+
+	/**
+	 * Write the response scripting template into the stream
+	 * 
+	 * @param os the stream
+	 * @throws IOException
+	 */
+	public void encodeResponseScriptingTemplate(OutputStream os) throws IOException {
+		encode(Template.RESPONSE, os);
+	}
+
+
+
+	public void decodeResponseScriptingTemplate(byte[] cst) throws TLVEncodingException {
+		decodeResponseScriptingTemplate(cst, 0, cst.length);
+	}
+
+
+
+	/**
+	 * Decode the response scripting template contained in the buffer and add the RemoteProtocolUnits
+	 * 
+	 * @param cst the buffer
+	 * @param offset the offset of the template in the buffer
+	 * @param length the length of the encoded template
+	 * @throws TLVEncodingException if the template is not correctly encoded
+	 */
+	public void decodeResponseScriptingTemplate(byte[] cst, int offset, int length) throws TLVEncodingException {
+		enterTemplate(cst, offset, length, RESPONSE_SCRIPTING_TEMPLATE, "Response Scripting Template");
+
+		while (inner.next()) {
+			switch(inner.getTag()) {
+			case RESPONSE_APDU:
+				if (inner.getValueLength() < 2) {
+					throw new TLVEncodingException("Response APDU must have at least two bytes");
 				}
+				ResponseAPDU apdu = new ResponseAPDU(inner.getValue());
+				rpus.add(new RemoteProtocolUnit(apdu));
+				break;
+			case EXECUTED_COMMANDS:
+				this.executedCommands = inner.getIntValue();
+				break;
+			case ATR:
+				rpus.add(new RemoteProtocolUnit(decodeCardID()));
+				break;
+			case CLOSE:
+				rpus.add(decodeRPU(RemoteProtocolUnit.Action.CLOSE));
+				break;
 			}
 		}
-		catch(Exception e) {
-			e.printStackTrace();
-			return null;
+	}
+
+
+
+	private CardID decodeCardID() throws TLVEncodingException {
+		try	{
+			return new CardID(inner.getValue());
+		}
+		catch(CardTerminalException e) {
+			throw new TLVEncodingException(e.getMessage());
 		}
-		
-		return pit.getBytes();
 	}
 
 
 
-	public void decodeInitiationTemplate(byte[] pit) throws TLVEncodingException {
-		try {
-			NativeTLVList list = new NativeTLVList(pit);
-			GPTLV_Generic pittlv = list.get(0);
-			
-			if (pittlv.getTag() != INITIATION_TEMPLATE) {
-				throw new TLVEncodingException("Expected tag 'E8' in Initiation Template");
-			}
-			
-			list = new NativeTLVList(pittlv.getValue());
+	public byte[] encodeInitiationTemplate() {
+		return encode(Template.INITIATION);
+	}
 
-			for (int i = 0; i < list.getLength(); i++) {
-				GPTLV_Generic rpuenc = list.get(i);
 
-				switch(rpuenc.getTag()) {
-				case ATR:
-					CardID cardID = new CardID(rpuenc.getValue());
-					rpus.add(new RemoteProtocolUnit(cardID));
-					break;
-				}
+
+	/**
+	 * Write the initiation template into the stream
+	 * 
+	 * @param os the stream
+	 * @throws IOException
+	 */
+	public void encodeInitiationTemplate(OutputStream os) throws IOException {
+		encode(Template.INITIATION, os);
+	}
+
+
+
+	public void decodeInitiationTemplate(byte[] pit) throws TLVEncodingException {
+		enterTemplate(pit, 0, pit.length, INITIATION_TEMPLATE, "Initiation Template");
+
+		while (inner.next()) {
+			switch(inner.getTag()) {
+			case ATR:
+				rpus.add(new RemoteProtocolUnit(decodeCardID()));
+				break;
 			}
-		} catch (TagSizeException e) {
-			throw new TLVEncodingException();
-		} catch (CardTerminalException e) {
-			throw new TLVEncodingException();
-		} catch (TLVDataSizeException e) {
-			throw new TLVEncodingException();
 		}
 	}
 	
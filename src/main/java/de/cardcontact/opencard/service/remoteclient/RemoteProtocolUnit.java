@@ -42,6 +42,7 @@ public class RemoteProtocolUnit {
 	private int id;
 	private String message;
 	private Object payload;
+	private int expectedSW = -1;
 
 
 	public RemoteProtocolUnit(Action action) {
@@ -65,6 +66,22 @@ public class RemoteProtocolUnit {
 
 
 
+	/**
+	 * Create a command unit with an expected status word
+	 * 
+	 * Execution of a batch of commands stops after the first command that returns a different status word.
+	 * 
+	 * @param com the command APDU
+	 * @param expectedSW the expected status word or -1 if any status word is acceptable
+	 */
+	public RemoteProtocolUnit(CommandAPDU com, int expectedSW) {
+		this.action = RemoteProtocolUnit.Action.APDU;
+		this.payload = com;
+		this.expectedSW = expectedSW;
+	}
+
+
+
 	public RemoteProtocolUnit(ResponseAPDU res) {
 		this.action = RemoteProtocolUnit.Action.APDU;
 		this.payload = res;
@@ -103,6 +120,35 @@ public class RemoteProtocolUnit {
 
 
 
+	/**
+	 * Return the expected status word for a command unit
+	 * 
+	 * @return the status word or -1 if any status word is acceptable
+	 */
+	public int getExpectedSW() {
+		return this.expectedSW;
+	}
+
+
+
+	/**
+	 * Check if the response unit matches the expectation of this command unit
+	 * 
+	 * @param res the response unit
+	 * @return true if execution of a batch can continue
+	 */
+	public boolean isExpected(RemoteProtocolUnit res) {
+		if (res.isClosing()) {
+			return false;
+		}
+		if ((this.expectedSW == -1) || !res.isAPDU()) {
+			return true;
+		}
+		return ((ResponseAPDU)res.getPayload()).sw() == this.expectedSW;
+	}
+
+
+
 	public boolean isAPDU() {
 		return this.action == Action.APDU;
 	}
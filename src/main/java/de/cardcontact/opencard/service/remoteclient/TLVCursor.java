@@ -0,0 +1,230 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2013 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.service.remoteclient;
+
+import de.cardcontact.tlv.TLVEncodingException;
+
+/**
+ * Cursor over a sequence of BER-TLV encoded objects in a byte array
+ *
+ * The cursor does not create objects for the elements it visits. It only keeps the position of
+ * tag and value of the current element in the underlying buffer. A cursor can be reset to a new buffer
+ * or to the value of a constructed element and reused for any number of templates.
+ *
+ * Usage:
+ * <pre>
+ * cursor.reset(buffer, 0, buffer.length);
+ * while (cursor.next()) {
+ *     switch(cursor.getTag()) {
+ *     ...
+ *     }
+ * }
+ * </pre>
+ */
+public class TLVCursor {
+
+	private byte[] buffer;
+	private int offset;
+	private int end;
+
+	private int tag;
+	private int valueOffset;
+	private int valueLength;
+
+
+
+	public TLVCursor() {
+	}
+
+
+
+	/**
+	 * Position the cursor before the first element in the given range of the buffer
+	 *
+	 * @param buffer the buffer containing the encoded elements
+	 * @param offset the offset of the first element
+	 * @param length the number of bytes containing elements
+	 */
+	public void reset(byte[] buffer, int offset, int length) {
+		if ((offset < 0) || (length < 0) || (offset + length > buffer.length)) {
+			throw new IndexOutOfBoundsException("Range exceeds buffer");
+		}
+		this.buffer = buffer;
+		this.offset = offset;
+		this.end = offset + length;
+		this.tag = 0;
+		this.valueOffset = offset;
+		this.valueLength = 0;
+	}
+
+
+
+	/**
+	 * Position the cursor before the first element contained in the value of the current element of the given cursor
+	 *
+	 * @param parent the cursor positioned on a constructed element
+	 */
+	public void reset(TLVCursor parent) {
+		reset(parent.buffer, parent.valueOffset, parent.valueLength);
+	}
+
+
+
+	/**
+	 * Move to the next element
+	 *
+	 * @return true if positioned on the next element, false if no element is left
+	 * @throws TLVEncodingException if the element is not correctly encoded or exceeds the range
+	 */
+	public boolean next() throws TLVEncodingException {
+		if (offset >= end) {
+			return false;
+		}
+
+		int i = offset;
+		int t = buffer[i++] & 0xFF;
+
+		if ((t & 0x1F) == 0x1F) {
+			int b;
+			do	{
+				if (i >= end) {
+					throw new TLVEncodingException("Tag exceeds end of buffer");
+				}
+				if (t > 0xFFFFFF) {
+					throw new TLVEncodingException("Tag exceeds 4 bytes");
+				}
+				b = buffer[i++] & 0xFF;
+				t = (t << 8) | b;
+			} while ((b & 0x80) == 0x80);
+		}
+
+		if (i >= end) {
+			throw new TLVEncodingException("Length field exceeds end of buffer");
+		}
+
+		int l = buffer[i++] & 0xFF;
+		if (l > 0x80) {
+			int n = l & 0x7F;
+			if (n > 3) {
+				throw new TLVEncodingException("Length field exceeds 3 bytes");
+			}
+			if (i + n > end) {
+				throw new TLVEncodingException("Length field exceeds end of buffer");
+			}
+			l = 0;
+			while (n-- > 0) {
+				l = (l << 8) | (buffer[i++] & 0xFF);
+			}
+		} else if (l == 0x80) {
+			throw new TLVEncodingException("Indefinite length not supported");
+		}
+
+		if (l > end - i) {
+			throw new TLVEncodingException("Value of tag " + Integer.toHexString(t) + " exceeds end of buffer");
+		}
+
+		tag = t;
+		valueOffset = i;
+		valueLength = l;
+		offset = i + l;
+		return true;
+	}
+
+
+
+	/**
+	 * Return the tag of the current element
+	 *
+	 * @return the tag
+	 */
+	public int getTag() {
+		return tag;
+	}
+
+
+
+	/**
+	 * Return the buffer the cursor operates on
+	 *
+	 * @return the buffer
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+
+
+	/**
+	 * Return the offset of the value of the current element in the buffer
+	 *
+	 * @return the offset
+	 */
+	public int getValueOffset() {
+		return valueOffset;
+	}
+
+
+
+	/**
+	 * Return the length of the value of the current element
+	 *
+	 * @return the length
+	 */
+	public int getValueLength() {
+		return valueLength;
+	}
+
+
+
+	/**
+	 * Return a copy of the value of the current element
+	 *
+	 * @return the value
+	 */
+	public byte[] getValue() {
+		byte[] value = new byte[valueLength];
+		System.arraycopy(buffer, valueOffset, value, 0, valueLength);
+		return value;
+	}
+
+
+
+	/**
+	 * Return the value of the current element as unsigned integer
+	 *
+	 * @return the value
+	 * @throws TLVEncodingException if the value is empty or longer than 4 bytes
+	 */
+	public int getIntValue() throws TLVEncodingException {
+		if ((valueLength < 1) || (valueLength > 4)) {
+			throw new TLVEncodingException("Invalid length " + valueLength + " for integer value");
+		}
+		int v = 0;
+		for (int i = 0; i < valueLength; i++) {
+			v = (v << 8) | (buffer[valueOffset + i] & 0xFF);
+		}
+		return v;
+	}
+}
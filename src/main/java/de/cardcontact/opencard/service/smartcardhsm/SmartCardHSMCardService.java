@@ -37,6 +37,7 @@ import java.security.SignatureException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Vector;
@@ -907,14 +908,12 @@ KeyGenerationCardServiceWithSpec, DecipherCardService, FileSystemSendAPDU {
 	 * 
 	 * @param file the path to the file
 	 * @param offset
-	 * @param length
+	 * @param length the number of bytes to read, 0 or READ_SEVERAL to read up to the end of the file
 	 */
 	@Override
 	public byte[] read(CardFilePath file, int offset, int length)
 	throws CardServiceException, CardTerminalException {
 
-		CommandAPDU com = new CommandAPDU(14);
-		ResponseAPDU rsp = null;
 		int chunksize = MAX_CHUNK_SIZE_READ;
 
 		// Check parameter
@@ -932,36 +931,60 @@ KeyGenerationCardServiceWithSpec, DecipherCardService, FileSystemSendAPDU {
 		}
 		
 		releaseCardChannel();
+
+		// A length of 0 reads the complete file, like READ_SEVERAL
+		boolean several = (length == READ_SEVERAL) || (length == 0);
 		
 		/*
-		 * Read the data in parts of at least 1000 bytes 
+		 * Read the data in parts of at most chunksize bytes 
 		 * to ensure that the length of bytes doesn't exceed 
 		 * the card terminals extended length apdu capabilities.
+		 * The data of each response is copied directly into the result buffer,
+		 * which is allocated once for a known length and doubled when reading several.
 		 */
-		if (length == READ_SEVERAL || length > chunksize) {
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			byte[] part;
-			offset = 0;
-			do {
-				part = read(file, offset, chunksize);
+		byte[] buffer = new byte[several ? chunksize : length];
+		int pos = 0;
 
-				/*
-				 * The byte array's length can only be less or equal 1000.
-				 * If it's less, the end of file has been reached.
-				 */
-				if (part.length == chunksize) {
-					buffer.write(part, 0, part.length);
-					offset += chunksize;
-				} else {					
-					assert(part[part.length - 2] == 0x62);
-					assert(part[part.length - 1] == (byte) 0x82);
-
-					// In case of end of file, the SW '6282' is append at the buffer. Remove it
-					buffer.write(part, 0, part.length - 2);
-					return buffer.toByteArray();
-				}
-			} while(true);						
-		} 
+		while (several || (pos < length)) {
+			int expected = several ? chunksize : Math.min(chunksize, length - pos);
+
+			ResponseAPDU rsp = readBinary(file, offset + pos, expected);
+			int len = rsp.dataLength();
+			boolean eof = rsp.sw() == IsoConstants.RC_EOF;
+
+			if (pos + len > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(pos + len, buffer.length * 2));
+			}
+			pos += rsp.copyDataTo(buffer, pos);
+			rsp.clear();
+
+			// A short response or SW 6282 indicates the end of file
+			if (eof || (len < expected)) {
+				break;
+			}
+		}
+
+		if (pos < buffer.length) {
+			buffer = Arrays.copyOf(buffer, pos);
+		}
+		return buffer;
+	}
+
+
+
+	/**
+	 * Send a single READ BINARY command
+	 *
+	 * @param file the path to the file
+	 * @param offset the offset in the file
+	 * @param length the number of bytes to read
+	 * @return the response with SW 9000 or 6282 (end of file)
+	 */
+	private ResponseAPDU readBinary(CardFilePath file, int offset, int length)
+	throws CardServiceException, CardTerminalException {
+
+		CommandAPDU com = new CommandAPDU(14);
+		ResponseAPDU rsp = null;
 
 		com.append(IsoConstants.CLA_ISO);
 		com.append(IsoConstants.INS_READ_BINARY_ODD);		
@@ -984,18 +1007,10 @@ KeyGenerationCardServiceWithSpec, DecipherCardService, FileSystemSendAPDU {
 			rsp = sendCommandAPDU(AID, com);
 		}
 
-		if (rsp.sw() == IsoConstants.RC_EOF) {
-			byte[] data = rsp.getBytes();
-			rsp.clear();
-			return data;
-		}
-		if (rsp.sw() != IsoConstants.RC_OK) {
+		if ((rsp.sw() != IsoConstants.RC_OK) && (rsp.sw() != IsoConstants.RC_EOF)) {
 			throw new CardServiceUnexpectedStatusWordException("READ BINARY" ,rsp.sw());
 		}
-
-		byte[] data = rsp.data();
-		rsp.clear();
-		return data;
+		return rsp;
 	}
 
 
@@ -18,6 +18,9 @@
 
 package de.cardcontact.opencard.terminal.ctapi4ocf;
 
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
 import opencard.core.terminal.CardID;
 import opencard.core.terminal.CardTerminal;
 import opencard.core.terminal.CardTerminalException;
@@ -29,11 +32,15 @@ import opencard.core.util.HexString;
 import opencard.core.util.Tracer;
 import opencard.opt.terminal.TerminalCommand;
 import de.cardcontact.jni2ctapi.cardterminal_api;
-import de.cardcontact.opencard.terminal.jcopsim.JCOPSimCardTerminal;
 
 /**
  * Implements a CT-API card terminal for OCF.
  * 
+ * The CT-API does not allow concurrent calls for the same terminal number, so all calls to CT_Data
+ * are serialized with ctLock. Each slot has its own lock and its own response buffer, which is reused
+ * for all exchanges with the slot and cleared after each use. Status polling skips a cycle rather than
+ * waiting for a CT_Data call in progress, but waits after MAX_SKIPPED_POLLS consecutive skips, so that
+ * card removal is detected even under continuous APDU traffic.
  */
 public class CTAPICardTerminal extends CardTerminal implements Pollable,
 		TerminalCommand {
@@ -45,6 +52,15 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 	private final static byte CARDDISCONNECTED = 0x03;
 	private final static byte CARDCONNECTED = 0x05;
 
+	/** Size of the response buffer for APDUs: 16384 bytes data and SW1/SW2 */
+	private final static int RESPONSE_BUFFER_SIZE = 16386;
+
+	/** Size of the response buffer for terminal commands */
+	private final static int COMMAND_BUFFER_SIZE = 258;
+
+	/** Number of consecutive skipped polls after which poll() waits for the CT-API */
+	private final static int MAX_SKIPPED_POLLS = 5;
+
 	public final static byte[] requestICC = { (byte) 0x20, (byte) 0x12,
 			(byte) 0x01, (byte) 0x01, (byte) 0x00 };
 	public final static byte[] getStatus = { (byte) 0x20, (byte) 0x13,
@@ -56,9 +72,24 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 	protected cardterminal_api CT;
 	protected char ctn, pn;
 
+	/** Serializes all calls to the CT-API for this terminal number */
+	protected final ReentrantLock ctLock = new ReentrantLock();
+
+	/** Per slot locks for reset and APDU exchange */
+	private Object[] slotLocks;
+
+	/** Per slot response buffers, only used while holding the slot lock */
+	private byte[][] responseBuffers;
+
+	/** Response buffer for terminal commands, only used while holding ctLock */
+	private final byte[] commandBuffer = new byte[COMMAND_BUFFER_SIZE];
+
 	/** Determines if polling is used for this terminal */
 	private boolean polling;
 
+	/** Number of consecutive polls skipped because the CT-API was busy */
+	private volatile int skippedPolls = 0;
+
 	/**
 	 * Create CTAPICardTerminal object
 	 * 
@@ -100,8 +131,11 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 			throw (new CardTerminalException(
 					"CTAPICardTerminal: Already opened."));
 
-		synchronized (this) {
+		ctLock.lock();
+		try {
 			rc = CT.CT_Init(ctn, pn);
+		} finally {
+			ctLock.unlock();
 		}
 
 		if (rc < 0)
@@ -117,6 +151,11 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 		addSlots(len);
 		cardStatus = new byte[len];
 		cardIdTable = new CardID[len];
+		slotLocks = new Object[len];
+		responseBuffers = new byte[len][];
+		for (int i = 0; i < len; i++) {
+			slotLocks[i] = new Object();
+		}
 
 		if (polling) {
 			CardTerminalRegistry.getRegistry().addPollable((Pollable) this);
@@ -137,10 +176,12 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 			CardTerminalRegistry.getRegistry().removePollable((Pollable) this);
 		}
 		
-		synchronized (this) {
-
+		ctLock.lock();
+		try {
 			if (CT.CT_Close(ctn) == 0)
 				termopened = false;
+		} finally {
+			ctLock.unlock();
 		}
 		if (termopened == true) {
 			CardTerminalRegistry.getRegistry().addPollable((Pollable) this);
@@ -160,7 +201,7 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 					"CTAPICardTerminal: isCardPresent(), Terminal not opened."));
 
 		if (!polling) {
-			poll();
+			updateStatus(true);
 		}
 		return cardIdTable[slot] != null;
 	}
@@ -183,41 +224,41 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 	protected CardID internalReset(int slot, int ms)
 			throws CardTerminalException {
 		byte[] response;
-		byte[] buf = new byte[258];
 		int res;
 		byte[] com = { (byte) 0x20, (byte) 0x11, (byte) (slot + 1),
 				(byte) 0x01, (byte) 0x00 };
-		char buflen;
 		CardID cid;
 
 		if (termopened == false)
 			throw (new CardTerminalException(
 					"CTAPICardTerminal: internalReset(), Terminal not opened."));
 
-		cardIdTable[slot] = null;
+		synchronized (slotLocks[slot]) {
+			cardIdTable[slot] = null;
 
-		buflen = (char) buf.length;
-		synchronized (this) {
-			res = CT.CT_Data(ctn, (byte) 1, (byte) 2, (char) com.length, com,
-					buflen, buf);
-		}
+			byte[] buf = getResponseBuffer(slot);
+			try {
+				res = ctData((byte) 1, (byte) 2, com, com.length, COMMAND_BUFFER_SIZE, buf);
 
-		ctracer.debug("internalReset", "CT_Data rc=" + res + " returns " + HexString.hexify(buf));
-		
-		if (res < 0)
-			throw (new CardTerminalException(
-					"CTAPICardTerminal: internalReset(), ERROR=" + res));
+				ctracer.debug("internalReset", "CT_Data rc=" + res + " returns " + HexString.dump(buf, 0, res > 0 ? res : 0));
 
-		if ((res < 2) || ((buf[res - 2] & 0xFF) != 0x90))
-			throw (new CardTerminalException(
-					"CTAPICardTerminal: internalReset(), No card inserted."));
+				if (res < 0)
+					throw (new CardTerminalException(
+							"CTAPICardTerminal: internalReset(), ERROR=" + res));
 
-		response = new byte[res - 2];
-		System.arraycopy(buf, 0, response, 0, res - 2);
+				if ((res < 2) || ((buf[res - 2] & 0xFF) != 0x90))
+					throw (new CardTerminalException(
+							"CTAPICardTerminal: internalReset(), No card inserted."));
 
-		cid = new CardID(this, slot, response);
+				response = Arrays.copyOf(buf, res - 2);
+			} finally {
+				Arrays.fill(buf, 0, COMMAND_BUFFER_SIZE, (byte) 0);
+			}
 
-		cardIdTable[slot] = cid;
+			cid = new CardID(this, slot, response);
+
+			cardIdTable[slot] = cid;
+		}
 
 		return cid;
 	}
@@ -228,53 +269,97 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 	 */
 	protected ResponseAPDU internalSendAPDU(int slot, CommandAPDU capdu, int ms)
 			throws CardTerminalException {
-		byte[] response;
-		char resplen;
 		byte fu;
-		byte[] com;
-		byte[] resp = new byte[16386];
-		int res;
+		int res = 0;
 
 		if (termopened == false)
 			throw (new CardTerminalException(
 					"CTAPICardTerminal: internalSendAPDU(), Terminal not opened."));
 
-		com = capdu.getBytes();
-
-		resplen = (char) resp.length;
-
 		fu = 0;
 		if (slot > 0) {
 			fu = (byte) (1 + slot);
 		}
-		synchronized (this) {
-			res = CT.CT_Data(ctn, fu, (byte) 2, (char) com.length, com,
-					resplen, resp);
+
+		synchronized (slotLocks[slot]) {
+			byte[] resp = getResponseBuffer(slot);
+			try {
+				res = ctData(fu, (byte) 2, capdu.getBuffer(), capdu.getLength(), resp.length, resp);
+
+				if (res <= 0) {
+					throw (new CardTerminalException(
+							"CTAPICardTerminal: internalSendAPDU(), Error=" + res));
+				}
+
+				return new ResponseAPDU(Arrays.copyOf(resp, res));
+			} finally {
+				Arrays.fill(resp, 0, res > 0 ? res : resp.length, (byte) 0);
+			}
 		}
+	}
 
-		if (res <= 0) {
-			throw (new CardTerminalException(
-					"CTAPICardTerminal: internalSendAPDU(), Error=" + res));
+	/**
+	 * Return the reusable response buffer for the slot. Must be called while holding the slot lock.
+	 * 
+	 * @param slot the slot number
+	 * @return the response buffer
+	 */
+	private byte[] getResponseBuffer(int slot) {
+		if (responseBuffers[slot] == null) {
+			responseBuffers[slot] = new byte[RESPONSE_BUFFER_SIZE];
 		}
+		return responseBuffers[slot];
+	}
 
-		response = new byte[res];
-		System.arraycopy(resp, 0, response, 0, res);
-		return new ResponseAPDU(response);
+	/**
+	 * Call CT_Data while holding ctLock
+	 * 
+	 * @param dad destination address
+	 * @param sad source address
+	 * @param com the command buffer
+	 * @param lenc the length of the command in com
+	 * @param lenr the maximum length of the response
+	 * @param resp the response buffer
+	 * @return the length of the response or a negative error code
+	 */
+	protected int ctData(byte dad, byte sad, byte[] com, int lenc, int lenr, byte[] resp) {
+		ctLock.lock();
+		try {
+			return CT.CT_Data(ctn, dad, sad, (char) lenc, com, (char) lenr, resp);
+		} finally {
+			ctLock.unlock();
+		}
 	}
 
 	/**
 	 * Poll for status change
 	 * 
-	 * This is called from OCF every second
+	 * This is called from OCF every second. If another thread is currently using the
+	 * CT-API, the status is checked at the next call instead. After MAX_SKIPPED_POLLS
+	 * consecutive skips the call waits for the CT-API.
 	 * 
 	 */
 	public void poll() throws CardTerminalException {
+		updateStatus(skippedPolls >= MAX_SKIPPED_POLLS);
+	}
+
+	/**
+	 * Query slot status and notify listeners about changes
+	 * 
+	 * @param wait true to wait for a CT_Data call in progress, false to skip the update
+	 */
+	private void updateStatus(boolean wait) throws CardTerminalException {
 
 		int i;
 		boolean updateStatus = false;
 		byte[] newStatus;
 
-		newStatus = getStatus();
+		newStatus = wait ? getStatus() : tryGetStatus();
+		if (newStatus == null) {
+			skippedPolls++;
+			return;
+		}
+		skippedPolls = 0;
 
 		for (i = 0; i < newStatus.length; i++) {
 //			ctracer.debug("poll", "Status " + newStatus[i] + " on slot " + i);
@@ -306,31 +391,25 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 	 * 
 	 */
 	public byte[] sendTerminalCommand(byte[] com) throws CardTerminalException {
-		byte[] response;
-		byte[] resp;
-		char buflen;
 		int res;
 
 		if (termopened == false)
 			throw (new CardTerminalException(
 					"CTAPICardTerminal: sendTerminalCommand(), Terminal not opened."));
 
-		resp = new byte[258];
-		buflen = (char) resp.length;
-
-		synchronized (this) {
-			res = CT.CT_Data(ctn, (byte) 1, (byte) 2, (char) com.length, com,
-					buflen, resp);
-		}
-
-		if (res < 2)
-			throw (new CardTerminalException(
-					"CTAPICardTerminal: internalSendAPDU(), ERROR!"));
+		ctLock.lock();
+		try {
+			res = ctData((byte) 1, (byte) 2, com, com.length, commandBuffer.length, commandBuffer);
 
-		response = new byte[res];
-		System.arraycopy(resp, 0, response, 0, res);
+			if (res < 2)
+				throw (new CardTerminalException(
+						"CTAPICardTerminal: internalSendAPDU(), ERROR!"));
 
-		return response;
+			return Arrays.copyOf(commandBuffer, res);
+		} finally {
+			Arrays.fill(commandBuffer, (byte) 0);
+			ctLock.unlock();
+		}
 	}
 
 	/**
@@ -341,30 +420,59 @@ public class CTAPICardTerminal extends CardTerminal implements Pollable,
 	 * @throws CardTerminalException
 	 */
 	public byte[] getStatus() throws CardTerminalException {
-		byte[] buf = new byte[258];
-		char lenbuf = (char) buf.length;
-		int i, len;
-
-		synchronized (this) {
-			len = CT.CT_Data(ctn, (byte) 1, (byte) 2, (char) getStatus.length,
-					getStatus, lenbuf, buf);
+		ctLock.lock();
+		try {
+			return readStatus();
+		} finally {
+			ctLock.unlock();
 		}
+	}
 
-		if (len <= 0) {
-			throw (new CardTerminalException(
-					"CTAPICardTerminal: GetStatus() failed"));
+	/**
+	 * Issue STATUS command if the CT-API is not in use by another thread
+	 * 
+	 * @return Byte array of slot status or null if the CT-API is busy
+	 * 
+	 * @throws CardTerminalException
+	 */
+	private byte[] tryGetStatus() throws CardTerminalException {
+		if (!ctLock.tryLock()) {
+			ctracer.debug("tryGetStatus", "CT-API busy, status update skipped");
+			return null;
 		}
-		
-		i = 0;
-		if (buf[0] == (byte) 0x80) {
-			len = buf[1];
-			i += 2;
-		} else {
-			len -= 2;
+		try {
+			return readStatus();
+		} finally {
+			ctLock.unlock();
 		}
+	}
 
-		byte[] response = new byte[len];
-		System.arraycopy(buf, i, response, 0, len);
-		return response;
+	/**
+	 * Issue STATUS command. Must be called while holding ctLock.
+	 */
+	private byte[] readStatus() throws CardTerminalException {
+		byte[] buf = commandBuffer;
+		int i, len;
+
+		try {
+			len = ctData((byte) 1, (byte) 2, getStatus, getStatus.length, buf.length, buf);
+
+			if (len <= 0) {
+				throw (new CardTerminalException(
+						"CTAPICardTerminal: GetStatus() failed"));
+			}
+
+			i = 0;
+			if (buf[0] == (byte) 0x80) {
+				len = buf[1];
+				i += 2;
+			} else {
+				len -= 2;
+			}
+
+			return Arrays.copyOfRange(buf, i, i + len);
+		} finally {
+			Arrays.fill(buf, (byte) 0);
+		}
 	}
 }
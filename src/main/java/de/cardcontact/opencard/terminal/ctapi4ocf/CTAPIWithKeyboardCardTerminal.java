@@ -89,9 +89,7 @@ public class CTAPIWithKeyboardCardTerminal extends CTAPICardTerminal implements
         char buflen = (char)buf.length;
         int res;
         
-        synchronized (this) {
-            res = CT.CT_Data(ctn, (byte) 1, (byte) 2, (char)command.getLength(), command.getBuffer(), buflen, buf);
-        }
+        res = ctData((byte) 1, (byte) 2, command.getBuffer(), command.getLength(), buflen, buf);
 
         if (res < 0) {
             throw (new CardTerminalException("CTAPICardTerminal: PERFORM VERIFICATION failed, ERROR=" + res));
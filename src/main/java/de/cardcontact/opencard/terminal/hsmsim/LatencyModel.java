@@ -0,0 +1,173 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.hsmsim;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Model for the time a card needs to process a command
+ *
+ * The latency of a command is the sum of a fixed time for the instruction, the transfer time
+ * for command and response data and a random jitter. The model is configured with a comma
+ * separated list of settings:
+ *
+ * <pre>
+ * default=5,68=120,46=800,perbyte=0.09,jitter=10
+ * </pre>
+ *
+ * <ul>
+ * <li>default - Time in ms for instructions without a specific setting, regardless of its position in the list</li>
+ * <li>xx - Time in ms for the instruction with the hexadecimal code xx</li>
+ * <li>perbyte - Transfer time in ms for each byte of command and response</li>
+ * <li>jitter - Maximum random time in ms added to each command</li>
+ * </ul>
+ */
+public class LatencyModel {
+
+	/** Time for individual instructions, NaN if the default applies */
+	private final double[] insLatency = new double[256];
+	private double defaultLatency = 0;
+	private double perByte = 0;
+	private double jitter = 0;
+	private final Random random = new Random();
+
+
+
+	/**
+	 * Create a model without any delay
+	 */
+	public LatencyModel() {
+		Arrays.fill(insLatency, Double.NaN);
+	}
+
+
+
+	/**
+	 * Create a model from the given settings
+	 *
+	 * @param spec comma separated list of settings or null for no delay
+	 * @return the model
+	 * @throws IllegalArgumentException if a setting is invalid
+	 */
+	public static LatencyModel parse(String spec) {
+		LatencyModel model = new LatencyModel();
+
+		if ((spec == null) || (spec.trim().length() == 0)) {
+			return model;
+		}
+
+		for (String setting : spec.split(",")) {
+			int i = setting.indexOf('=');
+			if (i < 0) {
+				throw new IllegalArgumentException("Invalid latency setting " + setting);
+			}
+			String key = setting.substring(0, i).trim();
+			double value = Double.parseDouble(setting.substring(i + 1).trim());
+
+			if (key.equals("default")) {
+				model.setDefaultLatency(value);
+			} else if (key.equals("perbyte")) {
+				model.setPerByteLatency(value);
+			} else if (key.equals("jitter")) {
+				model.setJitter(value);
+			} else {
+				model.setLatency(Integer.parseInt(key, 16), value);
+			}
+		}
+		return model;
+	}
+
+
+
+	/**
+	 * Set the time for all instructions without an individual setting
+	 *
+	 * @param ms the time in ms
+	 */
+	public void setDefaultLatency(double ms) {
+		defaultLatency = ms;
+	}
+
+
+
+	/**
+	 * Set the time for an instruction, which takes precedence over the default
+	 *
+	 * @param ins the instruction byte
+	 * @param ms the time in ms
+	 */
+	public void setLatency(int ins, double ms) {
+		insLatency[ins & 0xFF] = ms;
+	}
+
+
+
+	/**
+	 * Set the transfer time for each byte of command and response
+	 *
+	 * @param ms the time in ms
+	 */
+	public void setPerByteLatency(double ms) {
+		perByte = ms;
+	}
+
+
+
+	/**
+	 * Set the maximum random time added to each command
+	 *
+	 * @param ms the time in ms
+	 */
+	public void setJitter(double ms) {
+		jitter = ms;
+	}
+
+
+
+	/**
+	 * Return the time the card needs for the command
+	 *
+	 * @param ins the instruction byte
+	 * @param commandLength the length of the command APDU
+	 * @param responseLength the length of the response APDU
+	 * @return the time in ms
+	 */
+	public long getLatency(int ins, int commandLength, int responseLength) {
+		double ms = insLatency[ins & 0xFF];
+
+		if (Double.isNaN(ms)) {
+			ms = defaultLatency;
+		}
+		ms += perByte * (commandLength + responseLength);
+
+		if (jitter > 0) {
+			synchronized (random) {
+				ms += random.nextDouble() * jitter;
+			}
+		}
+		return (long)ms;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.hsmsim;
+
+import java.security.GeneralSecurityException;
+
+import opencard.core.terminal.CardID;
+import opencard.core.terminal.CardTerminal;
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CommandAPDU;
+import opencard.core.terminal.ResponseAPDU;
+import opencard.core.util.Tracer;
+
+/**
+ * Card terminal with a simulated SmartCard-HSM in each slot
+ *
+ * The terminal allows load tests of the complete stack without physical devices. Each slot contains
+ * an independent SmartCardHSMSimulator, so commands sent to different slots are processed in parallel,
+ * while commands to the same slot are serialized as with a real device.
+ *
+ * The time a real device needs to process a command is emulated with a LatencyModel. The delay
+ * is spent while holding the slot, so concurrent callers queue up as they would at a real device.
+ */
+public class SmartCardHSMSimCardTerminal extends CardTerminal {
+
+	private final static Tracer ctracer = new Tracer(SmartCardHSMSimCardTerminal.class);
+
+	private final SmartCardHSMSimulator[] simulators;
+
+	private LatencyModel latencyModel;
+
+	private boolean opened = false;
+
+
+
+	/**
+	 * Create terminal with simulated devices
+	 *
+	 * @param name the friendly name of the terminal
+	 * @param type the type of the terminal
+	 * @param address the address of the terminal
+	 * @param slots the number of slots, each containing a simulated device
+	 * @param latencyModel the model for the command processing time or null for no delay
+	 * @throws CardTerminalException if a simulator can not be created
+	 */
+	public SmartCardHSMSimCardTerminal(String name, String type, String address, int slots, LatencyModel latencyModel) throws CardTerminalException {
+		super(name, type, address);
+
+		if (slots < 1) {
+			throw new CardTerminalException("SmartCardHSMSimCardTerminal: At least one slot required");
+		}
+
+		simulators = new SmartCardHSMSimulator[slots];
+		try	{
+			for (int i = 0; i < slots; i++) {
+				simulators[i] = new SmartCardHSMSimulator("DESIMHSM" + String.format("%05d", i));
+			}
+		}
+		catch(GeneralSecurityException e) {
+			throw new CardTerminalException("SmartCardHSMSimCardTerminal: Simulator could not be created. Reason: " + e.getMessage());
+		}
+
+		setLatencyModel(latencyModel);
+		addSlots(slots);
+	}
+
+
+
+	/**
+	 * Set the model for the command processing time
+	 *
+	 * @param latencyModel the model or null for no delay
+	 */
+	public void setLatencyModel(LatencyModel latencyModel) {
+		this.latencyModel = latencyModel == null ? new LatencyModel() : latencyModel;
+	}
+
+
+
+	/**
+	 * Return the simulated device in the given slot
+	 *
+	 * @param slotID the slot number
+	 * @return the simulator
+	 */
+	public SmartCardHSMSimulator getSimulator(int slotID) {
+		return simulators[slotID];
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#getCardID(int)
+	 */
+	public CardID getCardID(int slotID) throws CardTerminalException {
+		return new CardID(simulators[slotID].getATR());
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#isCardPresent(int)
+	 */
+	public boolean isCardPresent(int slotID) throws CardTerminalException {
+		return true;
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#open()
+	 */
+	public synchronized void open() throws CardTerminalException {
+		if (opened) {
+			return;
+		}
+		opened = true;
+
+		for (int i = 0; i < simulators.length; i++) {
+			cardInserted(i);
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#close()
+	 */
+	public synchronized void close() throws CardTerminalException {
+		if (!opened) {
+			return;
+		}
+		opened = false;
+
+		for (int i = 0; i < simulators.length; i++) {
+			cardRemoved(i);
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#internalReset(int, int)
+	 */
+	protected CardID internalReset(int slot, int ms) throws CardTerminalException {
+		simulators[slot].reset();
+		return getCardID(slot);
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#internalSendAPDU(int, opencard.core.terminal.CommandAPDU, int)
+	 */
+	protected ResponseAPDU internalSendAPDU(int slot, CommandAPDU capdu, int ms) throws CardTerminalException {
+		SmartCardHSMSimulator sim = simulators[slot];
+		byte[] rsp;
+
+		synchronized (sim) {
+			rsp = sim.process(capdu.getBuffer(), capdu.getLength());
+
+			long delay = latencyModel.getLatency(capdu.getByte(1), capdu.getLength(), rsp.length);
+			if (delay > 0) {
+				try	{
+					Thread.sleep(delay);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CardTerminalException("SmartCardHSMSimCardTerminal: Interrupted while processing APDU");
+				}
+			}
+		}
+
+		ctracer.debug("internalSendAPDU", "Slot " + slot + " INS " + Integer.toHexString(capdu.getByte(1) & 0xFF) + " SW " + Integer.toHexString(((rsp[rsp.length - 2] & 0xFF) << 8) | (rsp[rsp.length - 1] & 0xFF)));
+		return new ResponseAPDU(rsp);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.hsmsim;
+
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CardTerminalFactory;
+import opencard.core.terminal.CardTerminalRegistry;
+import opencard.core.terminal.TerminalInitException;
+
+/**
+ * Factory for card terminals with simulated SmartCard-HSM devices
+ *
+ * Configuration:
+ * <pre>
+ * OpenCard.terminals = de.cardcontact.opencard.terminal.hsmsim.SmartCardHSMSimCardTerminalFactory|HSMSim|HSMSIM|0|4|default=5,68=120,46=800,perbyte=0.09
+ * </pre>
+ *
+ * The fourth parameter is the number of slots, the fifth the latency model as described in LatencyModel.
+ */
+public class SmartCardHSMSimCardTerminalFactory implements CardTerminalFactory {
+
+
+
+	/**
+	 * Constructor
+	 */
+	public SmartCardHSMSimCardTerminalFactory() {
+		super();
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminalFactory#createCardTerminals(opencard.core.terminal.CardTerminalRegistry, java.lang.String[])
+	 */
+	public void createCardTerminals(CardTerminalRegistry ctr, String[] terminalInfo) throws CardTerminalException, TerminalInitException {
+
+		int slots = 1;
+		LatencyModel latencyModel = null;
+
+		if (terminalInfo.length < 3) {
+			throw new TerminalInitException("SmartCardHSMSimCardTerminalFactory needs at least 3 parameters.");
+		}
+
+		if (!terminalInfo[TERMINAL_TYPE_ENTRY].equals("HSMSIM")) {
+			throw new TerminalInitException("Requested Terminal type not known.");
+		}
+
+		try	{
+			if (terminalInfo.length >= 4) {
+				slots = Integer.parseInt(terminalInfo[3]);
+			}
+
+			if (terminalInfo.length >= 5) {
+				latencyModel = LatencyModel.parse(terminalInfo[4]);
+			}
+		}
+		catch(IllegalArgumentException e) {
+			throw new TerminalInitException("Invalid parameter for SmartCardHSMSimCardTerminalFactory: " + e.getMessage());
+		}
+
+		try {
+			ctr.add(new SmartCardHSMSimCardTerminal(terminalInfo[TERMINAL_NAME_ENTRY], terminalInfo[TERMINAL_TYPE_ENTRY], terminalInfo[TERMINAL_ADDRESS_ENTRY], slots, latencyModel));
+		}
+		catch (Exception e) {
+			throw new TerminalInitException("SmartCardHSMSimCardTerminal could not be added to card terminal registry! " + e.getMessage());
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminalFactory#open()
+	 */
+	public void open() throws CardTerminalException {
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminalFactory#close()
+	 */
+	public void close() throws CardTerminalException {
+	}
+}
@@ -0,0 +1,1046 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.hsmsim;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import de.cardcontact.opencard.service.remoteclient.TLVCursor;
+import de.cardcontact.tlv.ConstructedTLV;
+import de.cardcontact.tlv.PrimitiveTLV;
+import de.cardcontact.tlv.TLVEncodingException;
+import opencard.core.util.HexString;
+import opencard.core.util.Tracer;
+
+/**
+ * Software emulation of a SmartCard-HSM
+ *
+ * The simulator implements the subset of the SmartCard-HSM command set used by the SmartCardHSMCardService.
+ * Files and keys are held in memory and private key operations are performed with software keys. The
+ * state is kept until the simulator is garbage collected, a reset only clears the PIN verification status.
+ *
+ * Supported commands:
+ * <ul>
+ * <li>SELECT by AID and by file identifier</li>
+ * <li>ENUMERATE OBJECTS</li>
+ * <li>READ BINARY, UPDATE BINARY with odd instruction byte and DELETE FILE</li>
+ * <li>VERIFY, CHANGE REFERENCE DATA and RESET RETRY COUNTER for the User PIN</li>
+ * <li>INITIALIZE DEVICE and IMPORT DKEK SHARE</li>
+ * <li>GENERATE ASYMMETRIC KEY PAIR for RSA and EC keys</li>
+ * <li>SIGN, DECIPHER and ECDH</li>
+ * <li>WRAP KEY and UNWRAP KEY</li>
+ * <li>GET CHALLENGE</li>
+ * </ul>
+ *
+ * The format of wrapped keys is specific to the simulator and not compatible with a real device.
+ * Secure messaging is not supported.
+ */
+public class SmartCardHSMSimulator {
+
+	private final static Tracer ctracer = new Tracer(SmartCardHSMSimulator.class);
+
+	/** ATR with the historical bytes recognized by the SmartCardHSMCardServiceFactory */
+	public final static byte[] ATR = HexString.parseHexString("3BFE1800008131FE458031815448534D31738021408107FA");
+
+	/** Application identifier of the SmartCard-HSM */
+	public final static byte[] AID = HexString.parseHexString("E82B0601040181C31F0201");
+
+	public final static String DEFAULT_PIN = "648219";
+	public final static String DEFAULT_SOPIN = "3537363231383830";
+	public final static int DEFAULT_RETRY_COUNTER = 3;
+
+	private final static int SO_RETRY_COUNTER = 15;
+
+	private final static int DEVICE_CERTIFICATE = 0x2F02;
+
+	private final static int KEYPREFIX = 0xCC;
+
+	private final static byte[] ID_TA_RSA_V1_5_SHA_256 = HexString.parseHexString("04007F00070202020102");
+	private final static byte[] ID_TA_ECDSA_SHA_256 = HexString.parseHexString("04007F00070202020203");
+
+	/** Key type of wrapped RSA keys */
+	private final static byte KEYTYPE_RSA = 5;
+
+	/** Key type of wrapped EC keys */
+	private final static byte KEYTYPE_EC = 12;
+
+	private final static int SW_OK = 0x9000;
+	private final static int SW_EOF = 0x6282;
+	private final static int SW_WRONG_LENGTH = 0x6700;
+	private final static int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+	private final static int SW_AUTHENTICATION_METHOD_BLOCKED = 0x6983;
+	private final static int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+	private final static int SW_WRONG_DATA = 0x6A80;
+	private final static int SW_FILE_NOT_FOUND = 0x6A82;
+	private final static int SW_INCORRECT_P1P2 = 0x6A86;
+	private final static int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
+	private final static int SW_WRONG_P1P2 = 0x6B00;
+	private final static int SW_INS_NOT_SUPPORTED = 0x6D00;
+	private final static int SW_CLA_NOT_SUPPORTED = 0x6E00;
+	private final static int SW_UNKNOWN = 0x6F00;
+
+	private final static Provider provider = new BouncyCastleProvider();
+
+	private final SecureRandom random = new SecureRandom();
+
+	/** Transparent files by file identifier */
+	private final Map<Integer, byte[]> files = new TreeMap<Integer, byte[]>();
+
+	/** Private keys by key identifier */
+	private final Map<Integer, PrivateKey> keys = new TreeMap<Integer, PrivateKey>();
+
+	private final KeyPair deviceKey;
+	private final byte[] deviceCertificate;
+
+	private byte[] pin;
+	private byte[] sopin;
+	private int pinRetries;
+	private int pinRetryCounter;
+	private int sopinRetryCounter;
+	private boolean pinVerified = false;
+
+	private byte[] dkek;
+	private int dkekShares;
+	private int dkekOutstanding;
+
+
+
+	/**
+	 * Create a simulated SmartCard-HSM, initialized with the default PIN and SO-PIN
+	 *
+	 * @param deviceName the certificate holder reference of the device authentication certificate
+	 * @throws GeneralSecurityException if the device key can not be generated
+	 */
+	public SmartCardHSMSimulator(String deviceName) throws GeneralSecurityException {
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("EC", provider);
+		gen.initialize(new ECGenParameterSpec("brainpoolP256r1"), random);
+		deviceKey = gen.generateKeyPair();
+
+		try	{
+			deviceCertificate = createDeviceCertificate(deviceName.getBytes());
+		}
+		catch(TLVEncodingException e) {
+			throw new GeneralSecurityException("Device certificate could not be encoded", e);
+		}
+
+		initialize(DEFAULT_PIN.getBytes(), HexString.parseHexString(DEFAULT_SOPIN), DEFAULT_RETRY_COUNTER, 0);
+	}
+
+
+
+	/**
+	 * Return the answer to reset of the simulated device
+	 *
+	 * @return the ATR
+	 */
+	public byte[] getATR() {
+		return ATR.clone();
+	}
+
+
+
+	/**
+	 * Reset the simulated device, which clears the PIN verification status
+	 */
+	public synchronized void reset() {
+		pinVerified = false;
+	}
+
+
+
+	/**
+	 * Process a command APDU and return the response APDU
+	 *
+	 * @param apdu the buffer containing the command APDU
+	 * @param length the length of the command APDU
+	 * @return the response APDU
+	 */
+	public synchronized byte[] process(byte[] apdu, int length) {
+		try	{
+			Command com = new Command(apdu, length);
+
+			if ((com.cla & 0x7F) != 0) {
+				throw new CardStatusException(SW_CLA_NOT_SUPPORTED);
+			}
+
+			switch(com.ins) {
+			case 0xA4: return select(com);
+			case 0x58: return enumerateObjects(com);
+			case 0xB1: return readBinary(com);
+			case 0xD7: return updateBinary(com);
+			case 0xE4: return deleteFile(com);
+			case 0x20: return verify(com);
+			case 0x24: return changeReferenceData(com);
+			case 0x2C: return resetRetryCounter(com);
+			case 0x50: return initializeDevice(com);
+			case 0x52: return importDKEKShare(com);
+			case 0x46: return generateKeyPair(com);
+			case 0x68: return sign(com);
+			case 0x62: return decipher(com);
+			case 0x72: return wrapKey(com);
+			case 0x74: return unwrapKey(com);
+			case 0x84: return getChallenge(com);
+			default:
+				throw new CardStatusException(SW_INS_NOT_SUPPORTED);
+			}
+		}
+		catch(CardStatusException e) {
+			return response(null, e.sw);
+		}
+		catch(TLVEncodingException e) {
+			ctracer.debug("process", e);
+			return response(null, SW_WRONG_DATA);
+		}
+		catch(GeneralSecurityException | RuntimeException e) {
+			ctracer.error("process", e);
+			return response(null, SW_UNKNOWN);
+		}
+	}
+
+
+
+	private byte[] select(Command com) throws CardStatusException {
+		if (com.p1 == 0x04) {
+			if (!Arrays.equals(AID, com.data)) {
+				throw new CardStatusException(SW_FILE_NOT_FOUND);
+			}
+			return response(null, SW_OK);
+		}
+
+		if (com.data.length != 2) {
+			throw new CardStatusException(SW_FILE_NOT_FOUND);
+		}
+		int fid = ((com.data[0] & 0xFF) << 8) | (com.data[1] & 0xFF);
+		if (!files.containsKey(fid)) {
+			throw new CardStatusException(SW_FILE_NOT_FOUND);
+		}
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] enumerateObjects(Command com) {
+		TreeSet<Integer> fids = new TreeSet<Integer>(files.keySet());
+		for (Integer kid : keys.keySet()) {
+			fids.add((KEYPREFIX << 8) | kid);
+		}
+
+		byte[] list = new byte[fids.size() << 1];
+		int i = 0;
+		for (Integer fid : fids) {
+			list[i++] = (byte)(fid >> 8);
+			list[i++] = (byte)(int)fid;
+		}
+		return response(list, SW_OK);
+	}
+
+
+
+	private byte[] readBinary(Command com) throws CardStatusException, TLVEncodingException {
+		int fid = com.getP1P2();
+		if ((fid >> 8) == KEYPREFIX) {
+			throw new CardStatusException(SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		byte[] file = files.get(fid);
+		if (file == null) {
+			throw new CardStatusException(SW_FILE_NOT_FOUND);
+		}
+
+		int offset = getOffset(com);
+		if (offset > file.length) {
+			throw new CardStatusException(SW_WRONG_P1P2);
+		}
+
+		int len = Math.min(com.ne, file.length - offset);
+		return response(Arrays.copyOfRange(file, offset, offset + len), len < com.ne ? SW_EOF : SW_OK);
+	}
+
+
+
+	private byte[] updateBinary(Command com) throws CardStatusException, TLVEncodingException {
+		assertPINVerified();
+
+		int fid = com.getP1P2();
+		if ((fid >> 8) == KEYPREFIX) {
+			throw new CardStatusException(SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		TLVCursor cursor = new TLVCursor();
+		cursor.reset(com.data, 0, com.data.length);
+
+		int offset = 0;
+		byte[] data = null;
+		while (cursor.next()) {
+			if (cursor.getTag() == 0x54) {
+				offset = cursor.getIntValue();
+			} else if (cursor.getTag() == 0x53) {
+				data = cursor.getValue();
+			}
+		}
+		if (data == null) {
+			throw new CardStatusException(SW_WRONG_DATA);
+		}
+
+		byte[] file = files.get(fid);
+		if (file == null) {
+			file = new byte[0];
+		}
+		if (offset > file.length) {
+			throw new CardStatusException(SW_WRONG_P1P2);
+		}
+		file = Arrays.copyOf(file, Math.max(file.length, offset + data.length));
+		System.arraycopy(data, 0, file, offset, data.length);
+		files.put(fid, file);
+
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] deleteFile(Command com) throws CardStatusException {
+		assertPINVerified();
+
+		if ((com.p1 != 0x02) || (com.data.length != 2)) {
+			throw new CardStatusException(SW_INCORRECT_P1P2);
+		}
+
+		int fid = ((com.data[0] & 0xFF) << 8) | (com.data[1] & 0xFF);
+		boolean found;
+		if ((fid >> 8) == KEYPREFIX) {
+			found = keys.remove(fid & 0xFF) != null;
+		} else {
+			found = files.remove(fid) != null;
+		}
+		if (!found) {
+			throw new CardStatusException(SW_FILE_NOT_FOUND);
+		}
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] verify(Command com) throws CardStatusException {
+		if (com.p2 != 0x81) {
+			throw new CardStatusException(SW_REFERENCED_DATA_NOT_FOUND);
+		}
+
+		if (com.data.length == 0) {
+			if (pinVerified) {
+				return response(null, SW_OK);
+			}
+			if (pinRetryCounter == 0) {
+				throw new CardStatusException(SW_AUTHENTICATION_METHOD_BLOCKED);
+			}
+			throw new CardStatusException(0x63C0 | pinRetryCounter);
+		}
+
+		checkPIN(com.data);
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] changeReferenceData(Command com) throws CardStatusException {
+		if (com.p2 != 0x81) {
+			throw new CardStatusException(SW_REFERENCED_DATA_NOT_FOUND);
+		}
+		if (com.data.length <= pin.length) {
+			throw new CardStatusException(SW_WRONG_LENGTH);
+		}
+
+		checkPIN(Arrays.copyOf(com.data, pin.length));
+		pin = Arrays.copyOfRange(com.data, pin.length, com.data.length);
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] resetRetryCounter(Command com) throws CardStatusException {
+		if (com.p2 != 0x81) {
+			throw new CardStatusException(SW_REFERENCED_DATA_NOT_FOUND);
+		}
+		if ((com.p1 > 1) || (com.data.length < sopin.length) || ((com.p1 == 1) && (com.data.length != sopin.length))) {
+			throw new CardStatusException(SW_WRONG_LENGTH);
+		}
+
+		checkSOPIN(Arrays.copyOf(com.data, sopin.length));
+
+		if (com.p1 == 0) {
+			pin = Arrays.copyOfRange(com.data, sopin.length, com.data.length);
+		}
+		pinRetryCounter = pinRetries;
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] initializeDevice(Command com) throws CardStatusException, TLVEncodingException {
+		TLVCursor cursor = new TLVCursor();
+		cursor.reset(com.data, 0, com.data.length);
+
+		byte[] newPIN = null;
+		byte[] initCode = null;
+		int retries = DEFAULT_RETRY_COUNTER;
+		int shares = 0;
+
+		while (cursor.next()) {
+			switch(cursor.getTag()) {
+			case 0x81: newPIN = cursor.getValue(); break;
+			case 0x82: initCode = cursor.getValue(); break;
+			case 0x91: retries = cursor.getIntValue(); break;
+			case 0x92: shares = cursor.getIntValue(); break;
+			}
+		}
+
+		if ((newPIN == null) || (initCode == null)) {
+			throw new CardStatusException(SW_WRONG_DATA);
+		}
+
+		checkSOPIN(initCode);
+		initialize(newPIN, initCode, retries, shares);
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] importDKEKShare(Command com) throws CardStatusException {
+		if (com.data.length != 32) {
+			throw new CardStatusException(SW_WRONG_LENGTH);
+		}
+		if (dkekOutstanding == 0) {
+			throw new CardStatusException(SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		for (int i = 0; i < dkek.length; i++) {
+			dkek[i] ^= com.data[i];
+		}
+		dkekOutstanding--;
+
+		byte[] rsp = new byte[14];
+		rsp[0] = (byte)0x90;
+		rsp[1] = 0x02;
+		rsp[2] = (byte)dkekShares;
+		rsp[3] = (byte)dkekOutstanding;
+		rsp[4] = (byte)0xA2;
+		rsp[5] = 0x08;
+		System.arraycopy(getDKEKCheckValue(), 0, rsp, 6, 8);
+		return response(rsp, SW_OK);
+	}
+
+
+
+	private byte[] generateKeyPair(Command com) throws CardStatusException, TLVEncodingException, GeneralSecurityException {
+		assertPINVerified();
+
+		int kid = com.p1;
+		if (kid == 0) {
+			throw new CardStatusException(SW_INCORRECT_P1P2);
+		}
+
+		TLVCursor cursor = new TLVCursor();
+		TLVCursor pukCursor = new TLVCursor();
+		cursor.reset(com.data, 0, com.data.length);
+
+		byte[] car = null;
+		byte[] chr = null;
+		byte[] outerCar = null;
+		byte[] oid = null;
+		BigInteger exponent = null;
+		int keySize = 0;
+		BigInteger[] domain = new BigInteger[4];
+		byte[] basePoint = null;
+		int cofactor = 1;
+
+		while (cursor.next()) {
+			switch(cursor.getTag()) {
+			case 0x42: car = cursor.getValue(); break;
+			case 0x5F20: chr = cursor.getValue(); break;
+			case 0x45: outerCar = cursor.getValue(); break;
+			case 0x7F49:
+				pukCursor.reset(cursor);
+				while (pukCursor.next()) {
+					int tag = pukCursor.getTag();
+					if (tag == 0x06) {
+						oid = pukCursor.getValue();
+					} else if ((tag >= 0x81) && (tag <= 0x85) && (tag != 0x84)) {
+						domain[tag == 0x85 ? 3 : tag - 0x81] = new BigInteger(1, pukCursor.getValue());
+					} else if (tag == 0x84) {
+						basePoint = pukCursor.getValue();
+					} else if (tag == 0x87) {
+						cofactor = pukCursor.getIntValue();
+					} else if (tag == 0x02) {
+						keySize = pukCursor.getIntValue();
+					}
+				}
+				break;
+			}
+		}
+
+		if (chr == null) {
+			throw new CardStatusException(SW_WRONG_DATA);
+		}
+
+		// The key type is defined by the domain parameter, the OID is optional
+		boolean isRSA = keySize > 0;
+		if ((oid == null) || (oid.length == 0)) {
+			oid = isRSA ? ID_TA_RSA_V1_5_SHA_256 : ID_TA_ECDSA_SHA_256;
+		}
+
+		KeyPairGenerator gen;
+		if (isRSA) {
+			exponent = domain[1] == null ? RSAKeyGenParameterSpec.F4 : domain[1];
+			gen = KeyPairGenerator.getInstance("RSA", provider);
+			gen.initialize(new RSAKeyGenParameterSpec(keySize, exponent), random);
+		} else {
+			if ((basePoint == null) || (domain[0] == null) || (domain[3] == null)) {
+				throw new CardStatusException(SW_WRONG_DATA);
+			}
+			int l = (basePoint.length - 1) >> 1;
+			ECPoint g = new ECPoint(new BigInteger(1, Arrays.copyOfRange(basePoint, 1, 1 + l)),
+					new BigInteger(1, Arrays.copyOfRange(basePoint, 1 + l, basePoint.length)));
+			EllipticCurve curve = new EllipticCurve(new ECFieldFp(domain[0]), domain[1], domain[2]);
+			gen = KeyPairGenerator.getInstance("EC", provider);
+			gen.initialize(new ECParameterSpec(curve, g, domain[3], cofactor), random);
+		}
+
+		KeyPair kp = gen.generateKeyPair();
+
+		ConstructedTLV body = new ConstructedTLV(0x7F4E);
+		body.add(new PrimitiveTLV(0x5F29, new byte[] { 0 }));
+		body.add(new PrimitiveTLV(0x42, car == null ? chr : car));
+		body.add(encodePublicKey(oid, kp.getPublic()));
+		body.add(new PrimitiveTLV(0x5F20, chr));
+
+		ConstructedTLV req = new ConstructedTLV(0x7F21);
+		req.add(body);
+		req.add(new PrimitiveTLV(0x5F37, signCVC(kp.getPrivate(), body.getBytes())));
+
+		byte[] csr = req.getBytes();
+
+		if (outerCar != null) {
+			PrivateKey signer = deviceKey.getPrivate();
+			if (com.p2 != 0) {
+				signer = keys.get(com.p2);
+				if (signer == null) {
+					throw new CardStatusException(SW_REFERENCED_DATA_NOT_FOUND);
+				}
+			}
+			PrimitiveTLV outerCarTLV = new PrimitiveTLV(0x42, outerCar);
+
+			byte[] tbs = new byte[csr.length + outerCarTLV.getBytes().length];
+			System.arraycopy(csr, 0, tbs, 0, csr.length);
+			System.arraycopy(outerCarTLV.getBytes(), 0, tbs, csr.length, tbs.length - csr.length);
+
+			ConstructedTLV auth = new ConstructedTLV(0x67);
+			auth.add(req);
+			auth.add(outerCarTLV);
+			auth.add(new PrimitiveTLV(0x5F37, signCVC(signer, tbs)));
+			csr = auth.getBytes();
+		}
+
+		keys.put(kid, kp.getPrivate());
+		return response(csr, SW_OK);
+	}
+
+
+
+	private byte[] sign(Command com) throws CardStatusException, GeneralSecurityException {
+		assertPINVerified();
+
+		PrivateKey key = getKey(com.p1);
+		boolean isRSA = key instanceof RSAPrivateKey;
+		String alg;
+
+		switch(com.p2) {
+		case 0x20:
+			if (!isRSA) {
+				throw new CardStatusException(SW_INCORRECT_P1P2);
+			}
+			return response(rawRSA(key, com.data), SW_OK);
+		case 0x31: alg = "SHA1withRSA"; break;
+		case 0x33: alg = "SHA256withRSA"; break;
+		case 0x41: alg = "SHA1withRSAandMGF1"; break;
+		case 0x43: alg = "SHA256withRSAandMGF1"; break;
+		case 0x70: alg = "NONEwithECDSA"; break;
+		case 0x71: alg = "SHA1withECDSA"; break;
+		case 0x72: alg = "SHA224withECDSA"; break;
+		case 0x73: alg = "SHA256withECDSA"; break;
+		case 0xA0: alg = isRSA ? "NONEwithRSA" : "NONEwithECDSA"; break;
+		default:
+			throw new CardStatusException(SW_INCORRECT_P1P2);
+		}
+
+		if (isRSA != alg.contains("RSA")) {
+			throw new CardStatusException(SW_INCORRECT_P1P2);
+		}
+
+		Signature sig = Signature.getInstance(alg, provider);
+		sig.initSign(key, random);
+		sig.update(com.data);
+		return response(sig.sign(), SW_OK);
+	}
+
+
+
+	private byte[] decipher(Command com) throws CardStatusException, GeneralSecurityException {
+		assertPINVerified();
+
+		PrivateKey key = getKey(com.p1);
+
+		if (com.p2 == 0x21) {
+			if (!(key instanceof RSAPrivateKey)) {
+				throw new CardStatusException(SW_INCORRECT_P1P2);
+			}
+			return response(rawRSA(key, com.data), SW_OK);
+		}
+
+		if (com.p2 == 0x80) {
+			if (!(key instanceof org.bouncycastle.jce.interfaces.ECPrivateKey)) {
+				throw new CardStatusException(SW_INCORRECT_P1P2);
+			}
+			org.bouncycastle.jce.interfaces.ECPrivateKey ecKey = (org.bouncycastle.jce.interfaces.ECPrivateKey)key;
+			org.bouncycastle.math.ec.ECPoint q;
+			try	{
+				q = ecKey.getParameters().getCurve().decodePoint(com.data);
+			}
+			catch(IllegalArgumentException e) {
+				throw new CardStatusException(SW_WRONG_DATA);
+			}
+			return response(q.multiply(ecKey.getD()).normalize().getEncoded(false), SW_OK);
+		}
+
+		throw new CardStatusException(SW_INCORRECT_P1P2);
+	}
+
+
+
+	private byte[] wrapKey(Command com) throws CardStatusException, GeneralSecurityException {
+		assertPINVerified();
+
+		if (com.p2 != 0x92) {
+			throw new CardStatusException(SW_INCORRECT_P1P2);
+		}
+		PrivateKey key = getKey(com.p1);
+		assertDKEK();
+
+		Cipher cipher = Cipher.getInstance("AESWRAPPAD", provider);
+		cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(dkek, "AES"));
+		byte[] wrapped = cipher.wrap(key);
+
+		byte[] blob = new byte[9 + wrapped.length];
+		System.arraycopy(getDKEKCheckValue(), 0, blob, 0, 8);
+		blob[8] = key instanceof RSAPrivateKey ? KEYTYPE_RSA : KEYTYPE_EC;
+		System.arraycopy(wrapped, 0, blob, 9, wrapped.length);
+		return response(blob, SW_OK);
+	}
+
+
+
+	private byte[] unwrapKey(Command com) throws CardStatusException, GeneralSecurityException {
+		assertPINVerified();
+
+		if ((com.p1 == 0) || (com.p2 != 0x93)) {
+			throw new CardStatusException(SW_INCORRECT_P1P2);
+		}
+		assertDKEK();
+
+		if ((com.data.length < 10) || !Arrays.equals(getDKEKCheckValue(), Arrays.copyOf(com.data, 8))) {
+			throw new CardStatusException(SW_WRONG_DATA);
+		}
+
+		String alg;
+		if (com.data[8] == KEYTYPE_RSA) {
+			alg = "RSA";
+		} else if (com.data[8] == KEYTYPE_EC) {
+			alg = "EC";
+		} else {
+			throw new CardStatusException(SW_WRONG_DATA);
+		}
+
+		Cipher cipher = Cipher.getInstance("AESWRAPPAD", provider);
+		cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(dkek, "AES"));
+		Key key;
+		try	{
+			key = cipher.unwrap(Arrays.copyOfRange(com.data, 9, com.data.length), alg, Cipher.PRIVATE_KEY);
+		}
+		catch(GeneralSecurityException e) {
+			throw new CardStatusException(SW_WRONG_DATA);
+		}
+
+		keys.put(com.p1, (PrivateKey)key);
+		return response(null, SW_OK);
+	}
+
+
+
+	private byte[] getChallenge(Command com) {
+		byte[] challenge = new byte[com.ne];
+		random.nextBytes(challenge);
+		return response(challenge, SW_OK);
+	}
+
+
+
+	/**
+	 * Reset the device to the initial state, keeping only the device authentication certificate
+	 */
+	private void initialize(byte[] newPIN, byte[] newSOPIN, int retries, int shares) {
+		files.clear();
+		keys.clear();
+
+		pin = newPIN;
+		sopin = newSOPIN;
+		pinRetries = retries;
+		pinRetryCounter = retries;
+		sopinRetryCounter = SO_RETRY_COUNTER;
+		pinVerified = false;
+
+		dkek = new byte[32];
+		dkekShares = shares;
+		dkekOutstanding = shares;
+
+		files.put(DEVICE_CERTIFICATE, deviceCertificate);
+	}
+
+
+
+	/**
+	 * Create the self-signed device authentication certificate
+	 */
+	private byte[] createDeviceCertificate(byte[] chr) throws TLVEncodingException, GeneralSecurityException {
+		ConstructedTLV body = new ConstructedTLV(0x7F4E);
+		body.add(new PrimitiveTLV(0x5F29, new byte[] { 0 }));
+		body.add(new PrimitiveTLV(0x42, chr));
+		body.add(encodePublicKey(ID_TA_ECDSA_SHA_256, deviceKey.getPublic()));
+		body.add(new PrimitiveTLV(0x5F20, chr));
+
+		ConstructedTLV cvc = new ConstructedTLV(0x7F21);
+		cvc.add(body);
+		cvc.add(new PrimitiveTLV(0x5F37, signCVC(deviceKey.getPrivate(), body.getBytes())));
+		return cvc.getBytes();
+	}
+
+
+
+	/**
+	 * Encode the public key data object of a card verifiable certificate
+	 */
+	private static ConstructedTLV encodePublicKey(byte[] oid, PublicKey puk) throws TLVEncodingException {
+		ConstructedTLV pdo = new ConstructedTLV(0x7F49);
+		pdo.add(new PrimitiveTLV(0x06, oid));
+
+		if (puk instanceof RSAPublicKey) {
+			RSAPublicKey rsa = (RSAPublicKey)puk;
+			int size = (rsa.getModulus().bitLength() + 7) >> 3;
+			pdo.add(new PrimitiveTLV(0x81, unsigned(rsa.getModulus(), size)));
+			pdo.add(new PrimitiveTLV(0x82, unsigned(rsa.getPublicExponent(), 0)));
+		} else {
+			ECPublicKey ec = (ECPublicKey)puk;
+			ECParameterSpec params = ec.getParams();
+			BigInteger p = ((ECFieldFp)params.getCurve().getField()).getP();
+			int size = (p.bitLength() + 7) >> 3;
+			pdo.add(new PrimitiveTLV(0x81, unsigned(p, size)));
+			pdo.add(new PrimitiveTLV(0x82, unsigned(params.getCurve().getA(), size)));
+			pdo.add(new PrimitiveTLV(0x83, unsigned(params.getCurve().getB(), size)));
+			pdo.add(new PrimitiveTLV(0x84, encodePoint(params.getGenerator(), size)));
+			pdo.add(new PrimitiveTLV(0x85, unsigned(params.getOrder(), size)));
+			pdo.add(new PrimitiveTLV(0x86, encodePoint(ec.getW(), size)));
+			pdo.add(new PrimitiveTLV(0x87, new byte[] { (byte)params.getCofactor() }));
+		}
+		return pdo;
+	}
+
+
+
+	private static byte[] encodePoint(ECPoint point, int size) {
+		byte[] enc = new byte[1 + (size << 1)];
+		enc[0] = 0x04;
+		System.arraycopy(unsigned(point.getAffineX(), size), 0, enc, 1, size);
+		System.arraycopy(unsigned(point.getAffineY(), size), 0, enc, 1 + size, size);
+		return enc;
+	}
+
+
+
+	/**
+	 * Convert to unsigned big endian byte array with the given size or the minimum size if size is 0
+	 */
+	private static byte[] unsigned(BigInteger bi, int size) {
+		byte[] s = bi.toByteArray();
+		int off = (s[0] == 0) && (s.length > 1) ? 1 : 0;
+		int len = s.length - off;
+		if (size == 0) {
+			size = len;
+		}
+		byte[] d = new byte[size];
+		System.arraycopy(s, off, d, size - len, len);
+		return d;
+	}
+
+
+
+	private byte[] signCVC(PrivateKey key, byte[] tbs) throws GeneralSecurityException {
+		Signature sig = Signature.getInstance(key instanceof RSAPrivateKey ? "SHA256withRSA" : "SHA256withPLAIN-ECDSA", provider);
+		sig.initSign(key, random);
+		sig.update(tbs);
+		return sig.sign();
+	}
+
+
+
+	/**
+	 * Perform the RSA private key operation on a block with the size of the modulus
+	 */
+	private byte[] rawRSA(PrivateKey key, byte[] block) throws CardStatusException, GeneralSecurityException {
+		int size = (((RSAPrivateKey)key).getModulus().bitLength() + 7) >> 3;
+		if (block.length != size) {
+			throw new CardStatusException(SW_WRONG_LENGTH);
+		}
+
+		Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding", provider);
+		cipher.init(Cipher.DECRYPT_MODE, key);
+		byte[] result = cipher.doFinal(block);
+		if (result.length < size) {
+			byte[] padded = new byte[size];
+			System.arraycopy(result, 0, padded, size - result.length, result.length);
+			result = padded;
+		}
+		return result;
+	}
+
+
+
+	private PrivateKey getKey(int kid) throws CardStatusException {
+		PrivateKey key = keys.get(kid);
+		if (key == null) {
+			throw new CardStatusException(SW_REFERENCED_DATA_NOT_FOUND);
+		}
+		return key;
+	}
+
+
+
+	private void assertPINVerified() throws CardStatusException {
+		if (!pinVerified) {
+			throw new CardStatusException(SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+	}
+
+
+
+	private void assertDKEK() throws CardStatusException {
+		if ((dkekShares == 0) || (dkekOutstanding > 0)) {
+			throw new CardStatusException(SW_CONDITIONS_NOT_SATISFIED);
+		}
+	}
+
+
+
+	private byte[] getDKEKCheckValue() {
+		try	{
+			return Arrays.copyOf(MessageDigest.getInstance("SHA-256", provider).digest(dkek), 8);
+		}
+		catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	private void checkPIN(byte[] value) throws CardStatusException {
+		if (pinRetryCounter == 0) {
+			throw new CardStatusException(SW_AUTHENTICATION_METHOD_BLOCKED);
+		}
+		if (!MessageDigest.isEqual(pin, value)) {
+			pinVerified = false;
+			pinRetryCounter--;
+			throw new CardStatusException(pinRetryCounter == 0 ? SW_AUTHENTICATION_METHOD_BLOCKED : 0x63C0 | pinRetryCounter);
+		}
+		pinRetryCounter = pinRetries;
+		pinVerified = true;
+	}
+
+
+
+	private void checkSOPIN(byte[] value) throws CardStatusException {
+		if (sopinRetryCounter == 0) {
+			throw new CardStatusException(SW_AUTHENTICATION_METHOD_BLOCKED);
+		}
+		if (!MessageDigest.isEqual(sopin, value)) {
+			sopinRetryCounter--;
+			throw new CardStatusException(sopinRetryCounter == 0 ? SW_AUTHENTICATION_METHOD_BLOCKED : 0x63C0 | sopinRetryCounter);
+		}
+		sopinRetryCounter = SO_RETRY_COUNTER;
+	}
+
+
+
+	private static int getOffset(Command com) throws TLVEncodingException {
+		TLVCursor cursor = new TLVCursor();
+		cursor.reset(com.data, 0, com.data.length);
+		while (cursor.next()) {
+			if (cursor.getTag() == 0x54) {
+				return cursor.getIntValue();
+			}
+		}
+		return 0;
+	}
+
+
+
+	private static byte[] response(byte[] data, int sw) {
+		int len = data == null ? 0 : data.length;
+		byte[] rsp = new byte[len + 2];
+		if (len > 0) {
+			System.arraycopy(data, 0, rsp, 0, len);
+		}
+		rsp[len] = (byte)(sw >> 8);
+		rsp[len + 1] = (byte)sw;
+		return rsp;
+	}
+
+
+
+	/**
+	 * Decoded command APDU in short or extended format
+	 */
+	private static class Command {
+		final int cla, ins, p1, p2;
+		final byte[] data;
+
+		/** Expected length of the response, 0 if no response data is expected */
+		final int ne;
+
+
+
+		Command(byte[] apdu, int length) throws CardStatusException {
+			if (length < 4) {
+				throw new CardStatusException(SW_WRONG_LENGTH);
+			}
+			cla = apdu[0] & 0xFF;
+			ins = apdu[1] & 0xFF;
+			p1 = apdu[2] & 0xFF;
+			p2 = apdu[3] & 0xFF;
+
+			int lc = 0;
+			int le = 0;
+			int off = 5;
+
+			if (length == 5) {
+				le = apdu[4] & 0xFF;
+				if (le == 0) {
+					le = 256;
+				}
+			} else if (length > 5) {
+				int b = apdu[4] & 0xFF;
+				if (b != 0) {
+					lc = b;
+					if (length == 6 + lc) {
+						le = apdu[5 + lc] & 0xFF;
+						if (le == 0) {
+							le = 256;
+						}
+					} else if (length != 5 + lc) {
+						throw new CardStatusException(SW_WRONG_LENGTH);
+					}
+				} else {
+					if (length < 7) {
+						throw new CardStatusException(SW_WRONG_LENGTH);
+					}
+					int l = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+					if (length == 7) {
+						le = l == 0 ? 65536 : l;
+					} else {
+						lc = l;
+						off = 7;
+						if (length == 9 + lc) {
+							le = ((apdu[7 + lc] & 0xFF) << 8) | (apdu[8 + lc] & 0xFF);
+							if (le == 0) {
+								le = 65536;
+							}
+						} else if (length != 7 + lc) {
+							throw new CardStatusException(SW_WRONG_LENGTH);
+						}
+					}
+				}
+			}
+
+			data = Arrays.copyOfRange(apdu, off, off + lc);
+			ne = le;
+		}
+
+
+
+		int getP1P2() {
+			return (p1 << 8) | p2;
+		}
+	}
+
+
+
+	/**
+	 * Terminates command processing with the given status word
+	 */
+	private static class CardStatusException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int sw;
+
+
+
+		CardStatusException(int sw) {
+			super(Integer.toHexString(sw));
+			this.sw = sw;
+		}
+	}
+}
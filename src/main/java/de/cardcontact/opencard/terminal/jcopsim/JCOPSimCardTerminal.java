@@ -24,15 +24,15 @@
 
 package de.cardcontact.opencard.terminal.jcopsim;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
 import opencard.core.terminal.CardID;
 import opencard.core.terminal.CardTerminal;
@@ -40,11 +40,16 @@ import opencard.core.terminal.CardTerminalException;
 import opencard.core.terminal.CommandAPDU;
 import opencard.core.terminal.ResponseAPDU;
 import opencard.core.util.HexString;
+import opencard.core.util.TraceLevels;
 import opencard.core.util.Tracer;
 
 /**
  * Class implementing a JCOP simulation card terminal
  * 
+ * The connection to the simulation uses a SocketChannel with TCP_NODELAY. Messages are framed in
+ * direct buffers that are allocated once per terminal. Each exchange is bound by a deadline, which is
+ * either the timeout passed to sendAPDU() or the socket timeout configured for the terminal.
+ * 
  * @author Frank Thater (info@cardcontact.de)
  */
 public class JCOPSimCardTerminal extends CardTerminal {
@@ -56,6 +61,12 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	// Set the buffer size to 65536 (max. extended length) + 100 bytes reserved for the protocol overhead
 	private static final int JCOP_RECV_BUFFER_SIZE = 65636;
 
+	/** Size of the message header */
+	private static final int JCOP_HEADER_SIZE = 4;
+
+	/** Timeout in ms for establishing the connection to the simulation */
+	private static final int CONNECT_TIMEOUT = 100;
+
 	/**
 	 * Message types accepted by the simulation
 	 */
@@ -91,9 +102,14 @@ public class JCOPSimCardTerminal extends CardTerminal {
 
 
 	/**
-	 * Socket for communication
+	 * Channel for communication
+	 */
+	private SocketChannel channel = null;
+
+	/**
+	 * Selector used to wait for the channel with a deadline
 	 */
-	private Socket socket = null;
+	private Selector selector = null;
 
 	/**
 	 * Remote address (Hostname, Port) of the simulation
@@ -105,16 +121,6 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	 */
 	private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
 
-	/**
-	 * Stream for incoming data
-	 */
-	private BufferedInputStream inStream = null;
-
-	/**
-	 * Stream for outgoing data
-	 */
-	private BufferedOutputStream outStream = null;
-
 	/**
 	 * CardID of the simulated card
 	 */
@@ -126,9 +132,14 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	private boolean connected = false;
 
 	/**
-	 * Data buffer
+	 * Buffer for outgoing messages
+	 */
+	private final ByteBuffer sendBuffer;
+
+	/**
+	 * Buffer for incoming messages
 	 */
-	private byte[] jcopBuffer;
+	private final ByteBuffer recvBuffer;
 
 
 	/**
@@ -153,7 +164,8 @@ public class JCOPSimCardTerminal extends CardTerminal {
 		super(name, type, address);
 
 		socketAddr = new InetSocketAddress(host, port);
-		jcopBuffer = new byte[JCOP_RECV_BUFFER_SIZE];
+		sendBuffer = ByteBuffer.allocateDirect(JCOP_RECV_BUFFER_SIZE);
+		recvBuffer = ByteBuffer.allocateDirect(JCOP_RECV_BUFFER_SIZE);
 
 		this.socketTimeout = timeout;
 
@@ -195,7 +207,7 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	/* (non-Javadoc)
 	 * @see opencard.core.terminal.CardTerminal#open()
 	 */
-	public void open() throws CardTerminalException {
+	public synchronized void open() throws CardTerminalException {
 				
 		if (connected) {
 			return;
@@ -203,22 +215,25 @@ public class JCOPSimCardTerminal extends CardTerminal {
 		
 		try {
 			// Try to open the specified socket
-			socket = new Socket();
-			socket.connect( socketAddr, 100 );
-			
-			// Set timeout for socket
-			socket.setSoTimeout(this.socketTimeout);
-						
-			// get streams for communication
-			outStream = new BufferedOutputStream(socket.getOutputStream());
-			inStream = new BufferedInputStream(socket.getInputStream());
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			selector = Selector.open();
+
+			if (!channel.connect(socketAddr)) {
+				channel.register(selector, SelectionKey.OP_CONNECT);
+				if ((selector.select(CONNECT_TIMEOUT) == 0) || !channel.finishConnect()) {
+					throw new SocketTimeoutException("connect timed out");
+				}
+			}
 			
 			connected = true;
-		} catch(ConnectException ste) {
-			// Ignore, server may run sometimes later
-		} catch(SocketTimeoutException ste) {
+		} catch(IOException ioe) {
 			// Ignore, server may run sometimes later
+			ctracer.debug("open", ioe);
+			closeChannel();
 		} catch (Exception e) {
+			closeChannel();
 			throw new CardTerminalException("JCOPSimCardTerminal: Card terminal could not be opened! Reason: " + e.getLocalizedMessage());
 		}
 
@@ -227,19 +242,17 @@ public class JCOPSimCardTerminal extends CardTerminal {
 			if (connected) {
 				// request JCOP ATR
 				byte[] data = {0x00, 0x00, 0x00, 0x00};
-				sendJcop(MTY_WAIT_FOR_CARD, NODE_TERMINAL, data);
-				
-				int read = 0;
-				read = readJcop(MTY_WAIT_FOR_CARD, jcopBuffer);
-				
-				byte[] scr = new byte[read];
-				System.arraycopy(jcopBuffer, 0, scr, 0, read);
+				long deadline = System.currentTimeMillis() + this.socketTimeout;
+
+				sendJcop(MTY_WAIT_FOR_CARD, NODE_TERMINAL, data, deadline);
+				byte[] scr = readJcop(MTY_WAIT_FOR_CARD, deadline);
 				
 				cid = new CardID(scr);
 				
 				cardInserted(0);
 			}
-		} catch (SocketException se) {
+		} catch (IOException ioe) {
+			ctracer.debug("open", ioe);
 			close();
 		} catch (Exception e) {
 			close();
@@ -252,28 +265,36 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	/* (non-Javadoc)
 	 * @see opencard.core.terminal.CardTerminal#close()
 	 */
-	public void close() throws CardTerminalException {
+	public synchronized void close() throws CardTerminalException {
 		
 		if (connected) {
-			try {
-				connected = false;
-							
-				outStream.close();
-				inStream.close();
-					
-				outStream = null;
-				inStream = null;
-					
-				socket.close();						
-					
-			} catch (Exception e) {
-				throw new CardTerminalException("JCOPSimCardTerminal: Error in socket communication! Reason: " + e.getLocalizedMessage());
-			}			
+			connected = false;
+			closeChannel();
 		}
 	}
 	
 	
 	
+	/**
+	 * Release channel and selector
+	 */
+	private void closeChannel() {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			ctracer.debug("closeChannel", e);
+		}
+		selector = null;
+		channel = null;
+	}
+	
+	
+	
 	/* (non-Javadoc)
 	 * @see opencard.core.terminal.CardTerminal#internalReset(int, int)
 	 */
@@ -290,7 +311,7 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	/* (non-Javadoc)
 	 * @see opencard.core.terminal.CardTerminal#internalSendAPDU(int, opencard.core.terminal.CommandAPDU, int)
 	 */
-	protected ResponseAPDU internalSendAPDU(int slot, CommandAPDU capdu, int ms) throws CardTerminalException {
+	protected synchronized ResponseAPDU internalSendAPDU(int slot, CommandAPDU capdu, int ms) throws CardTerminalException {
 
 		if (!connected) {
 			open();
@@ -300,28 +321,37 @@ public class JCOPSimCardTerminal extends CardTerminal {
 			throw new CardTerminalException("JCOPSimCardTerminal: Error sending APDU! No connection");
 		}
 		
-		ResponseAPDU r = null;
-		
+		long deadline = System.currentTimeMillis() + (ms > 0 ? ms : this.socketTimeout);
+
 		try {
-				
-			byte[] apdu = capdu.getBytes();
-		
-			sendJcop(MTY_APDU_DATA, NODE_CARD, apdu);
-				
-			int read = 0;
-			read = readJcop(MTY_APDU_DATA, jcopBuffer);
-							
-			byte[] rsp = new byte[read];
-			System.arraycopy(jcopBuffer, 0, rsp, 0, read);
-				
-			r = new ResponseAPDU(rsp);
+			sendJcop(MTY_APDU_DATA, NODE_CARD, capdu.getBuffer(), capdu.getLength(), deadline);
+			return readResponse(deadline);
 		}
 		catch (Exception e) {				
 			ctracer.debug("internalSendAPDU()", "Error sending APDU: " + e.getMessage());
+			close();
 			throw new CardTerminalException("JCOPSimCardTerminal: Error sending APDU! Reason: " + e.getLocalizedMessage());
 		}
+	}
+
+
 
-		return r;
+	/**
+	 * Send a command message to the remote terminal simulation
+	 * 
+	 * @param mty
+	 * 			Message type
+	 * @param destNode
+	 * 			Destination node
+	 * @param cmd
+	 * 			Command data
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
+	 * 
+	 * @throws IOException
+	 */
+	private void sendJcop(byte mty, byte destNode, byte[] cmd, long deadline) throws IOException {
+		sendJcop(mty, destNode, cmd, cmd == null ? 0 : cmd.length, deadline);
 	}
 
 
@@ -335,31 +365,40 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	 * 			Destination node
 	 * @param cmd
 	 * 			Command data
+	 * @param length
+	 * 			Number of bytes in cmd
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
 	 * 
-	 * @throws CardTerminalException
+	 * @throws IOException
 	 */
-	private void sendJcop(byte mty, byte destNode, byte[] cmd) throws CardTerminalException {
-		
-		int length = cmd == null ? 0 : cmd.length;
-		
-		byte[] scr = new byte[4 + length];
+	private void sendJcop(byte mty, byte destNode, byte[] cmd, int length, long deadline) throws IOException {
 		
-		scr[0] = mty;
-		scr[1] = destNode;
-		scr[2] = (byte)(length / 256);		
-		scr[3] = (byte) length;
+		sendBuffer.clear();
+		sendBuffer.put(mty);
+		sendBuffer.put(destNode);
+		sendBuffer.putShort((short)length);
 		
 		if (cmd != null) {
-			System.arraycopy(cmd, 0, scr, 4, length);
+			sendBuffer.put(cmd, 0, length);
+		}
+		sendBuffer.flip();
+
+		if (ctracer.getTraceLevel() >= TraceLevels.DEBUG) {
+			byte[] scr = new byte[sendBuffer.remaining()];
+			sendBuffer.duplicate().get(scr);
+			ctracer.debug("sendJcop()", "SEND: " + HexString.dump(scr, 0, scr.length));
 		}
 		
 		try {
-			ctracer.debug("sendJcop()", "SEND: " + HexString.dump(scr, 0, scr.length));
-			outStream.write(scr);
-			outStream.flush();
-		} catch (IOException e) {
-			connected = false;
-		}		
+			while (sendBuffer.hasRemaining()) {
+				if (channel.write(sendBuffer) == 0) {
+					await(SelectionKey.OP_WRITE, deadline);
+				}
+			}
+		} finally {
+			clear(sendBuffer, sendBuffer.limit());
+		}
 	}
 	
 	
@@ -369,47 +408,178 @@ public class JCOPSimCardTerminal extends CardTerminal {
 	 * 
 	 * @param mty
 	 * 			Expected message type
-	 * @param buf
-	 * 			Destination buffer for command data
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
 	 * @return
-	 * 			Number of bytes read
+	 * 			The command data
 	 * 
-	 * @throws Exception
+	 * @throws IOException
+	 * @throws CardTerminalException
 	 */
-	private int readJcop(byte mty, byte[] buf) throws Exception {
-			
-		int sizeRsp = -1;
-		int totalBytesRead = 0;
-		int read = 0;
-		
-		byte[] tmp = new byte[buf.length];
-		
-		read = inStream.read(tmp, 0, 4);
-		
-		if (read != 4) {
-			connected = false;
-			ctracer.debug("readJcop()", "JCOP header not received! recv = " + HexString.dump(tmp, 0, read) + " (" + read +")");
-			throw new CardTerminalException("JCOP header not received!");
+	private byte[] readJcop(byte mty, long deadline) throws IOException, CardTerminalException {
+
+		try {
+			int sizeRsp = receive(mty, deadline);
+			byte[] rsp = new byte[sizeRsp];
+			copyData(rsp, sizeRsp);
+			return rsp;
+		} finally {
+			clear(recvBuffer, recvBuffer.position());
 		}
+	}
 
-		if (tmp[0] != mty) { // Incorrect message type? 
-			connected = false;
-			ctracer.debug("readJcop()", "Mismatch of message types");
+
+
+	/**
+	 * Read an APDU response message from the remote terminal simulation
+	 * 
+	 * The response data is copied from the receive buffer directly into the buffer of the ResponseAPDU.
+	 * 
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
+	 * @return
+	 * 			The response APDU
+	 * 
+	 * @throws IOException
+	 * @throws CardTerminalException
+	 */
+	private ResponseAPDU readResponse(long deadline) throws IOException, CardTerminalException {
+
+		try {
+			int sizeRsp = receive(MTY_APDU_DATA, deadline);
+			if (sizeRsp < 2) {
+				throw new CardTerminalException("Response APDU too short");
+			}
+			ResponseAPDU rapdu = new ResponseAPDU(sizeRsp);
+			copyData(rapdu.getBuffer(), sizeRsp);
+			rapdu.setLength(sizeRsp);
+			return rapdu;
+		} finally {
+			clear(recvBuffer, recvBuffer.position());
+		}
+	}
+
+
+
+	/**
+	 * Receive a message from the remote terminal simulation into the receive buffer
+	 * 
+	 * On return the receive buffer contains the complete message, with the data starting at
+	 * JCOP_HEADER_SIZE. The position of the buffer marks the number of bytes received.
+	 * 
+	 * @param mty
+	 * 			Expected message type
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
+	 * @return
+	 * 			The length of the message data
+	 * 
+	 * @throws IOException
+	 * @throws CardTerminalException
+	 */
+	private int receive(byte mty, long deadline) throws IOException, CardTerminalException {
+
+		recvBuffer.clear();
+		fill(JCOP_HEADER_SIZE, deadline);
+
+		if (recvBuffer.get(0) != mty) { // Incorrect message type? 
+			ctracer.debug("receive()", "Mismatch of message types");
 			throw new CardTerminalException("Mismatch of message types");
 		}
-		
-		sizeRsp = (tmp[2] & 0xff) << 8 | (tmp[3] & 0xff);
-		
-		while (totalBytesRead < sizeRsp) {			
-			read = inStream.read(tmp, 0, tmp.length);			
-			System.arraycopy(tmp, 0, buf, totalBytesRead, read);			
-			totalBytesRead += read;
+
+		int sizeRsp = recvBuffer.getShort(2) & 0xFFFF;
+		fill(JCOP_HEADER_SIZE + sizeRsp, deadline);
+
+		if (recvBuffer.position() > JCOP_HEADER_SIZE + sizeRsp) {
+			ctracer.debug("receive()", "Warning: not all bytes were read! left = " + (recvBuffer.position() - JCOP_HEADER_SIZE - sizeRsp));
 		}
-		
-		if (inStream.available() > 0) {
-			ctracer.debug("readJcop()", "Warning: not all bytes were read! left = " + inStream.available());			
+		return sizeRsp;
+	}
+
+
+
+	/**
+	 * Copy message data from the receive buffer without changing its position
+	 * 
+	 * @param dst
+	 * 			The destination array
+	 * @param length
+	 * 			The number of data bytes to copy
+	 */
+	private void copyData(byte[] dst, int length) {
+		ByteBuffer src = recvBuffer.duplicate();
+		src.position(JCOP_HEADER_SIZE);
+		src.get(dst, 0, length);
+	}
+
+
+
+	/**
+	 * Read from the channel until the receive buffer contains at least the given number of bytes
+	 * 
+	 * @param size
+	 * 			Number of bytes required
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
+	 * 
+	 * @throws IOException
+	 */
+	private void fill(int size, long deadline) throws IOException {
+		while (recvBuffer.position() < size) {
+			int read = channel.read(recvBuffer);
+			if (read < 0) {
+				throw new EOFException("Connection closed by simulation");
+			}
+			if (read == 0) {
+				await(SelectionKey.OP_READ, deadline);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Wait until the channel is ready for the operation or the deadline has passed
+	 * 
+	 * @param op
+	 * 			One of SelectionKey.OP_READ or SelectionKey.OP_WRITE
+	 * @param deadline
+	 * 			Time in ms at which the operation is aborted
+	 * 
+	 * @throws IOException
+	 */
+	private void await(int op, long deadline) throws IOException {
+		long remaining = deadline - System.currentTimeMillis();
+
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("Timeout waiting for simulation");
+		}
+
+		SelectionKey key = channel.register(selector, op);
+		try {
+			if (selector.select(remaining) == 0) {
+				throw new SocketTimeoutException("Timeout waiting for simulation");
+			}
+		} finally {
+			selector.selectedKeys().clear();
+			key.interestOps(0);
+		}
+	}
+
+
+
+	/**
+	 * Overwrite the used part of the buffer, which may contain sensitive APDU data
+	 * 
+	 * @param buffer
+	 * 			The buffer to clear
+	 * @param length
+	 * 			The number of bytes from the start of the buffer to overwrite
+	 */
+	private static void clear(ByteBuffer buffer, int length) {
+		buffer.clear();
+		for (int i = 0; i < length; i++) {
+			buffer.put(i, (byte)0);
 		}
-		
-		return totalBytesRead;
 	}
 }
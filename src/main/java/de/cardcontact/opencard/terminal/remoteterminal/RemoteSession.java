@@ -0,0 +1,149 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2013 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.remoteterminal;
+
+/**
+ * A session with a remote client, managed by the RemoteSessionRegistry
+ *
+ * The session links the session identifier used by the remote connection to the RemoteTerminal
+ * created for it and tracks the time of the last access by the remote client.
+ */
+public class RemoteSession {
+
+	private final String sessionId;
+	private final RemoteTerminal terminal;
+	private final long created;
+	private volatile long lastAccess;
+
+
+
+	RemoteSession(String sessionId, RemoteTerminal terminal) {
+		this.sessionId = sessionId;
+		this.terminal = terminal;
+		this.created = System.currentTimeMillis();
+		this.lastAccess = this.created;
+	}
+
+
+
+	/**
+	 * Return the identifier of the session
+	 *
+	 * @return the session identifier
+	 */
+	public String getSessionId() {
+		return sessionId;
+	}
+
+
+
+	/**
+	 * Return the terminal for the card connected via the session
+	 *
+	 * @return the terminal
+	 */
+	public RemoteTerminal getTerminal() {
+		return terminal;
+	}
+
+
+
+	/**
+	 * Return the time the session was created
+	 *
+	 * @return the time in ms since the epoch
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+
+
+	/**
+	 * Return the time of the last access by the remote client
+	 *
+	 * @return the time in ms since the epoch
+	 */
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+
+
+	void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+
+
+	/**
+	 * Return the time between handing the last batch to the remote client and receiving the responses
+	 *
+	 * @return the latency in microseconds
+	 */
+	public long getLastLatency() {
+		return terminal.getLastLatency();
+	}
+
+
+
+	/**
+	 * Return the average time between handing a batch to the remote client and receiving the responses
+	 *
+	 * @return the latency in microseconds
+	 */
+	public long getAverageLatency() {
+		return terminal.getAverageLatency();
+	}
+
+
+
+	/**
+	 * Return the maximum time between handing a batch to the remote client and receiving the responses
+	 *
+	 * @return the latency in microseconds
+	 */
+	public long getMaxLatency() {
+		return terminal.getMaxLatency();
+	}
+
+
+
+	/**
+	 * Return the number of completed round-trips
+	 *
+	 * @return the number of round-trips
+	 */
+	public long getRoundTrips() {
+		return terminal.getRoundTrips();
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "RemoteSession " + sessionId + " (" + getRoundTrips() + " round-trips, avg " + getAverageLatency() + " us, max " + getMaxLatency() + " us)";
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2013 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.remoteterminal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.cardcontact.opencard.service.remoteclient.RemoteProtocolUnit;
+
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CardTerminalRegistry;
+import opencard.core.terminal.CommunicationErrorException;
+import opencard.core.util.Tracer;
+
+/**
+ * Registry of remote sessions, each with its own RemoteTerminal
+ *
+ * Terminals are created on demand for the session identifier presented by the remote connection and
+ * optionally registered with the CardTerminalRegistry under the name prefix followed by the session identifier.
+ * The remote connection exchanges response and command objects with exchange(), which never blocks, so no
+ * thread is parked for an idle session. Sessions without access by the remote connection for longer than
+ * the idle timeout are removed and their terminal is aborted.
+ *
+ * A typical server calls exchange() for every request received from a remote client and answers the request
+ * when the returned future is completed.
+ */
+public class RemoteSessionRegistry {
+
+	private final static Tracer ctracer = new Tracer(RemoteSessionRegistry.class);
+
+	/** Default idle timeout in ms */
+	public final static long DEFAULT_IDLE_TIMEOUT = 300000;
+
+	private final ConcurrentHashMap<String, RemoteSession> sessions = new ConcurrentHashMap<String, RemoteSession>();
+
+	private final String namePrefix;
+	private final boolean register;
+	private final long idleTimeout;
+
+	private ScheduledExecutorService timer = null;
+	private ScheduledFuture<?> sweeper = null;
+
+
+
+	/**
+	 * Create a registry with the default idle timeout, which registers terminals with the CardTerminalRegistry
+	 *
+	 * @param namePrefix the prefix for terminal names
+	 */
+	public RemoteSessionRegistry(String namePrefix) {
+		this(namePrefix, DEFAULT_IDLE_TIMEOUT, true);
+	}
+
+
+
+	/**
+	 * Create a registry
+	 *
+	 * @param namePrefix the prefix for terminal names
+	 * @param idleTimeout the time in ms after which a session without access is removed, 0 for no expiry
+	 * @param register true to register terminals with the CardTerminalRegistry
+	 */
+	public RemoteSessionRegistry(String namePrefix, long idleTimeout, boolean register) {
+		this.namePrefix = namePrefix;
+		this.idleTimeout = idleTimeout;
+		this.register = register;
+	}
+
+
+
+	/**
+	 * Return the session with the given identifier, creating session and terminal if required
+	 *
+	 * @param sessionId the session identifier
+	 * @return the session
+	 * @throws CardTerminalException if the terminal can not be created or registered
+	 */
+	public RemoteSession getSession(String sessionId) throws CardTerminalException {
+		RemoteSession session = sessions.get(sessionId);
+
+		if (session == null) {
+			RemoteTerminal terminal = new RemoteTerminal(namePrefix + sessionId, "RemoteTerminal", sessionId);
+			RemoteSession created = new RemoteSession(sessionId, terminal);
+
+			session = sessions.putIfAbsent(sessionId, created);
+			if (session == null) {
+				session = created;
+				ctracer.debug("getSession", "Created session " + sessionId);
+				if (register) {
+					try	{
+						CardTerminalRegistry.getRegistry().add(terminal);
+					}
+					catch(CardTerminalException e) {
+						sessions.remove(sessionId, created);
+						throw e;
+					}
+				}
+				startSweeper();
+			}
+		}
+
+		session.touch();
+		return session;
+	}
+
+
+
+	/**
+	 * Return the session with the given identifier
+	 *
+	 * @param sessionId the session identifier
+	 * @return the session or null if no such session exists
+	 */
+	public RemoteSession findSession(String sessionId) {
+		return sessions.get(sessionId);
+	}
+
+
+
+	/**
+	 * Return a snapshot of all active sessions
+	 *
+	 * @return the sessions
+	 */
+	public Collection<RemoteSession> getSessions() {
+		return new ArrayList<RemoteSession>(sessions.values());
+	}
+
+
+
+	/**
+	 * Return the number of active sessions
+	 *
+	 * @return the number of sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+
+
+	/**
+	 * Pass the responses received from the remote client to the terminal and obtain the next commands
+	 *
+	 * The call never blocks. The returned future is completed with the next batch of commands as soon as
+	 * the application transmits it, or cancelled if the session is removed.
+	 *
+	 * A session is only created by the first request without responses. Responses for an unknown or
+	 * expired session are rejected, as there is no command they could belong to.
+	 *
+	 * @param sessionId the session identifier
+	 * @param responses the response objects for the previous batch or null for the first request
+	 * @return the future for the next batch of command objects
+	 * @throws CardTerminalException if the session can not be created or responses are passed for an unknown session
+	 */
+	public CompletableFuture<List<RemoteProtocolUnit>> exchange(String sessionId, List<RemoteProtocolUnit> responses) throws CardTerminalException {
+		RemoteSession session;
+
+		if (responses == null) {
+			session = getSession(sessionId);
+		} else {
+			session = findSession(sessionId);
+			if (session == null) {
+				throw new CommunicationErrorException("Unknown or expired session " + sessionId);
+			}
+			session.touch();
+			session.getTerminal().putBatch(responses);
+		}
+		return session.getTerminal().pollBatchAsync();
+	}
+
+
+
+	/**
+	 * Remove the session, abort its terminal and unregister it from the CardTerminalRegistry
+	 *
+	 * @param sessionId the session identifier
+	 * @param reason the reason reported to a thread waiting for a response
+	 * @return true if the session was removed
+	 */
+	public boolean removeSession(String sessionId, String reason) {
+		RemoteSession session = sessions.remove(sessionId);
+
+		if (session == null) {
+			return false;
+		}
+
+		ctracer.debug("removeSession", "Removing " + session + ": " + reason);
+		RemoteTerminal terminal = session.getTerminal();
+		terminal.abort(reason);
+		if (register) {
+			try	{
+				CardTerminalRegistry.getRegistry().remove(terminal);
+			}
+			catch(CardTerminalException e) {
+				ctracer.error("removeSession", e);
+			}
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Remove all sessions without access for longer than the idle timeout
+	 *
+	 * @return the number of removed sessions
+	 */
+	public int expireIdleSessions() {
+		long limit = System.currentTimeMillis() - idleTimeout;
+		int count = 0;
+
+		for (RemoteSession session : sessions.values()) {
+			if ((session.getLastAccess() < limit) && removeSession(session.getSessionId(), "Session expired")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+
+	/**
+	 * Remove all sessions and stop expiry
+	 */
+	public void close() {
+		synchronized (this) {
+			if (sweeper != null) {
+				sweeper.cancel(false);
+				sweeper = null;
+			}
+			if (timer != null) {
+				timer.shutdown();
+				timer = null;
+			}
+		}
+
+		for (String sessionId : new ArrayList<String>(sessions.keySet())) {
+			removeSession(sessionId, "Session registry closed");
+		}
+	}
+
+
+
+	private synchronized void startSweeper() {
+		if ((idleTimeout <= 0) || (sweeper != null)) {
+			return;
+		}
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OCF Remote Session Expiry");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long period = Math.max(idleTimeout / 2, 1000);
+		sweeper = timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				int count = expireIdleSessions();
+				if (count > 0) {
+					ctracer.debug("expireIdleSessions", "Expired " + count + " sessions, " + sessions.size() + " active");
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+}
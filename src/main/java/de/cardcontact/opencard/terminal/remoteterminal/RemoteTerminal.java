@@ -23,6 +23,10 @@
  */
 package de.cardcontact.opencard.terminal.remoteterminal;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -38,14 +42,54 @@ import opencard.core.terminal.SlotChannel;
 import opencard.core.terminal.TerminalTimeoutException;
 import opencard.core.util.Tracer;
 
+/**
+ * Card terminal for a card connected to a remote client.
+ * 
+ * Command objects are handed to the remote connection, which transfers them in a command scripting
+ * template to the client and returns the response objects. Command APDUs whose response is not needed
+ * immediately can be collected with addToBatch(). They are transferred together with the next command
+ * or with flushBatch(), so that a sequence of APDUs costs a single round-trip. The remote connection
+ * obtains all commands of a batch with pollBatch() and returns the responses with putBatch().
+ * 
+ * A remote connection that must not block a thread while waiting for commands uses pollBatchAsync(),
+ * which returns a future completed as soon as the next batch is transmitted.
+ * 
+ * The terminal measures the latency between handing a batch to the remote connection and receiving
+ * the responses.
+ */
 public class RemoteTerminal extends CardTerminal {
 
 	private final static Tracer ctracer = new Tracer(RemoteTerminal.class);
 
 	private CardID cardID = null;
 	
-	private LinkedBlockingQueue<RemoteProtocolUnit> comQueue = new LinkedBlockingQueue<RemoteProtocolUnit>(1);
-	private LinkedBlockingQueue<RemoteProtocolUnit> resQueue = new LinkedBlockingQueue<RemoteProtocolUnit>(1);
+	private LinkedBlockingQueue<List<RemoteProtocolUnit>> comQueue = new LinkedBlockingQueue<List<RemoteProtocolUnit>>(1);
+	private LinkedBlockingQueue<List<RemoteProtocolUnit>> resQueue = new LinkedBlockingQueue<List<RemoteProtocolUnit>>(1);
+
+	/** Commands collected with addToBatch(), not yet transmitted */
+	private final List<RemoteProtocolUnit> batch = new ArrayList<RemoteProtocolUnit>();
+
+	/** Commands of the current batch not yet returned by poll() */
+	private List<RemoteProtocolUnit> polledCommands = null;
+
+	/** Responses received with put() for the current batch */
+	private List<RemoteProtocolUnit> collectedResponses = null;
+
+	/** Lock for the handoff of commands to the remote connection */
+	private final Object handoff = new Object();
+
+	/** Future returned by pollBatchAsync() and completed with the next batch */
+	private CompletableFuture<List<RemoteProtocolUnit>> pendingPoll = null;
+
+	/** Reason for closing the terminal with abort() or null */
+	private volatile String abortReason = null;
+
+	/** Time in ns at which the current batch was handed to the remote connection, 0 if none */
+	private long deliveredAt = 0;
+	private long roundTrips = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+	private long lastLatency = 0;
 
 
 
@@ -60,54 +104,324 @@ public class RemoteTerminal extends CardTerminal {
 	/**
 	 * Transmit a command object and wait for a response object
 	 * 
+	 * Commands collected with addToBatch() are transmitted in front of the command object.
+	 * 
 	 * @param cmdObject the command object (i.e. CommandAPDU, Reset, Notify)
 	 * @return the response object (i.e. ResponseAPDU, CardID, Notify)
 	 * @throws CardTerminalException
 	 */
 	protected RemoteProtocolUnit transmit(RemoteProtocolUnit cmdObject) throws CardTerminalException {
-		RemoteProtocolUnit resObject;
+		List<RemoteProtocolUnit> cmds;
+
+		synchronized (batch) {
+			batch.add(cmdObject);
+			cmds = new ArrayList<RemoteProtocolUnit>(batch);
+			batch.clear();
+		}
+
+		List<RemoteProtocolUnit> res = transmitBatch(cmds);
+
+		if (res.size() < cmds.size()) {
+			RemoteProtocolUnit last = res.get(res.size() - 1);
+			throw new CardTerminalException("Batch aborted after " + res.size() + " of " + cmds.size() + " commands, last response " + describe(last));
+		}
+		return res.get(res.size() - 1);
+	}
+
+
+
+	/**
+	 * Transmit a list of command objects and wait for the response objects
+	 * 
+	 * @param cmds the command objects
+	 * @return the response objects, which may be less than the command objects if execution was aborted
+	 * @throws CardTerminalException
+	 */
+	protected List<RemoteProtocolUnit> transmitBatch(List<RemoteProtocolUnit> cmds) throws CardTerminalException {
+		List<RemoteProtocolUnit> resObjects;
 		
+		// Drop responses that arrived after a previous transmit timed out
+		resQueue.clear();
+		if (abortReason != null) {
+			throw new CommunicationErrorException(abortReason);
+		}
+
 		try {
-			comQueue.put(cmdObject);
+			handOver(cmds);
 
-			ctracer.debug("transmit", "Waiting for response");
+			ctracer.debug("transmit", "Waiting for response to " + cmds.size() + " commands");
 	
-			resObject = resQueue.poll(60, TimeUnit.SECONDS);
-			if (resObject == null) {
+			resObjects = resQueue.poll(60, TimeUnit.SECONDS);
+			if (resObjects == null) {
 				throw new TerminalTimeoutException("The waiting time of 60 seconds for the response has expired.", 60);
 			}
-			if (resObject.isClosing()) {
-				throw new CommunicationErrorException(resObject.getMessage());
+			if (resObjects.isEmpty()) {
+				throw new CommunicationErrorException("No response received");
+			}
+			RemoteProtocolUnit last = resObjects.get(resObjects.size() - 1);
+			if (last.isClosing()) {
+				throw new CommunicationErrorException(last.getMessage());
 			}
 		} catch (InterruptedException e) {
 			throw new CardTerminalException(e.getMessage());
 		}
-		return resObject;
+		return resObjects;
+	}
+
+
+
+	/**
+	 * Hand the commands to a pending pollBatchAsync() or queue them for the next poll
+	 */
+	private void handOver(List<RemoteProtocolUnit> cmds) throws CardTerminalException {
+		CompletableFuture<List<RemoteProtocolUnit>> f;
+
+		synchronized (handoff) {
+			f = pendingPoll;
+			pendingPoll = null;
+
+			if ((f == null) || f.isDone()) {
+				if (!comQueue.offer(cmds)) {
+					throw new CommunicationErrorException("Previous commands not yet obtained by remote connection");
+				}
+				return;
+			}
+			markDelivered();
+		}
+		f.complete(cmds);
+	}
+
+
+
+	/**
+	 * Poll for all command objects of the next batch without blocking. Used by remote connection.
+	 * 
+	 * The returned future is completed immediately if a batch is pending, otherwise as soon as the next batch
+	 * is transmitted. Only one future can be pending, a previously returned and not yet completed future is cancelled.
+	 * 
+	 * @return the future for the list of command objects
+	 */
+	public CompletableFuture<List<RemoteProtocolUnit>> pollBatchAsync() {
+		synchronized (handoff) {
+			if ((pendingPoll != null) && !pendingPoll.isDone()) {
+				pendingPoll.cancel(false);
+			}
+			pendingPoll = null;
+
+			List<RemoteProtocolUnit> cmds = comQueue.poll();
+			if (cmds != null) {
+				markDelivered();
+				return CompletableFuture.completedFuture(cmds);
+			}
+
+			pendingPoll = new CompletableFuture<List<RemoteProtocolUnit>>();
+			return pendingPoll;
+		}
+	}
+
+
+
+	private synchronized void markDelivered() {
+		deliveredAt = System.nanoTime();
+	}
+
+
+
+	private synchronized void recordLatency() {
+		if (deliveredAt != 0) {
+			lastLatency = System.nanoTime() - deliveredAt;
+			deliveredAt = 0;
+			roundTrips++;
+			totalLatency += lastLatency;
+			if (lastLatency > maxLatency) {
+				maxLatency = lastLatency;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the number of batches for which responses were received
+	 * 
+	 * @return the number of round-trips
+	 */
+	public synchronized long getRoundTrips() {
+		return roundTrips;
+	}
+
+
+
+	/**
+	 * Return the average time between handing a batch to the remote connection and receiving the responses
+	 * 
+	 * @return the average latency in microseconds or 0 if no round-trip was completed
+	 */
+	public synchronized long getAverageLatency() {
+		return roundTrips == 0 ? 0 : totalLatency / roundTrips / 1000;
+	}
+
+
+
+	/**
+	 * Return the maximum time between handing a batch to the remote connection and receiving the responses
+	 * 
+	 * @return the maximum latency in microseconds
+	 */
+	public synchronized long getMaxLatency() {
+		return maxLatency / 1000;
+	}
+
+
+
+	/**
+	 * Return the time between handing the last batch to the remote connection and receiving the responses
+	 * 
+	 * @return the last latency in microseconds
+	 */
+	public synchronized long getLastLatency() {
+		return lastLatency / 1000;
+	}
+
+
+
+	/**
+	 * Close the terminal for further commands
+	 * 
+	 * A pending pollBatchAsync() is cancelled and a thread waiting for a response receives a
+	 * CommunicationErrorException with the given reason.
+	 * 
+	 * @param reason the reason reported to the waiting thread
+	 */
+	public void abort(String reason) {
+		ctracer.debug("abort", "TERMINAL: " + this.name + " " + reason);
+		abortReason = reason;
+
+		synchronized (handoff) {
+			if (pendingPoll != null) {
+				pendingPoll.cancel(false);
+				pendingPoll = null;
+			}
+			comQueue.clear();
+		}
+		resQueue.offer(Collections.singletonList(new RemoteProtocolUnit(RemoteProtocolUnit.Action.CLOSE, -1, reason)));
+	}
+
+
+
+	/**
+	 * Add a command APDU to the batch transmitted with the next command or with flushBatch()
+	 * 
+	 * Execution of the batch stops at the first command that does not return the expected status word.
+	 * 
+	 * @param capdu the command APDU
+	 * @param expectedSW the expected status word or -1 if any status word is acceptable
+	 */
+	public void addToBatch(CommandAPDU capdu, int expectedSW) {
+		CommandAPDU copy = new CommandAPDU(capdu.getBytes());
+
+		synchronized (batch) {
+			batch.add(new RemoteProtocolUnit(copy, expectedSW));
+		}
+	}
+
+
+
+	/**
+	 * Transmit all command APDUs collected with addToBatch()
+	 * 
+	 * @return the response APDUs for the executed commands. If execution was aborted, the last
+	 *         response is the one with the unexpected status word
+	 * @throws CardTerminalException
+	 */
+	public List<ResponseAPDU> flushBatch() throws CardTerminalException {
+		List<RemoteProtocolUnit> cmds;
+
+		synchronized (batch) {
+			if (batch.isEmpty()) {
+				return Collections.emptyList();
+			}
+			cmds = new ArrayList<RemoteProtocolUnit>(batch);
+			batch.clear();
+		}
+
+		List<ResponseAPDU> rapdus = new ArrayList<ResponseAPDU>();
+		for (RemoteProtocolUnit rpu : transmitBatch(cmds)) {
+			if (!rpu.isAPDU()) {
+				throw new CardTerminalException("Received unexpected message");
+			}
+			rapdus.add((ResponseAPDU)rpu.getPayload());
+		}
+		return rapdus;
 	}
 
 
 
 	/**
 	 * Poll for a command object. Used by remote connection.
+	 * 
+	 * Commands of a batch are returned one by one. If a response passed to put() does not match the
+	 * expected status word, the remaining commands of the batch are discarded.
+	 * 
 	 * @return the command object (i.e. CommandAPDU, RemoteControl)
 	 * @throws CardTerminalException
 	 */
 	public RemoteProtocolUnit poll(int timeout) throws CardTerminalException {
-		RemoteProtocolUnit comObject;
+		synchronized (this) {
+			if (polledCommands != null) {
+				return nextPolledCommand();
+			}
+		}
+
+		List<RemoteProtocolUnit> cmds = pollBatch(timeout);
+
+		synchronized (this) {
+			polledCommands = new ArrayList<RemoteProtocolUnit>(cmds);
+			collectedResponses = new ArrayList<RemoteProtocolUnit>(cmds.size());
+			return nextPolledCommand();
+		}
+	}
+
+
+
+	/**
+	 * Return the next command of the current batch. A close command ends the batch, as no response is expected.
+	 */
+	private RemoteProtocolUnit nextPolledCommand() {
+		RemoteProtocolUnit cmd = polledCommands.get(0);
+
+		if (cmd.isClosing()) {
+			polledCommands = null;
+			collectedResponses = null;
+		}
+		return cmd;
+	}
+
+
+
+	/**
+	 * Poll for all command objects of the next batch. Used by remote connection.
+	 * 
+	 * @param timeout the time in seconds to wait for a command
+	 * @return the list of command objects
+	 * @throws CardTerminalException
+	 */
+	public List<RemoteProtocolUnit> pollBatch(int timeout) throws CardTerminalException {
+		List<RemoteProtocolUnit> comObjects;
 
 		try {				
 			ctracer.debug("poll", "TERMINAL: wait for available com apdu");
-			ctracer.debug("poll", "TERMINAL: Queue size" + comQueue.size());
-			comObject = comQueue.poll(timeout, TimeUnit.SECONDS);	
-			ctracer.debug("poll", "TERMINAL: received com apdu");
-			if (comObject == null) {
+			comObjects = comQueue.poll(timeout, TimeUnit.SECONDS);	
+			if (comObjects == null) {
 				throw new CommunicationErrorException("The waiting time of " + timeout + " seconds for the command apdu has expired.");
 			}
+			markDelivered();
+			ctracer.debug("poll", "TERMINAL: received " + comObjects.size() + " com apdu");
 		} catch (InterruptedException e) {
 			throw new CardTerminalException(e.getMessage());
 		}
 
-		return comObject;
+		return comObjects;
 	}
 
 
@@ -119,11 +433,50 @@ public class RemoteTerminal extends CardTerminal {
 	 * @throws CardTerminalException
 	 */
 	public void put(RemoteProtocolUnit resObject) throws CardTerminalException {
-		ctracer.debug("put", "Put response into queue");
-		try {
-			resQueue.put(resObject);
-		} catch (InterruptedException e) {
-			throw new CardTerminalException(e.getMessage());
+		List<RemoteProtocolUnit> complete = null;
+
+		synchronized (this) {
+			if (polledCommands == null) {
+				complete = Collections.singletonList(resObject);
+			} else {
+				RemoteProtocolUnit cmd = polledCommands.remove(0);
+				collectedResponses.add(resObject);
+				if (polledCommands.isEmpty() || !cmd.isExpected(resObject)) {
+					complete = collectedResponses;
+					polledCommands = null;
+					collectedResponses = null;
+				}
+			}
+		}
+
+		if (complete != null) {
+			putBatch(complete);
+		}
+	}
+
+
+
+	/**
+	 * Put the response objects for a batch into the queue. Used by remote connection.
+	 * 
+	 * The call never blocks. Responses not yet taken from the queue, e.g. because the transmitting thread
+	 * timed out, are stale and replaced.
+	 * 
+	 * @param resObjects the response objects, which may be less than the commands if execution was aborted
+	 * @throws CardTerminalException if the terminal was aborted
+	 */
+	public void putBatch(List<RemoteProtocolUnit> resObjects) throws CardTerminalException {
+		if (abortReason != null) {
+			throw new CommunicationErrorException(abortReason);
+		}
+		ctracer.debug("put", "Put " + resObjects.size() + " responses into queue");
+		recordLatency();
+		synchronized (resQueue) {
+			while (!resQueue.offer(resObjects)) {
+				if (resQueue.poll() != null) {
+					ctracer.debug("put", "Discarded stale responses");
+				}
+			}
 		}
 	}
 
@@ -135,15 +488,28 @@ public class RemoteTerminal extends CardTerminal {
 
 		ctracer.debug("internalCloseSlotChannel", "TERMINAL: Closing terminal " + this.name);
 
-		if (!comQueue.isEmpty()) {
-			ctracer.debug("internalCloseSlotChannel", "TERMINAL: clearing com queue...");
-			comQueue.clear();
+		synchronized (batch) {
+			if (!batch.isEmpty()) {
+				ctracer.debug("internalCloseSlotChannel", "TERMINAL: discarding " + batch.size() + " batched commands");
+				batch.clear();
+			}
 		}
-		try {
-			comQueue.put(new RemoteProtocolUnit(RemoteProtocolUnit.Action.CLOSE));
-		} catch (InterruptedException e) {
-			throw new CardTerminalException(e.getMessage());
+		synchronized (handoff) {
+			if (!comQueue.isEmpty()) {
+				ctracer.debug("internalCloseSlotChannel", "TERMINAL: clearing com queue...");
+				comQueue.clear();
+			}
+		}
+		handOver(Collections.singletonList(new RemoteProtocolUnit(RemoteProtocolUnit.Action.CLOSE)));
+	}
+
+
+
+	private static String describe(RemoteProtocolUnit rpu) {
+		if (rpu.isAPDU()) {
+			return "SW " + Integer.toHexString(((ResponseAPDU)rpu.getPayload()).sw()).toUpperCase();
 		}
+		return rpu.getAction().toString();
 	}
 
 
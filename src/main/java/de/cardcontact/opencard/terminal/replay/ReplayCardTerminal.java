@@ -0,0 +1,266 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.replay;
+
+import java.util.Arrays;
+import java.util.List;
+
+import de.cardcontact.opencard.utils.APDURecording;
+import de.cardcontact.opencard.utils.APDURecording.Event;
+import opencard.core.terminal.CardID;
+import opencard.core.terminal.CardTerminal;
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CommandAPDU;
+import opencard.core.terminal.ResponseAPDU;
+import opencard.core.util.HexString;
+import opencard.core.util.Tracer;
+
+/**
+ * Card terminal serving a session recorded with the APDURecorder
+ *
+ * Each recorded slot becomes a slot of the terminal with a card that is always present. Commands
+ * are answered with the recorded response, which allows running the framework in regression and
+ * performance tests without hardware.
+ *
+ * In strict mode each command must match the next recorded command byte by byte. In lenient
+ * mode recorded exchanges may be skipped and a command matches a recorded command with the same
+ * header if no identical command is found, which tolerates random challenges or time stamps in
+ * the command data.
+ *
+ * Responses are returned either immediately or after the latency observed during recording.
+ */
+public class ReplayCardTerminal extends CardTerminal {
+
+	private final static Tracer ctracer = new Tracer(ReplayCardTerminal.class);
+
+	private final APDURecording recording;
+
+	/** Position of the next event in each slot */
+	private final int[] position;
+
+	private final boolean strict;
+
+	private final boolean originalTiming;
+
+	private long replayed = 0;
+
+
+
+	/**
+	 * Create terminal for a recorded session
+	 *
+	 * @param name the friendly name of the terminal
+	 * @param type the type of the terminal
+	 * @param address the address of the terminal
+	 * @param recording the recorded session
+	 * @param strict true to require that commands are sent exactly as recorded
+	 * @param originalTiming true to delay responses by the recorded latency
+	 * @throws CardTerminalException if the recording contains no slot
+	 */
+	public ReplayCardTerminal(String name, String type, String address, APDURecording recording, boolean strict, boolean originalTiming) throws CardTerminalException {
+		super(name, type, address);
+
+		if (recording.getSlotCount() == 0) {
+			throw new CardTerminalException("ReplayCardTerminal: Recording is empty");
+		}
+
+		this.recording = recording;
+		this.strict = strict;
+		this.originalTiming = originalTiming;
+		this.position = new int[recording.getSlotCount()];
+
+		addSlots(recording.getSlotCount());
+	}
+
+
+
+	/**
+	 * Restart the replay of all slots from the beginning of the recording
+	 */
+	public void rewind() {
+		synchronized (position) {
+			Arrays.fill(position, 0);
+		}
+	}
+
+
+
+	/**
+	 * Return the number of command APDUs answered from the recording
+	 *
+	 * @return the number of replayed exchanges
+	 */
+	public long getReplayedCount() {
+		synchronized (position) {
+			return replayed;
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#getCardID(int)
+	 */
+	public CardID getCardID(int slotID) throws CardTerminalException {
+		return new CardID(recording.getATR(slotID));
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#isCardPresent(int)
+	 */
+	public boolean isCardPresent(int slotID) throws CardTerminalException {
+		return true;
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#open()
+	 */
+	public void open() throws CardTerminalException {
+		for (int i = 0; i < position.length; i++) {
+			cardInserted(i);
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#close()
+	 */
+	public void close() throws CardTerminalException {
+		for (int i = 0; i < position.length; i++) {
+			cardRemoved(i);
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#internalReset(int, int)
+	 */
+	protected CardID internalReset(int slot, int ms) throws CardTerminalException {
+		List<Event> events = recording.getEvents(slot);
+
+		synchronized (position) {
+			int i = position[slot];
+
+			if (strict) {
+				if ((i >= events.size()) || !events.get(i).isReset()) {
+					throw new CardTerminalException("ReplayCardTerminal: Unexpected reset in slot " + slot + " at event " + i);
+				}
+			} else {
+				while ((i < events.size()) && !events.get(i).isReset()) {
+					i++;
+				}
+				if (i >= events.size()) {
+					// No further reset recorded, continue with the current position
+					return getCardID(slot);
+				}
+			}
+
+			position[slot] = i + 1;
+			return new CardID(events.get(i).getATR());
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminal#internalSendAPDU(int, opencard.core.terminal.CommandAPDU, int)
+	 */
+	protected ResponseAPDU internalSendAPDU(int slot, CommandAPDU capdu, int ms) throws CardTerminalException {
+		byte[] command = Arrays.copyOf(capdu.getBuffer(), capdu.getLength());
+		Event event;
+
+		synchronized (position) {
+			int i = findExchange(recording.getEvents(slot), position[slot], command);
+			if (i < 0) {
+				throw new CardTerminalException("ReplayCardTerminal: No recorded response in slot " + slot + " at event " + position[slot] + " for " + HexString.hexify(command));
+			}
+			event = recording.getEvents(slot).get(i);
+			position[slot] = i + 1;
+			replayed++;
+		}
+
+		if (originalTiming && (event.getLatency() > 0)) {
+			long latency = event.getLatency();
+			try	{
+				Thread.sleep(latency / 1000, (int)(latency % 1000) * 1000);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardTerminalException("ReplayCardTerminal: Interrupted while replaying APDU");
+			}
+		}
+
+		return new ResponseAPDU(event.getResponse().clone());
+	}
+
+
+
+	/**
+	 * Locate the recorded exchange matching the command
+	 *
+	 * @param events the events of the slot
+	 * @param start the position of the next event
+	 * @param command the command APDU
+	 * @return the index of the exchange or -1 if none matches
+	 */
+	private int findExchange(List<Event> events, int start, byte[] command) {
+		if (strict) {
+			// Skip the ATR of the initial connect, which is not preceded by a reset
+			if ((start == 0) && (events.size() > 0) && events.get(0).isReset()) {
+				start = 1;
+			}
+			if ((start < events.size()) && !events.get(start).isReset() && Arrays.equals(events.get(start).getCommand(), command)) {
+				return start;
+			}
+			return -1;
+		}
+
+		int header = -1;
+		for (int i = start; i < events.size(); i++) {
+			Event e = events.get(i);
+			if (e.isReset()) {
+				continue;
+			}
+			if (Arrays.equals(e.getCommand(), command)) {
+				return i;
+			}
+			if ((header < 0) && (e.getCommand().length >= 4) && (command.length >= 4)
+					&& Arrays.equals(Arrays.copyOf(e.getCommand(), 4), Arrays.copyOf(command, 4))) {
+				header = i;
+			}
+		}
+
+		if (header >= 0) {
+			ctracer.debug("findExchange", "Matched command by header at event " + header);
+		}
+		return header;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.replay;
+
+import java.io.IOException;
+
+import de.cardcontact.opencard.utils.APDURecording;
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CardTerminalFactory;
+import opencard.core.terminal.CardTerminalRegistry;
+import opencard.core.terminal.TerminalInitException;
+
+/**
+ * Factory for card terminals replaying a recorded session
+ *
+ * Configuration:
+ * <pre>
+ * OpenCard.terminals = de.cardcontact.opencard.terminal.replay.ReplayCardTerminalFactory|Replay|REPLAY|0|session.ocfr|lenient|zero
+ * </pre>
+ *
+ * The fourth parameter is the name of the recording, the fifth the matching mode "strict" (default) or "lenient"
+ * and the sixth the timing "original" (default) or "zero".
+ */
+public class ReplayCardTerminalFactory implements CardTerminalFactory {
+
+
+
+	/**
+	 * Constructor
+	 */
+	public ReplayCardTerminalFactory() {
+		super();
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminalFactory#createCardTerminals(opencard.core.terminal.CardTerminalRegistry, java.lang.String[])
+	 */
+	public void createCardTerminals(CardTerminalRegistry ctr, String[] terminalInfo) throws CardTerminalException, TerminalInitException {
+
+		boolean strict = true;
+		boolean originalTiming = true;
+
+		if (terminalInfo.length < 4) {
+			throw new TerminalInitException("ReplayCardTerminalFactory needs at least 4 parameters.");
+		}
+
+		if (!terminalInfo[TERMINAL_TYPE_ENTRY].equals("REPLAY")) {
+			throw new TerminalInitException("Requested Terminal type not known.");
+		}
+
+		if (terminalInfo.length >= 5) {
+			if (terminalInfo[4].equals("lenient")) {
+				strict = false;
+			} else if (!terminalInfo[4].equals("strict")) {
+				throw new TerminalInitException("Unknown matching mode " + terminalInfo[4]);
+			}
+		}
+
+		if (terminalInfo.length >= 6) {
+			if (terminalInfo[5].equals("zero")) {
+				originalTiming = false;
+			} else if (!terminalInfo[5].equals("original")) {
+				throw new TerminalInitException("Unknown timing " + terminalInfo[5]);
+			}
+		}
+
+		APDURecording recording;
+		try	{
+			recording = APDURecording.load(terminalInfo[3]);
+		}
+		catch(IOException e) {
+			throw new TerminalInitException("Recording " + terminalInfo[3] + " could not be read: " + e.getMessage());
+		}
+
+		try {
+			ctr.add(new ReplayCardTerminal(terminalInfo[TERMINAL_NAME_ENTRY], terminalInfo[TERMINAL_TYPE_ENTRY], terminalInfo[TERMINAL_ADDRESS_ENTRY], recording, strict, originalTiming));
+		}
+		catch (Exception e) {
+			throw new TerminalInitException("ReplayCardTerminal could not be added to card terminal registry! " + e.getMessage());
+		}
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminalFactory#open()
+	 */
+	public void open() throws CardTerminalException {
+	}
+
+
+
+	/* (non-Javadoc)
+	 * @see opencard.core.terminal.CardTerminalFactory#close()
+	 */
+	public void close() throws CardTerminalException {
+	}
+}
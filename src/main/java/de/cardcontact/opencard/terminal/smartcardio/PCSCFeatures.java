@@ -0,0 +1,334 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|  
+ * |#       #|  Copyright (c) 1999-2011 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  --------- 
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.smartcardio;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+
+import opencard.core.util.Tracer;
+
+/**
+ * Immutable set of PC/SC part 10 features and reader properties.
+ *
+ * The feature list is obtained once with CM_IOCTL_GET_FEATURE_REQUEST. If the reader supports
+ * FEATURE_GET_TLV_PROPERTIES, the TLV properties like PIN sizes and the maximum APDU data size
+ * are read as well.
+ */
+public final class PCSCFeatures {
+
+	private final static Tracer ctracer = new Tracer(PCSCFeatures.class);
+
+	public static final int FEATURE_VERIFY_PIN_START = 0x01;
+	public static final int FEATURE_VERIFY_PIN_FINISH = 0x02;
+	public static final int FEATURE_MODIFY_PIN_START = 0x03;
+	public static final int FEATURE_MODIFY_PIN_FINISH = 0x04;
+	public static final int FEATURE_GET_KEY_PRESSED = 0x05;
+	public static final int FEATURE_VERIFY_PIN_DIRECT = 0x06;
+	public static final int FEATURE_MODIFY_PIN_DIRECT = 0x07;
+	public static final int FEATURE_MCT_READER_DIRECT = 0x08;
+	public static final int FEATURE_MCT_UNIVERSAL = 0x09;
+	public static final int FEATURE_IFD_PIN_PROPERTIES = 0x0A;
+	public static final int FEATURE_ABORT = 0x0B;
+	public static final int FEATURE_SET_SPE_MESSAGE = 0x0C;
+	public static final int FEATURE_VERIFY_PIN_DIRECT_APP_ID = 0x0D;
+	public static final int FEATURE_MODIFY_PIN_DIRECT_APP_ID = 0x0E;
+	public static final int FEATURE_WRITE_DISPLAY = 0x0F;
+	public static final int FEATURE_GET_KEY = 0x10;
+	public static final int FEATURE_IFD_DISPLAY_PROPERTIES = 0x11;
+	public static final int FEATURE_GET_TLV_PROPERTIES = 0x12;
+	public static final int FEATURE_CCID_ESC_COMMAND = 0x13;
+	public static final int FEATURE_EXECUTE_PACE = 0x20;
+
+	public static final int PROPERTY_wLcdLayout = 0x01;
+	public static final int PROPERTY_bEntryValidationCondition = 0x02;
+	public static final int PROPERTY_bTimeOut2 = 0x03;
+	public static final int PROPERTY_wLcdMaxCharacters = 0x04;
+	public static final int PROPERTY_wLcdMaxLines = 0x05;
+	public static final int PROPERTY_bMinPINSize = 0x06;
+	public static final int PROPERTY_bMaxPINSize = 0x07;
+	public static final int PROPERTY_sFirmwareID = 0x08;
+	public static final int PROPERTY_bPPDUSupport = 0x09;
+	public static final int PROPERTY_dwMaxAPDUDataSize = 0x0A;
+	public static final int PROPERTY_wIdVendor = 0x0B;
+	public static final int PROPERTY_wIdProduct = 0x0C;
+
+	/** Maximum data size of a short APDU */
+	private static final int MAX_SHORT_APDU_DATA_SIZE = 256;
+
+	/** SCARD_CTL_CODE(3400) as defined by PC/SC part 10 */
+	private static final int CM_IOCTL_GET_FEATURE_REQUEST = 0x31 << 16 | 3400 << 2;
+
+	private static final String[] FEATURE_NAMES = {
+		null,
+		"FEATURE_VERIFY_PIN_START",
+		"FEATURE_VERIFY_PIN_FINISH",
+		"FEATURE_MODIFY_PIN_START",
+		"FEATURE_MODIFY_PIN_FINISH",
+		"FEATURE_GET_KEY_PRESSED",
+		"FEATURE_VERIFY_PIN_DIRECT",
+		"FEATURE_MODIFY_PIN_DIRECT",
+		"FEATURE_MCT_READER_DIRECT",
+		"FEATURE_MCT_UNIVERSAL",
+		"FEATURE_IFD_PIN_PROPERTIES",
+		"FEATURE_ABORT",
+		"FEATURE_SET_SPE_MESSAGE",
+		"FEATURE_VERIFY_PIN_DIRECT_APP_ID",
+		"FEATURE_MODIFY_PIN_DIRECT_APP_ID",
+		"FEATURE_WRITE_DISPLAY",
+		"FEATURE_GET_KEY",
+		"FEATURE_IFD_DISPLAY_PROPERTIES",
+		"FEATURE_GET_TLV_PROPERTIES",
+		"FEATURE_CCID_ESC_COMMAND"
+	};
+
+	private static final String[] PROPERTY_NAMES = {
+		null,
+		"wLcdLayout",
+		"bEntryValidationCondition",
+		"bTimeOut2",
+		"wLcdMaxCharacters",
+		"wLcdMaxLines",
+		"bMinPINSize",
+		"bMaxPINSize",
+		"sFirmwareID",
+		"bPPDUSupport",
+		"dwMaxAPDUDataSize",
+		"wIdVendor",
+		"wIdProduct"
+	};
+
+	/** Empty feature set for readers without PC/SC part 10 support */
+	public static final PCSCFeatures NONE = new PCSCFeatures(
+			Collections.<Integer, Integer>emptyMap(), Collections.<Integer, Long>emptyMap(), null);
+
+	/** Control codes by feature tag */
+	private final Map<Integer, Integer> controlCodes;
+
+	/** Numeric TLV properties by tag */
+	private final Map<Integer, Long> properties;
+
+	/** Firmware ID from the TLV properties or null */
+	private final String firmwareID;
+
+
+
+	private PCSCFeatures(Map<Integer, Integer> controlCodes, Map<Integer, Long> properties, String firmwareID) {
+		this.controlCodes = controlCodes;
+		this.properties = properties;
+		this.firmwareID = firmwareID;
+	}
+
+
+
+	/**
+	 * Query the features and TLV properties of the reader the card is connected with.
+	 *
+	 * @param card the connected card
+	 * @return the features, NONE if the reader does not support feature requests
+	 */
+	public static PCSCFeatures read(Card card) {
+		byte[] tlv;
+
+		try	{
+			tlv = card.transmitControlCommand(CM_IOCTL_GET_FEATURE_REQUEST, new byte[0]);
+		}
+		catch(CardException e) {
+			ctracer.debug("read", e);
+			return NONE;
+		}
+
+		Map<Integer, Integer> codes = new LinkedHashMap<Integer, Integer>();
+		int i = 0;
+		while (i + 1 < tlv.length) {
+			int tag = tlv[i] & 0xFF;
+			int len = tlv[i + 1] & 0xFF;
+			i += 2;
+			if (i + len > tlv.length) {
+				break;
+			}
+			int c = 0;
+			for (int l = 0; l < len; l++) {
+				c <<= 8;
+				c |= tlv[i + l] & 0xFF;		// Big endian control code
+			}
+			codes.put(Integer.valueOf(tag), Integer.valueOf(c));
+			i += len;
+		}
+
+		Map<Integer, Long> props = new LinkedHashMap<Integer, Long>();
+		String firmware = null;
+		Integer pcc = codes.get(Integer.valueOf(FEATURE_GET_TLV_PROPERTIES));
+
+		if (pcc != null) {
+			try	{
+				tlv = card.transmitControlCommand(pcc.intValue(), new byte[0]);
+			}
+			catch(CardException e) {
+				ctracer.debug("read", e);
+				tlv = new byte[0];
+			}
+
+			i = 0;
+			while (i + 1 < tlv.length) {
+				int tag = tlv[i] & 0xFF;
+				int len = tlv[i + 1] & 0xFF;
+				i += 2;
+				if (i + len > tlv.length) {
+					break;
+				}
+				if (tag == PROPERTY_sFirmwareID) {
+					firmware = new String(tlv, i, len);
+				} else if (len <= 4) {
+					long v = 0;
+					for (int l = len - 1; l >= 0; l--) {
+						v <<= 8;
+						v |= tlv[i + l] & 0xFF;		// Little endian value
+					}
+					props.put(Integer.valueOf(tag), Long.valueOf(v));
+				}
+				i += len;
+			}
+		}
+
+		return new PCSCFeatures(Collections.unmodifiableMap(codes), Collections.unmodifiableMap(props), firmware);
+	}
+
+
+
+	/**
+	 * Return the control code for the feature.
+	 *
+	 * @param feature one of FEATURE_*
+	 * @return the control code or -1 if the feature is not supported
+	 */
+	public int getControlCode(int feature) {
+		Integer c = controlCodes.get(Integer.valueOf(feature));
+		return c == null ? -1 : c.intValue();
+	}
+
+
+
+	/**
+	 * True if the reader supports the feature.
+	 *
+	 * @param feature one of FEATURE_*
+	 */
+	public boolean hasFeature(int feature) {
+		return controlCodes.containsKey(Integer.valueOf(feature));
+	}
+
+
+
+	/**
+	 * Return a numeric TLV property.
+	 *
+	 * @param property one of PROPERTY_*
+	 * @return the value or -1 if the property is not reported by the reader
+	 */
+	public long getProperty(int property) {
+		Long v = properties.get(Integer.valueOf(property));
+		return v == null ? -1 : v.longValue();
+	}
+
+
+
+	/**
+	 * Return the firmware identification of the reader.
+	 *
+	 * @return the firmware ID or null
+	 */
+	public String getFirmwareID() {
+		return firmwareID;
+	}
+
+
+
+	/**
+	 * Determine if the reader supports extended length APDUs.
+	 *
+	 * @return Boolean.TRUE or Boolean.FALSE if the reader reports dwMaxAPDUDataSize, null if unknown
+	 */
+	public Boolean supportsExtendedLength() {
+		long max = getProperty(PROPERTY_dwMaxAPDUDataSize);
+		if (max < 0) {
+			return null;
+		}
+		return Boolean.valueOf(max > MAX_SHORT_APDU_DATA_SIZE);
+	}
+
+
+
+	/**
+	 * Add features and properties to the terminal features.
+	 *
+	 * Features are added with their name and the control code in hexadecimal notation,
+	 * properties with their name and value. If the reader reports dwMaxAPDUDataSize, the
+	 * property extendedLength is set to true or false.
+	 *
+	 * @param features the terminal features to enhance
+	 * @return the enhanced features
+	 */
+	public Properties addTo(Properties features) {
+		for (Map.Entry<Integer, Integer> e : controlCodes.entrySet()) {
+			features.setProperty(featureName(e.getKey().intValue()), "0x" + Integer.toHexString(e.getValue().intValue()).toUpperCase());
+		}
+		for (Map.Entry<Integer, Long> e : properties.entrySet()) {
+			int tag = e.getKey().intValue();
+			String name = (tag > 0) && (tag < PROPERTY_NAMES.length) ? PROPERTY_NAMES[tag] : "PROPERTY_" + tag;
+			features.setProperty(name, e.getValue().toString());
+		}
+		if (firmwareID != null) {
+			features.setProperty(PROPERTY_NAMES[PROPERTY_sFirmwareID], firmwareID);
+		}
+		Boolean ext = supportsExtendedLength();
+		if (ext != null) {
+			features.setProperty("extendedLength", ext.toString());
+		}
+		return features;
+	}
+
+
+
+	private static String featureName(int tag) {
+		if (tag == FEATURE_EXECUTE_PACE) {
+			return "FEATURE_EXECUTE_PACE";
+		}
+		if ((tag > 0) && (tag < FEATURE_NAMES.length)) {
+			return FEATURE_NAMES[tag];
+		}
+		return "FEATURE_" + Integer.toHexString(tag).toUpperCase();
+	}
+
+
+
+	public String toString() {
+		return addTo(new Properties()).toString();
+	}
+}
@@ -42,15 +42,20 @@ import opencard.core.util.HexString;
  */
 public class PCSCIOControl {
 
-	private static final byte FEATURE_VERIFY_PIN_DIRECT = 0x06;
-	private static final byte FEATURE_MODIFY_PIN_DIRECT = 0x07;
-	private static final byte FEATURE_EXECUTE_PACE = 0x20;
+	private static final byte FEATURE_VERIFY_PIN_DIRECT = PCSCFeatures.FEATURE_VERIFY_PIN_DIRECT;
+	private static final byte FEATURE_MODIFY_PIN_DIRECT = PCSCFeatures.FEATURE_MODIFY_PIN_DIRECT;
+	private static final byte FEATURE_EXECUTE_PACE = PCSCFeatures.FEATURE_EXECUTE_PACE;
 
 
 	private Card card;
 
 
 
+	/** Features of the reader, obtained on first use if not passed to the constructor */
+	private PCSCFeatures features;
+
+
+
 	/** Timeout in seconds */
 	private byte timeOut = 0x30;
 
@@ -201,6 +206,32 @@ public class PCSCIOControl {
 
 
 
+	/**
+	 * @constructor
+	 * @param card the card object
+	 * @param features the features previously obtained for the connection to the card
+	 */
+	public PCSCIOControl(Card card, PCSCFeatures features) {
+		this.card = card;
+		this.features = features;
+	}
+
+
+
+	/**
+	 * Return the features of the reader, querying the reader on first use
+	 *
+	 * @return the reader features
+	 */
+	public PCSCFeatures getFeatures() {
+		if (this.features == null) {
+			this.features = PCSCFeatures.read(this.card);
+		}
+		return this.features;
+	}
+
+
+
 	/**
 	 * Set the formatString depending on the PIN encoding.
 	 * @param encoding one of "Format 2 Block", "Packed BCD", "String encoding"
@@ -549,38 +580,7 @@ public class PCSCIOControl {
 	 * @return The feature control code or -1 if feature was not found
 	 */
 	public int getFeatureControlCode(int feature) {
-		byte[] features;
-
-		int ioctl = (0x31 << 16 | (3400) << 2);
-
-		byte[] empty = {};
-
-		try {
-			features = this.card.transmitControlCommand(ioctl, empty);
-		}
-		catch(CardException e) {
-			return -1;
-		}
-
-		int i = 0;
-
-		while(i < features.length) {
-			if (features[i] == feature) {
-				int c = 0;
-				i += 2;				
-				for (int l = 0; (i < features.length) && (l < 4); i++, l++) {
-					c <<= 8;
-					c |= features[i] & 0xFF;
-				}
-
-				return c;
-
-			} else {
-				i += 6; // skip six bytes
-			}
-		}
-
-		return -1;
+		return getFeatures().getControlCode(feature);
 	}	
 
 
@@ -0,0 +1,358 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2008 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.terminal.smartcardio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+import opencard.core.terminal.CardTerminalRegistry;
+import opencard.core.terminal.Pollable;
+import opencard.core.util.Tracer;
+
+/**
+ * Detects card insertion and removal for all SmartCardIOTerminal instances on a single thread.
+ *
+ * The monitor thread blocks in CardTerminals.waitForChange() and only queries the readers reported
+ * as changed, so events are generated as soon as PC/SC reports them instead of at the next poll
+ * interval. If the PC/SC layer does not support waiting for changes, all monitored terminals are
+ * handed over to the polling EventGenerator.
+ *
+ * The monitor also tracks the list of readers and informs registered SmartCardIOFactory instances
+ * if a reader is added or removed. The CardTerminals object is obtained once and shared with the
+ * factories, so no TerminalFactory needs to be created for each check.
+ */
+public class SmartCardIOEventMonitor implements Runnable {
+
+	private final static Tracer ctracer = new Tracer(SmartCardIOEventMonitor.class);
+
+	/** Maximum time in ms to block in waitForChange() before checking for shutdown */
+	private final static long WAIT_TIMEOUT = 1000;
+
+	private static SmartCardIOEventMonitor theMonitor = null;
+
+	/** Monitored terminals by reader name */
+	private final Map<String, SmartCardIOTerminal> terminals = new HashMap<String, SmartCardIOTerminal>();
+
+	/** Factories informed about added or removed readers */
+	private final List<SmartCardIOFactory> factories = new ArrayList<SmartCardIOFactory>();
+
+	/** Reader names seen in the last check, null to force notification of the factories */
+	private Set<String> readers = null;
+
+	private CardTerminals cardTerminals = null;
+
+	private Thread thread = null;
+
+	/** Set if waitForChange() is not usable and terminals must be polled */
+	private boolean fallback = false;
+
+
+
+	private SmartCardIOEventMonitor() {
+	}
+
+
+
+	/**
+	 * Gets the unique instance of the monitor.
+	 *
+	 * @return the monitor singleton
+	 */
+	public static synchronized SmartCardIOEventMonitor getMonitor() {
+		if (theMonitor == null) {
+			theMonitor = new SmartCardIOEventMonitor();
+		}
+		return theMonitor;
+	}
+
+
+
+	/**
+	 * Add terminal to the list of monitored terminals and start the monitor thread if required.
+	 *
+	 * @param terminal the terminal to monitor
+	 * @return true if the terminal is monitored, false if the caller must fall back to polling
+	 */
+	public synchronized boolean add(SmartCardIOTerminal terminal) {
+		if (fallback || (getCardTerminals() == null)) {
+			return false;
+		}
+
+		terminals.put(terminal.getName(), terminal);
+		startThread();
+		return true;
+	}
+
+
+
+	/**
+	 * Add factory to the list of factories informed about added or removed readers.
+	 *
+	 * @param factory the factory to inform
+	 * @return true if the factory is informed, false if the caller must fall back to polling
+	 */
+	public synchronized boolean addFactory(SmartCardIOFactory factory) {
+		if (fallback || (getCardTerminals() == null)) {
+			return false;
+		}
+
+		if (!factories.contains(factory)) {
+			factories.add(factory);
+		}
+		readers = null;
+		startThread();
+		return true;
+	}
+
+
+
+	/**
+	 * Remove factory from the list of factories informed about added or removed readers.
+	 *
+	 * @param factory the factory to remove
+	 * @return true if the factory was registered
+	 */
+	public synchronized boolean removeFactory(SmartCardIOFactory factory) {
+		boolean r = factories.remove(factory);
+
+		stopThreadIfIdle();
+		return r;
+	}
+
+
+
+	/**
+	 * Gets the CardTerminals object shared by all users of the monitor.
+	 *
+	 * @return the CardTerminals of the default TerminalFactory or null if not available
+	 */
+	public synchronized CardTerminals getCardTerminals() {
+		if ((cardTerminals == null) && !fallback) {
+			try	{
+				cardTerminals = TerminalFactory.getDefault().terminals();
+			}
+			catch(RuntimeException e) {
+				ctracer.error("getCardTerminals", e);
+				fallback = true;
+			}
+		}
+		return cardTerminals;
+	}
+
+
+
+	private void startThread() {
+		if (thread == null) {
+			thread = new Thread(this, "OCF SmartCardIO Monitor");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+
+
+	private void stopThreadIfIdle() {
+		if (terminals.isEmpty() && factories.isEmpty()) {
+			thread = null;
+		}
+	}
+
+
+
+	/**
+	 * Remove terminal from the list of monitored terminals. The monitor thread terminates if no terminal
+	 * and no factory is left.
+	 *
+	 * @param terminal the terminal to remove
+	 * @return true if the terminal was monitored
+	 */
+	public synchronized boolean remove(SmartCardIOTerminal terminal) {
+		boolean r = terminals.remove(terminal.getName()) != null;
+
+		stopThreadIfIdle();
+		return r;
+	}
+
+
+
+	/**
+	 * Wait for status changes and forward them to the affected terminals.
+	 */
+	@Override
+	public void run() {
+		Thread self = Thread.currentThread();
+
+		while (isCurrentThread(self)) {
+			boolean changed = false;
+
+			try	{
+				changed = cardTerminals.waitForChange(WAIT_TIMEOUT);
+			}
+			catch(CardException | IllegalStateException e) {
+				// Thrown if no reader is available, which is not a permanent condition
+				ctracer.debug("run", e);
+				try {
+					Thread.sleep(WAIT_TIMEOUT);
+				}
+				catch (InterruptedException ie) {
+					// Ignore
+				}
+			}
+			catch(RuntimeException re) {
+				ctracer.error("run", re);
+				switchToPolling();
+				return;
+			}
+
+			checkReaders();
+
+			if (changed) {
+				dispatchChanges();
+			}
+		}
+	}
+
+
+
+	private synchronized boolean isCurrentThread(Thread self) {
+		return thread == self;
+	}
+
+
+
+	/**
+	 * Update the terminals reported as changed by the last waitForChange().
+	 */
+	private void dispatchChanges() {
+		Set<String> removed = new HashSet<String>();
+		Set<String> inserted = new HashSet<String>();
+
+		try	{
+			for (javax.smartcardio.CardTerminal ct : cardTerminals.list(CardTerminals.State.CARD_REMOVAL)) {
+				removed.add(ct.getName());
+			}
+			for (javax.smartcardio.CardTerminal ct : cardTerminals.list(CardTerminals.State.CARD_INSERTION)) {
+				inserted.add(ct.getName());
+			}
+		}
+		catch(CardException ce) {
+			ctracer.debug("dispatchChanges", ce);
+			return;
+		}
+
+		Set<String> changed = new HashSet<String>(removed);
+		changed.addAll(inserted);
+
+		for (String name : changed) {
+			SmartCardIOTerminal terminal;
+			synchronized (this) {
+				terminal = terminals.get(name);
+			}
+			if (terminal != null) {
+				terminal.statusChanged(removed.contains(name) && inserted.contains(name));
+			}
+		}
+	}
+
+
+
+	/**
+	 * Compare the current list of readers with the last known list and inform the factories
+	 * if readers were added or removed.
+	 */
+	private void checkReaders() {
+		List<SmartCardIOFactory> list;
+		Set<String> last;
+
+		synchronized (this) {
+			if (factories.isEmpty()) {
+				readers = null;
+				return;
+			}
+			list = new ArrayList<SmartCardIOFactory>(factories);
+			last = readers;
+		}
+
+		List<javax.smartcardio.CardTerminal> current;
+		try	{
+			current = cardTerminals.list();
+		}
+		catch(CardException ce) {
+			// Thrown if no reader is available
+			current = new ArrayList<javax.smartcardio.CardTerminal>();
+		}
+
+		Set<String> names = new HashSet<String>();
+		for (javax.smartcardio.CardTerminal ct : current) {
+			names.add(ct.getName());
+		}
+
+		if (names.equals(last)) {
+			return;
+		}
+
+		synchronized (this) {
+			readers = names;
+		}
+
+		ctracer.debug("checkReaders", "Readers changed to " + names);
+
+		for (SmartCardIOFactory factory : list) {
+			factory.readersChanged(current);
+		}
+	}
+
+
+
+	/**
+	 * Hand over all monitored terminals and factories to the EventGenerator for polling.
+	 */
+	private void switchToPolling() {
+		List<Pollable> list;
+
+		synchronized (this) {
+			fallback = true;
+			thread = null;
+			list = new ArrayList<Pollable>(factories);
+			list.addAll(terminals.values());
+			terminals.clear();
+			factories.clear();
+		}
+
+		ctracer.info("switchToPolling", "waitForChange() not supported, polling " + list.size() + " terminals and factories");
+
+		for (Pollable p : list) {
+			CardTerminalRegistry.getRegistry().addPollable(p);
+		}
+	}
+}
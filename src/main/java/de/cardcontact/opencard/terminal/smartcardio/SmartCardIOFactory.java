@@ -24,14 +24,18 @@
 
 package de.cardcontact.opencard.terminal.smartcardio;
 
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminals;
 import javax.smartcardio.TerminalFactory;
 
-import opencard.core.terminal.CardTerminal;
 import opencard.core.terminal.CardTerminalException;
 import opencard.core.terminal.CardTerminalFactory;
 import opencard.core.terminal.CardTerminalRegistry;
@@ -42,18 +46,36 @@ import opencard.core.util.Tracer;
 /**
  * Factory that creates a CardTerminal object for each card reader listed via the javax.smartcardio interface.
  * 
+ * Readers added or removed later are detected by the SmartCardIOEventMonitor, which informs the factory
+ * via readersChanged(). If the monitor is not available, the factory is polled by the EventGenerator instead.
+ * In both cases terminals are matched by reader name.
  */
 public class SmartCardIOFactory implements CardTerminalFactory, Pollable {
 
 	private final static Tracer ctracer = new Tracer(SmartCardIOFactory.class);
 
-	private int numberOfRegisteredTerminals = 0;
+	/** Terminals created by this factory, keyed by reader name */
+	private final Map<String, SmartCardIOTerminal> registeredTerminals = new HashMap<String, SmartCardIOTerminal>();
+
+	/** Cached CardTerminals used when polling */
+	private CardTerminals cardTerminals = null;
+
+	private boolean monitored = false;
+
+	private boolean polled = false;
 
 
 
 	@Override
 	public void close() throws CardTerminalException {
-		// Empty
+		if (monitored) {
+			SmartCardIOEventMonitor.getMonitor().removeFactory(this);
+			monitored = false;
+		}
+		if (polled) {
+			CardTerminalRegistry.getRegistry().removePollable(this);
+			polled = false;
+		}
 	}
 
 
@@ -70,21 +92,34 @@ public class SmartCardIOFactory implements CardTerminalFactory, Pollable {
 		if (terminalInfo.length >= 2) {
 			terminalType = terminalInfo[1];
 		}
+
+		CardTerminals ts = getCardTerminals();
+		if (ts == null) {
+			return;
+		}
+
 		if (terminalType.endsWith("-NOPOLL")) {
 			try	{
-				TerminalFactory factory = TerminalFactory.getDefault();
-				List<javax.smartcardio.CardTerminal> terminals = factory.terminals().list();
+				List<javax.smartcardio.CardTerminal> terminals = ts.list();
 				
 				for (javax.smartcardio.CardTerminal ct : terminals) {
-					ctr.add(new SmartCardIOTerminal(ct.getName(), terminalType, "", ct));
-					numberOfRegisteredTerminals++;
+					SmartCardIOTerminal terminal = new SmartCardIOTerminal(ct.getName(), terminalType, "", ct);
+					ctr.add(terminal);
+					synchronized (registeredTerminals) {
+						registeredTerminals.put(ct.getName(), terminal);
+					}
 				}
 			}
 			catch(CardException ce) {
 				ctracer.error("createCardTerminals", ce);
 			}
 		} else {
-			CardTerminalRegistry.getRegistry().addPollable(this);
+			poll();
+			monitored = SmartCardIOEventMonitor.getMonitor().addFactory(this);
+			if (!monitored) {
+				polled = true;
+				CardTerminalRegistry.getRegistry().addPollable(this);
+			}
 		}
 	}
 
@@ -103,100 +138,98 @@ public class SmartCardIOFactory implements CardTerminalFactory, Pollable {
 	 */
 	@Override
 	public void poll() throws CardTerminalException {
-		CardTerminalRegistry ctr = CardTerminalRegistry.getRegistry();
-		
-		TerminalFactory factory = TerminalFactory.getDefault();
-		CardTerminals ts = factory.terminals();
-		List<javax.smartcardio.CardTerminal> terminals = null;
+		CardTerminals ts = getCardTerminals();
+		if (ts == null) {
+			return;
+		}
+
+		List<javax.smartcardio.CardTerminal> terminals;
 		try {
 			terminals = ts.list();
 		} catch (CardException e) {
 			// Catch exception which is thrown when no terminal is available
-			if(numberOfRegisteredTerminals > 0) {
-				removeAllTerminals(ctr);
-			}
-			return;
-		}
-		int numberOfTerminals = terminals.size();
-		
-		if (numberOfTerminals < numberOfRegisteredTerminals) {
-			removeTerminals(terminals, ctr);
-		}
-		if (numberOfTerminals > numberOfRegisteredTerminals) {
-			addTerminals(terminals, ctr);
+			terminals = new ArrayList<javax.smartcardio.CardTerminal>();
 		}
+		updateTerminals(terminals);
 	}
-	
-	
-	
+
+
+
 	/**
-	 * Remove all terminals from the CardTerminalRegistry
-	 * @param ctr OCF card terminal registry
-	 * @throws CardTerminalException
+	 * Called by the SmartCardIOEventMonitor if the list of readers changed.
+	 *
+	 * @param terminals the SmartCardIO terminals currently available
 	 */
-	private void removeAllTerminals(CardTerminalRegistry ctr) throws CardTerminalException {
-		Enumeration terminals = ctr.getCardTerminals();
-		while(terminals.hasMoreElements()) {
-			ctr.remove((CardTerminal)terminals.nextElement());
+	void readersChanged(List<javax.smartcardio.CardTerminal> terminals) {
+		try	{
+			updateTerminals(terminals);
+		}
+		catch(CardTerminalException cte) {
+			ctracer.error("readersChanged", cte);
 		}
-		numberOfRegisteredTerminals = 0;
 	}
 
 
 
-	/**
-	 * Remove Terminals which doesn't exists any more
-	 * 
-	 * @param terminals SmartCardIO terminals
-	 * @param ctr OCF card terminal registry
-	 * @throws CardTerminalException 
-	 */
-	private void removeTerminals(List<javax.smartcardio.CardTerminal> terminals, CardTerminalRegistry ctr) throws CardTerminalException {
-		Enumeration registeredTerminals = ctr.getCardTerminals();
-		
-		while(registeredTerminals.hasMoreElements()) {
-			CardTerminal rct = (CardTerminal)registeredTerminals.nextElement();
-			if (rct instanceof SmartCardIOTerminal) {
-				boolean isRemoved = true;			
-				for (javax.smartcardio.CardTerminal ct : terminals) {
-					if (ct.getName().equals(rct.getName())) {
-						isRemoved = false;
-						break;
-					}
+	private CardTerminals getCardTerminals() {
+		if (cardTerminals == null) {
+			cardTerminals = SmartCardIOEventMonitor.getMonitor().getCardTerminals();
+			if (cardTerminals == null) {
+				try	{
+					cardTerminals = TerminalFactory.getDefault().terminals();
 				}
-				if (isRemoved) {
-					ctr.remove(rct);
-					numberOfRegisteredTerminals--;
+				catch(RuntimeException e) {
+					ctracer.error("getCardTerminals", e);
 				}
 			}
 		}
+		return cardTerminals;
 	}
-	
-	
-	
+
+
+
 	/**
-	 * Add all new card terminal to the card terminal registry
+	 * Remove terminals whose reader is no longer listed and add terminals for new readers.
 	 * 
 	 * @param terminals SmartCardIO terminals
-	 * @param ctr OCF card terminal registry
-	 * @throws CardTerminalException
+	 * @throws CardTerminalException 
 	 */
-	private void addTerminals(List<javax.smartcardio.CardTerminal> terminals, CardTerminalRegistry ctr) throws CardTerminalException {
-		for (javax.smartcardio.CardTerminal ct : terminals) {
-			Enumeration registeredTerminals = ctr.getCardTerminals();
-			
-			boolean isNew = true;
-			while(registeredTerminals.hasMoreElements()) {
-				CardTerminal rct = (CardTerminal)registeredTerminals.nextElement();
-				if (ct.getName().equals(rct.getName())) {
-					isNew = false;
-					break;
+	private void updateTerminals(List<javax.smartcardio.CardTerminal> terminals) throws CardTerminalException {
+		CardTerminalRegistry ctr = CardTerminalRegistry.getRegistry();
+		List<SmartCardIOTerminal> removed = new ArrayList<SmartCardIOTerminal>();
+		List<SmartCardIOTerminal> added = new ArrayList<SmartCardIOTerminal>();
+
+		synchronized (registeredTerminals) {
+			Set<String> names = new HashSet<String>();
+			for (javax.smartcardio.CardTerminal ct : terminals) {
+				names.add(ct.getName());
+			}
+
+			Iterator<Map.Entry<String, SmartCardIOTerminal>> iter = registeredTerminals.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<String, SmartCardIOTerminal> entry = iter.next();
+				if (!names.contains(entry.getKey())) {
+					removed.add(entry.getValue());
+					iter.remove();
 				}
 			}
-			if (isNew) {
-				ctr.add(new SmartCardIOTerminal(ct.getName(), "PCSC", "", ct));
-				numberOfRegisteredTerminals++;
+
+			for (javax.smartcardio.CardTerminal ct : terminals) {
+				if (!registeredTerminals.containsKey(ct.getName())) {
+					SmartCardIOTerminal terminal = new SmartCardIOTerminal(ct.getName(), "PCSC", "", ct);
+					registeredTerminals.put(ct.getName(), terminal);
+					added.add(terminal);
+				}
 			}
 		}
-	}	
+
+		for (SmartCardIOTerminal terminal : removed) {
+			ctracer.debug("updateTerminals", "Removing " + terminal.getName());
+			ctr.remove(terminal);
+		}
+		for (SmartCardIOTerminal terminal : added) {
+			ctracer.debug("updateTerminals", "Adding " + terminal.getName());
+			ctr.add(terminal);
+		}
+	}
 }
@@ -25,6 +25,7 @@
 package de.cardcontact.opencard.terminal.smartcardio;
 
 import java.util.Arrays;
+import java.util.Properties;
 
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
@@ -52,10 +53,28 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 	private final static Tracer ctracer = new Tracer(SmartCardIOTerminal.class);
 
+	/** Delay in ms before the first retry if connecting to the card fails */
+	private final static long CONNECT_INITIAL_DELAY = 5;
+
+	/** Maximum time in ms to retry connecting to the card, e.g. after a reset */
+	private final static long CONNECT_TIMEOUT = 1000;
+
 	private boolean polling;
+
+	/** Is card presence monitored by the SmartCardIOEventMonitor instead of polling? */
+	private boolean monitored;
 	private javax.smartcardio.CardTerminal ct;
 	private javax.smartcardio.Card card = null;
 
+	/** The reader features obtained for the current connection */
+	private PCSCFeatures pcscFeatures = null;
+
+	/** The connection for which features were obtained */
+	private javax.smartcardio.Card featuresCard = null;
+
+	/** The protocol negotiated with the last card in this reader */
+	private String protocol = null;
+
 	/** The state of this card terminal. */
 	private boolean closed;
 
@@ -80,11 +99,14 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 	@Override
 	public void open() throws CardTerminalException {
 
-		if (polling) {
-			CardTerminalRegistry.getRegistry().addPollable((Pollable)this);
-		}
 		closed = false;
 		cardInserted = isCardPresent(0);
+		if (polling) {
+			monitored = SmartCardIOEventMonitor.getMonitor().add(this);
+			if (!monitored) {
+				CardTerminalRegistry.getRegistry().addPollable((Pollable)this);
+			}
+		}
 	}
 
 
@@ -98,8 +120,12 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 		catch (CardTerminalException cte) {
 			// Ignore, can happen if reader was removed
 		}
+		this.protocol = null;
 		cardRemoved(0);
-		if (polling) {
+		if (monitored) {
+			SmartCardIOEventMonitor.getMonitor().remove(this);
+			monitored = false;
+		} else if (polling) {
 			CardTerminalRegistry.getRegistry().removePollable((Pollable)this);
 		}
 		closed = true;
@@ -133,6 +159,13 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 
 
+	/**
+	 * Reset the card.
+	 *
+	 * javax.smartcardio only supports a warm reset via SCardDisconnect(SCARD_RESET_CARD),
+	 * which is used for both reset types. The card is reconnected as soon as PC/SC
+	 * reports it ready again.
+	 */
 	@Override
 	protected CardID internalReset(int slot, boolean warm) throws CardTerminalException {
 
@@ -183,6 +216,7 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 		if (!cardPresent) {
 			card = null;
+			protocol = null;
 		}
 		return cardPresent;
 	}
@@ -226,12 +260,41 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 	@Override
 	public void poll() throws CardTerminalException {
+		updateStatus(false);
+	}
+
+
+
+	/**
+	 * Called by the SmartCardIOEventMonitor if PC/SC reported a status change for this reader.
+	 *
+	 * @param swapped true if the card was removed and a card inserted since the last notification
+	 */
+	void statusChanged(boolean swapped) {
+		updateStatus(swapped);
+	}
+
+
+
+	/**
+	 * Query card presence and notify listeners about changes
+	 *
+	 * @param swapped true if a card removal was reported in addition to a card insertion
+	 */
+	private void updateStatus(boolean swapped) {
 
 		if (!closed) {
 			try {
 				boolean newStatus = isCardPresent(0);
+				if (swapped && cardInserted && newStatus) {
+					ctracer.debug("updateStatus", "card swapped");
+					this.card = null;
+					this.protocol = null;
+					cardInserted = false;
+					cardRemoved(0);
+				}
 				if (cardInserted != newStatus) {
-					ctracer.debug("poll", "status change");
+					ctracer.debug("updateStatus", "status change");
 					cardInserted = !cardInserted;
 					// ... notify listeners
 					if (cardInserted) {
@@ -242,7 +305,7 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 				}
 			}
 			catch (CardTerminalException cte) {
-				ctracer.debug("poll", cte);
+				ctracer.debug("updateStatus", cte);
 
 				// make sure the CardTerminalException is 
 				// propagated to listeners waiting for a card
@@ -254,25 +317,72 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 
 	/**
-	 * Connect to card, first with T=1 then with any protocol
+	 * Return the features of the reader for the current connection.
+	 *
+	 * The features are obtained once per connection and reused for all subsequent calls.
+	 *
+	 * @return the features or PCSCFeatures.NONE if no card is connected
+	 */
+	private synchronized PCSCFeatures getFeatures() {
+		javax.smartcardio.Card c = this.card;
+
+		if (c == null) {
+			return PCSCFeatures.NONE;
+		}
+		if ((this.pcscFeatures == null) || (this.featuresCard != c)) {
+			this.pcscFeatures = PCSCFeatures.read(c);
+			this.featuresCard = c;
+			ctracer.debug("getFeatures", this.pcscFeatures.toString());
+		}
+		return this.pcscFeatures;
+	}
+
+
+
+	/**
+	 * Add the PC/SC features of the reader, if a card is connected.
+	 */
+	@Override
+	protected Properties internalFeatures(Properties features) {
+		return getFeatures().addTo(features);
+	}
+
+
+
+	/**
+	 * Connect to card
 	 * 
+	 * If connecting fails with a transient error, e.g. because the card is still being reset or
+	 * is in use by another application, the connection is retried with exponential backoff for
+	 * at most CONNECT_TIMEOUT ms. All other errors are reported immediately.
 	 */
 	private void connect() throws CardTerminalException {
 
 		if (this.card != null) {
 			return;
 		}
-		try	{
-			this.card = ct.connect("T=1");
-		}
-		catch(CardException ce) {
-			ctracer.debug("second connect due to", ce);
+
+		long delay = CONNECT_INITIAL_DELAY;
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+
+		while (true) {
 			try	{
-				this.card = ct.connect("*");
+				this.card = connectWithProtocol();
+				break;
 			}
-			catch(CardException nce) {
-				ctracer.error("final connect failed", nce);
-				throw new CardTerminalException("Error connecting to card: " + nce.getMessage());
+			catch(CardException ce) {
+				if (!isTransient(ce) || (System.currentTimeMillis() + delay > deadline)) {
+					ctracer.error("final connect failed", ce);
+					throw new CardTerminalException("Error connecting to card: " + ce.getMessage());
+				}
+				ctracer.debug("connect retry due to", ce);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CardTerminalException("Interrupted while connecting to card");
+				}
+				delay <<= 1;
 			}
 		}
 		ctracer.debug("connect", this.card.getProtocol());
@@ -280,9 +390,65 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 
 
+	/**
+	 * Determine if a connect failure is caused by a transient reset or sharing condition
+	 *
+	 * @param ce the exception thrown by connect()
+	 * @return true if the connect may succeed when retried
+	 */
+	private static boolean isTransient(CardException ce) {
+		for (Throwable t = ce; t != null; t = t.getCause()) {
+			String msg = t.getMessage();
+			if ((msg != null) &&
+				((msg.indexOf("SCARD_W_RESET_CARD") >= 0) ||
+				(msg.indexOf("SCARD_E_SHARING_VIOLATION") >= 0) ||
+				(msg.indexOf("SCARD_W_UNPOWERED_CARD") >= 0) ||
+				(msg.indexOf("SCARD_W_UNRESPONSIVE_CARD") >= 0) ||
+				(msg.indexOf("SCARD_E_NOT_READY") >= 0))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * Connect to card with the protocol that worked last, otherwise first with T=1 then with any protocol
+	 * 
+	 * @return the connected card
+	 * @throws CardException if no connection could be established
+	 */
+	private javax.smartcardio.Card connectWithProtocol() throws CardException {
+
+		if (this.protocol != null) {
+			try	{
+				return ct.connect(this.protocol);
+			}
+			catch(CardException ce) {
+				ctracer.debug("connect with " + this.protocol + " failed due to", ce);
+			}
+		}
+
+		javax.smartcardio.Card c;
+		try	{
+			c = ct.connect("T=1");
+		}
+		catch(CardException ce) {
+			ctracer.debug("second connect due to", ce);
+			c = ct.connect("*");
+		}
+		this.protocol = c.getProtocol();
+		return c;
+	}
+
+
+
 	/**
 	 * Disconnect from card
 	 * 
+	 * A reconnect immediately after disconnect may fail, which is handled by the retries in connect()
+	 * 
 	 * @param reset reset card if set to true
 	 * @throws CardTerminalException
 	 */
@@ -300,11 +466,6 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 				} else {
 					this.card.disconnect(reset);
 				}
-				// Disconnect and immediate reconnect often fails. Wait to give PCSC subsystem a chance to handle disconnect
-				try {
-					Thread.sleep(500);
-				} catch (InterruptedException e) {
-				}
 			}
 			catch(CardException ce) {
 				ctracer.error("disconnect", ce);
@@ -328,7 +489,7 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 	 */
 	public ResponseAPDU sendModifyPINCommandAPDU(SlotChannel chann, CommandAPDU capdu, CHVControl vc) throws CardTerminalException {
 
-		PCSCIOControl pcscio = new PCSCIOControl(this.card);
+		PCSCIOControl pcscio = new PCSCIOControl(this.card, getFeatures());
 		javax.smartcardio.CommandAPDU xcapdu = new javax.smartcardio.CommandAPDU(capdu.getBytes());
 
 		pcscio.setPinEncoding(vc.passwordEncoding());
@@ -384,7 +545,7 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 		
 		ctracer.debug("sendVerifiedCommandAPDU", "PIN entry on card terminal");
 
-		PCSCIOControl pcscio = new PCSCIOControl(this.card);
+		PCSCIOControl pcscio = new PCSCIOControl(this.card, getFeatures());
 
 		try {
 			String encoding = vc.passwordEncoding();
@@ -434,7 +595,7 @@ public class SmartCardIOTerminal extends CardTerminal implements TerminalCommand
 
 	@Override
 	public boolean hasSendVerifiedCommandAPDU() {
-		PCSCIOControl pcscio = new PCSCIOControl(this.card);
+		PCSCIOControl pcscio = new PCSCIOControl(this.card, getFeatures());
 		return pcscio.hasVerifyPinDirect();
 	}
 }
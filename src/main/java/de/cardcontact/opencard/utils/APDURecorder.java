@@ -0,0 +1,287 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import opencard.core.terminal.CardID;
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CommandAPDU;
+import opencard.core.terminal.ResponseAPDU;
+import opencard.core.terminal.SlotChannel;
+import opencard.core.util.APDUTracer;
+import opencard.core.util.Tracer;
+
+/**
+ * Class implementing the APDUTracer interface to record a session in a compact binary format.
+ *
+ * The recording contains the ATR, all command and response APDUs and the timing of each slot.
+ * It can be read with APDURecording and served back with the ReplayCardTerminal.
+ *
+ * The format starts with the magic bytes "OCFR" and a version byte, followed by records of
+ * <pre>
+ * type(1) | slot(1) | time(4) | length(4) | data(length)
+ * </pre>
+ *
+ * The recording holds the APDUs exchanged with the card terminal. For a secure messaging session these are
+ * the wrapped APDUs. Card services trace the plain APDUs around the wrapped exchange; such outer traces are
+ * not recorded. A command is only written together with its response, the last command traced before a
+ * response is the one sent to the card.
+ *
+ * Slots are numbered in the order in which they are first seen. The time is given in microseconds.
+ * For a command it is the time since the previous record of the slot, for a response the time since the command.
+ * All values are big endian.
+ *
+ * Usage:
+ * <pre>
+ * APDURecorder recorder = new APDURecorder(new FileOutputStream("session.ocfr"));
+ * card.setAPDUTracer(recorder);
+ * ...
+ * recorder.close();
+ * </pre>
+ */
+public class APDURecorder implements APDUTracer, Closeable {
+
+	private final static Tracer ctracer = new Tracer(APDURecorder.class);
+
+	/** Magic bytes at the start of a recording */
+	public final static byte[] MAGIC = { 'O', 'C', 'F', 'R' };
+
+	/** Version of the format */
+	public final static int VERSION = 1;
+
+	public final static int TYPE_ATR = 1;
+	public final static int TYPE_COMMAND = 2;
+	public final static int TYPE_RESPONSE = 3;
+
+	/** Maximum number of slots in a recording */
+	public final static int MAX_SLOTS = 256;
+
+	private DataOutputStream out;
+
+	/** Recording state by terminal name and slot number */
+	private final Map<String, SlotState> slots = new HashMap<String, SlotState>();
+
+
+
+	/**
+	 * Create recorder writing to the given stream
+	 *
+	 * @param out the stream, which is closed by close()
+	 * @throws IOException if the header can not be written
+	 */
+	public APDURecorder(OutputStream out) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+	}
+
+
+
+	/**
+	 * @see opencard.core.util.APDUTracer#traceCommandAPDU(opencard.core.terminal.SlotChannel, opencard.core.terminal.CommandAPDU)
+	 */
+	@Override
+	public synchronized void traceCommandAPDU(SlotChannel sc, CommandAPDU capdu) {
+		SlotState state = getSlotState(sc, null);
+		if (state == null) {
+			return;
+		}
+
+		// Keep the command until the response arrives, a nested trace replaces the outer command
+		state.clearPending();
+		state.pendingCommand = capdu.getBytes();
+		state.pendingAt = System.nanoTime();
+	}
+
+
+
+	/**
+	 * @see opencard.core.util.APDUTracer#traceResponseAPDU(opencard.core.terminal.SlotChannel, opencard.core.terminal.ResponseAPDU)
+	 */
+	@Override
+	public synchronized void traceResponseAPDU(SlotChannel sc, ResponseAPDU rapdu) {
+		SlotState state = getSlotState(sc, null);
+		if (state == null) {
+			return;
+		}
+
+		if (state.pendingCommand == null) {
+			// Response of an outer trace, e.g. the unwrapped response of a secure messaging exchange
+			return;
+		}
+
+		long now = System.nanoTime();
+		write(TYPE_COMMAND, state.index, state.pendingAt - state.lastRecord, state.pendingCommand, state.pendingCommand.length);
+		write(TYPE_RESPONSE, state.index, now - state.pendingAt, rapdu.getBuffer(), rapdu.getLength());
+		state.clearPending();
+		state.lastRecord = now;
+	}
+
+
+
+	/**
+	 * @see opencard.core.util.APDUTracer#traceAnswerToReset(opencard.core.terminal.SlotChannel, opencard.core.terminal.CardID)
+	 */
+	@Override
+	public synchronized void traceAnswerToReset(SlotChannel sc, CardID cardID) {
+		SlotState state = getSlotState(sc, cardID);
+		if ((state == null) || state.isNew) {
+			// The ATR was written when the slot was first seen
+			return;
+		}
+
+		byte[] atr = cardID.getATR();
+		state.clearPending();
+		write(TYPE_ATR, state.index, 0, atr, atr.length);
+		state.lastRecord = System.nanoTime();
+	}
+
+
+
+	/**
+	 * Flush buffered records to the underlying stream
+	 *
+	 * @throws IOException if writing fails
+	 */
+	public synchronized void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+
+
+	/**
+	 * Flush and close the underlying stream. Further APDUs are not recorded.
+	 *
+	 * @throws IOException if writing fails
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			try	{
+				out.close();
+			}
+			finally {
+				out = null;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the state of the slot, starting it with an ATR record if seen for the first time
+	 *
+	 * @param sc the slot channel
+	 * @param cardID the ATR if known or null to obtain it from the slot channel
+	 * @return the state or null if the slot can not be recorded
+	 */
+	private SlotState getSlotState(SlotChannel sc, CardID cardID) {
+		if ((out == null) || (sc == null)) {
+			return null;
+		}
+
+		String key = sc.getCardTerminal().getName() + "#" + sc.getSlotNumber();
+		SlotState state = slots.get(key);
+
+		if (state != null) {
+			state.isNew = false;
+			return state;
+		}
+
+		if (slots.size() == MAX_SLOTS) {
+			ctracer.error("getSlotState", "Too many slots, " + key + " not recorded");
+			return null;
+		}
+
+		if (cardID == null) {
+			try	{
+				cardID = sc.getCardID();
+			}
+			catch(CardTerminalException e) {
+				ctracer.debug("getSlotState", e);
+			}
+		}
+		byte[] atr = cardID == null ? new byte[0] : cardID.getATR();
+
+		state = new SlotState(slots.size());
+		slots.put(key, state);
+		write(TYPE_ATR, state.index, 0, atr, atr.length);
+		return state;
+	}
+
+
+
+	private void write(int type, int slot, long nanos, byte[] data, int length) {
+		if (out == null) {
+			return;
+		}
+
+		long micros = nanos / 1000;
+		try	{
+			out.write(type);
+			out.write(slot);
+			out.writeInt(micros > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)micros);
+			out.writeInt(length);
+			out.write(data, 0, length);
+		}
+		catch(IOException e) {
+			ctracer.error("write", e);
+			out = null;
+		}
+	}
+
+
+
+	private static class SlotState {
+		final int index;
+		long lastRecord = System.nanoTime();
+		boolean isNew = true;
+
+		/** Command traced last and not yet answered */
+		byte[] pendingCommand = null;
+		long pendingAt = 0;
+
+		SlotState(int index) {
+			this.index = index;
+		}
+
+		void clearPending() {
+			if (pendingCommand != null) {
+				Arrays.fill(pendingCommand, (byte)0);
+				pendingCommand = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ *  ---------
+ * |.##> <##.|  Open Smart Card Development Platform (www.openscdp.org)
+ * |#       #|
+ * |#       #|  Copyright (c) 1999-2016 CardContact Software & System Consulting
+ * |'##> <##'|  Andreas Schwier, 32429 Minden, Germany (www.cardcontact.de)
+ *  ---------
+ *
+ *  This file is part of OpenSCDP.
+ *
+ *  OpenSCDP is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2 as
+ *  published by the Free Software Foundation.
+ *
+ *  OpenSCDP is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with OpenSCDP; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package de.cardcontact.opencard.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Session recorded with the APDURecorder
+ *
+ * The recording is split into a list of events for each slot. An event is either an answer to reset
+ * or the exchange of a command and response APDU together with its timing. The APDUs are those exchanged
+ * with the card terminal, i.e. the wrapped APDUs of a secure messaging session.
+ */
+public class APDURecording {
+
+	/**
+	 * Single event of a recorded slot
+	 */
+	public static class Event {
+		private final byte[] atr;
+		private final byte[] command;
+		private final byte[] response;
+		private final long thinkTime;
+		private final long latency;
+
+
+
+		Event(byte[] atr) {
+			this.atr = atr;
+			this.command = null;
+			this.response = null;
+			this.thinkTime = 0;
+			this.latency = 0;
+		}
+
+
+
+		Event(byte[] command, long thinkTime, byte[] response, long latency) {
+			this.atr = null;
+			this.command = command;
+			this.response = response;
+			this.thinkTime = thinkTime;
+			this.latency = latency;
+		}
+
+
+
+		/**
+		 * Return true if the event is an answer to reset
+		 *
+		 * @return true for an ATR, false for an APDU exchange
+		 */
+		public boolean isReset() {
+			return atr != null;
+		}
+
+
+
+		/**
+		 * Return the answer to reset
+		 *
+		 * @return the ATR or null if the event is an APDU exchange
+		 */
+		public byte[] getATR() {
+			return atr;
+		}
+
+
+
+		/**
+		 * Return the command APDU
+		 *
+		 * @return the command APDU or null if the event is an ATR
+		 */
+		public byte[] getCommand() {
+			return command;
+		}
+
+
+
+		/**
+		 * Return the response APDU
+		 *
+		 * @return the response APDU or null if the event is an ATR
+		 */
+		public byte[] getResponse() {
+			return response;
+		}
+
+
+
+		/**
+		 * Return the time between the previous event and the command
+		 *
+		 * @return the time in microseconds
+		 */
+		public long getThinkTime() {
+			return thinkTime;
+		}
+
+
+
+		/**
+		 * Return the time between command and response
+		 *
+		 * @return the time in microseconds
+		 */
+		public long getLatency() {
+			return latency;
+		}
+	}
+
+
+
+	private final List<List<Event>> slots = new ArrayList<List<Event>>();
+
+
+
+	/**
+	 * Read a recording from the given stream
+	 *
+	 * @param in the stream, which is not closed
+	 * @throws IOException if the stream can not be read or does not contain a valid recording
+	 */
+	public APDURecording(InputStream in) throws IOException {
+		read(new DataInputStream(new BufferedInputStream(in)));
+	}
+
+
+
+	/**
+	 * Read a recording from the given file
+	 *
+	 * @param filename the name of the file
+	 * @return the recording
+	 * @throws IOException if the file can not be read or does not contain a valid recording
+	 */
+	public static APDURecording load(String filename) throws IOException {
+		InputStream in = new FileInputStream(filename);
+		try	{
+			return new APDURecording(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+
+
+	private void read(DataInputStream in) throws IOException {
+		byte[] magic = new byte[APDURecorder.MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(APDURecorder.MAGIC, magic)) {
+			throw new IOException("Not an APDU recording");
+		}
+		int version = in.read();
+		if (version != APDURecorder.VERSION) {
+			throw new IOException("Unsupported recording version " + version);
+		}
+
+		// Pending commands by slot
+		List<byte[]> commands = new ArrayList<byte[]>();
+		List<Long> thinkTimes = new ArrayList<Long>();
+
+		while (true) {
+			int type = in.read();
+			if (type < 0) {
+				break;
+			}
+
+			byte[] data;
+			int slot;
+			long time;
+			try	{
+				slot = in.readUnsignedByte();
+				time = in.readInt() & 0xFFFFFFFFL;
+				int length = in.readInt();
+				if ((length < 0) || (length > 0x10010)) {
+					throw new IOException("Invalid record length " + length);
+				}
+				data = new byte[length];
+				in.readFully(data);
+			}
+			catch(EOFException e) {
+				// Recording was truncated while the last record was written
+				break;
+			}
+
+			while (slots.size() <= slot) {
+				slots.add(new ArrayList<Event>());
+				commands.add(null);
+				thinkTimes.add(0L);
+			}
+
+			switch(type) {
+			case APDURecorder.TYPE_ATR:
+				slots.get(slot).add(new Event(data));
+				commands.set(slot, null);
+				break;
+			case APDURecorder.TYPE_COMMAND:
+				commands.set(slot, data);
+				thinkTimes.set(slot, time);
+				break;
+			case APDURecorder.TYPE_RESPONSE:
+				byte[] command = commands.get(slot);
+				if (command == null) {
+					// Outer trace of a nested exchange, e.g. the unwrapped secure messaging response
+					break;
+				}
+				slots.get(slot).add(new Event(command, thinkTimes.get(slot), data, time));
+				commands.set(slot, null);
+				break;
+			default:
+				throw new IOException("Invalid record type " + type);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Return the number of recorded slots
+	 *
+	 * @return the number of slots
+	 */
+	public int getSlotCount() {
+		return slots.size();
+	}
+
+
+
+	/**
+	 * Return the recorded events for a slot
+	 *
+	 * @param slot the slot number in the recording
+	 * @return the unmodifiable list of events
+	 */
+	public List<Event> getEvents(int slot) {
+		return Collections.unmodifiableList(slots.get(slot));
+	}
+
+
+
+	/**
+	 * Return the first answer to reset recorded for the slot
+	 *
+	 * @param slot the slot number in the recording
+	 * @return the ATR or an empty array if none was recorded
+	 */
+	public byte[] getATR(int slot) {
+		for (Event e : slots.get(slot)) {
+			if (e.isReset()) {
+				return e.getATR();
+			}
+		}
+		return new byte[0];
+	}
+}
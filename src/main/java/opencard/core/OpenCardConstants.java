@@ -66,6 +66,9 @@ public interface OpenCardConstants {
   /** card terminal registry tag. */
   public final static String CARD_TERMINAL_REGISTRY_TAG = OPENCARD_PROPERTY + "terminals";
 
+  /** time in ms to wait for all card terminal factories during startup */
+  public final static String CARD_TERMINAL_STARTUP_TIMEOUT = CARD_TERMINAL_REGISTRY_TAG + ".startupTimeout";
+
   /** Encoding used for application identifiers */
   public final static String APPID_ENCODING = "8859_1";
 
@@ -38,6 +38,16 @@ package opencard.core.event;
 
 import java.util.Enumeration;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import opencard.core.terminal.CardTerminal;
 import opencard.core.terminal.CardTerminalException;
@@ -53,7 +63,11 @@ import opencard.core.util.Tracer;
  * It periodically polls the terminals and generates <tt>CARD_INSERTED</tt> or
  * <tt>CARD_REMOVED</tt> events if it detects a card insertion or removal, respectively.
  * The generated events are sent to all <tt>CTListener</tt>s which have been registered
- * using the method <tt>addCTListener</tt>. If not interested in card terminal events
+ * using the method <tt>addCTListener</tt>. Events are delivered asynchronously, each
+ * listener receives its events in order on a dispatcher thread, so a slow listener
+ * does not delay event delivery to other listeners. Each terminal is polled
+ * independently, a terminal that is slow to respond does not delay polling of the
+ * others. If not interested in card terminal events
  * any longer, <tt>CTListener</tt>s can remove themselves from the notification list of
  * the registry by calling the method <tt>removeCTListener</tt>.
  * For the case that cards were inserted before an application was started, the method
@@ -72,7 +86,19 @@ public final class EventGenerator implements Observer, Runnable {
   private static Tracer ctracer = new Tracer(EventGenerator.class);
 
   /** The listeners to which events are to be multicasted. */
-  private Vector listeners = new Vector();
+  private final CopyOnWriteArrayList<ListenerDispatcher> listeners = new CopyOnWriteArrayList<ListenerDispatcher>();
+
+  /** Number of threads delivering events to listeners. */
+  private static final int DISPATCH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Threads delivering events to listeners. The pool is bounded, so an event
+   * for many listeners queues dispatchers instead of starting a thread per listener.
+   */
+  private final ExecutorService dispatchExecutor = createDispatchExecutor();
+
+  /** Threads polling the terminals. */
+  private final ExecutorService pollExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("OCF Poll"));
 
   /** The card terminal registry singleton. */
   private static EventGenerator theGenerator = null;
@@ -84,8 +110,11 @@ public final class EventGenerator implements Observer, Runnable {
   
   private static int pollInterval = 500;
 
+  /** Time in ms after which a poll that has not returned is reported. */
+  private static int pollTimeout = 5000;
+
   /** The pollable terminals. */
-  private Vector pollables = new Vector();
+  private Vector<PollTask> pollables = new Vector<PollTask>();
 
 
   /**
@@ -112,7 +141,7 @@ public final class EventGenerator implements Observer, Runnable {
    * @see #removeCTListener(CTListener)
    */
   public void addCTListener(CTListener listener) {
-    listeners.addElement(listener); // ls is the vector of listeners
+    listeners.add(new ListenerDispatcher(listener));
   }
 
 
@@ -153,12 +182,21 @@ public final class EventGenerator implements Observer, Runnable {
    * @see #addCTListener(CTListener)
    */
   public void removeCTListener(CTListener ctListener) {
-    listeners.removeElement(ctListener);            // l is the vector of listeners
+    for (ListenerDispatcher d : listeners) {
+      if (d.listener == ctListener) {
+        d.removed = true;
+        listeners.remove(d);
+        break;
+      }
+    }
   }
 
 
   public void removeAllCTListener() {
-	listeners = new Vector();
+    for (ListenerDispatcher d : listeners) {
+      d.removed = true;
+    }
+    listeners.clear();
   }
 
 
@@ -184,6 +222,30 @@ public final class EventGenerator implements Observer, Runnable {
   }
 
 
+  /**
+   * Sets the time in ms after which a poll of a terminal that has not
+   * returned is reported. The terminal is not polled again before the
+   * pending poll returns.
+   *
+   * @param duration in ms
+   */
+  public void setPollTimeout(int duration) {
+
+    pollTimeout = duration;
+  }
+
+
+  /**
+   * Gets the time in ms after which a pending poll is reported.
+   *
+   * @return the poll timeout in ms
+   */
+  public int getPollTimeout() {
+
+    return pollTimeout;
+  }
+
+
   /**
    * Periodically checks all <TT>Pollable</TT> terminals. The terminals
    * implementation must then make sure to generate the proper events
@@ -197,20 +259,13 @@ public final class EventGenerator implements Observer, Runnable {
         // sleep at beginning of loop because each pollable has already been
         // polled initially while registering
         Thread.sleep(pollInterval);
+        PollTask[] tasks;
         synchronized(pollables) {
-          Enumeration e = pollables.elements();
-
-          while (e.hasMoreElements()) {
-            Pollable p = (Pollable)e.nextElement();
-            try {
-              p.poll();
-            } catch (RuntimeException rte) {
-              // ignore runtime exceptions thrown by poll
-              ctracer.debug("run", rte);
-            } catch (CardTerminalException cte) {
-              ctracer.debug("run", cte);
-            }
-          }
+          tasks = pollables.toArray(new PollTask[pollables.size()]);
+        }
+
+        for (PollTask p : tasks) {
+          p.schedule();
         }
       } catch (InterruptedException ie) {
       }   // ignore
@@ -232,28 +287,13 @@ public final class EventGenerator implements Observer, Runnable {
     ctracer.debug("updateCards", "card "+(cardInserted?"inserted":"removed")+" slotID = " + slotID);
 
     if (!listeners.isEmpty()) {
-      CTListener ctl = null;
-      for (Enumeration e = listeners.elements(); e.hasMoreElements(); ) {
-        ctl = (CTListener)e.nextElement();
-        try {
-          if (cardInserted) {
-            ctl.cardInserted(new CardTerminalEvent(terminal,
-                                                   CardTerminalEvent.CARD_INSERTED,
-                                                   slotID));
-          } else {
-            ctl.cardRemoved(new CardTerminalEvent(terminal,
-                                                  CardTerminalEvent.CARD_REMOVED,
-                                                  slotID));
-          }
-        } catch (RuntimeException rte) {
-          // ignore runtime exceptions
-          ctracer.critical("updateCards", rte);
-        } catch (CardTerminalException cte) {
-          // ignore this
-          ctracer.critical("updateCards", cte);
-        }
+      CardTerminalEvent event = new CardTerminalEvent(terminal,
+          cardInserted ? CardTerminalEvent.CARD_INSERTED : CardTerminalEvent.CARD_REMOVED,
+          slotID);
+      for (ListenerDispatcher d : listeners) {
+        d.post(event);
       }
-      ctracer.debug("updateCards", "notified CTListeners");
+      ctracer.debug("updateCards", "queued event for CTListeners");
     }
   }
 
@@ -273,7 +313,7 @@ public final class EventGenerator implements Observer, Runnable {
       if (terminalAdded) {
         ctracer.debug("updateTerminals", "new pollable Terminal = " + p);
 
-        pollables.addElement(p);
+        pollables.addElement(new PollTask(p));
 
         try {
           // avoid duplicate events for cards already present
@@ -297,8 +337,15 @@ public final class EventGenerator implements Observer, Runnable {
         return true;
       } else {
         ctracer.debug("updateTerminals", "remove pollable Terminal = " + p);
-        boolean r = pollables.removeElement(p);
-        
+        boolean r = false;
+        for (PollTask task : pollables) {
+          if (task.pollable == p) {
+            r = pollables.removeElement(task);
+            break;
+          }
+        }
+
+
         if (pollables.size() <= 0) {
         	running = false;
         	t = null;
@@ -317,4 +364,136 @@ public final class EventGenerator implements Observer, Runnable {
   private EventGenerator() {
   }
 
+
+  /**
+   * Creates the bounded pool of daemon threads delivering events. Idle threads terminate.
+   */
+  private static ExecutorService createDispatchExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new DaemonThreadFactory("OCF Event Dispatch"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+
+  /**
+   * Delivers events to a single listener in the order they were generated.
+   * At most one dispatcher thread is active per listener at any time.
+   */
+  private final class ListenerDispatcher implements Runnable {
+
+    private final CTListener listener;
+
+    private final ConcurrentLinkedQueue<CardTerminalEvent> queue = new ConcurrentLinkedQueue<CardTerminalEvent>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean removed = false;
+
+    ListenerDispatcher(CTListener listener) {
+      this.listener = listener;
+    }
+
+    void post(CardTerminalEvent event) {
+      queue.add(event);
+      if (scheduled.compareAndSet(false, true)) {
+        dispatchExecutor.execute(this);
+      }
+    }
+
+    public void run() {
+      do {
+        CardTerminalEvent event;
+        while (!removed && ((event = queue.poll()) != null)) {
+          try {
+            if (event.id == CardTerminalEvent.CARD_INSERTED) {
+              listener.cardInserted(event);
+            } else {
+              listener.cardRemoved(event);
+            }
+          } catch (RuntimeException rte) {
+            // ignore runtime exceptions
+            ctracer.critical("updateCards", rte);
+          } catch (CardTerminalException cte) {
+            // ignore this
+            ctracer.critical("updateCards", cte);
+          }
+        }
+        if (removed) {
+          queue.clear();
+        }
+        scheduled.set(false);
+        // an event may have been queued after the queue was found empty
+      } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+  }
+
+
+  /**
+   * Polls a single terminal. A new poll is only started once the
+   * previous one returned, so a blocking terminal does not pile up
+   * polling threads.
+   */
+  private final class PollTask implements Runnable {
+
+    private final Pollable pollable;
+
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    private volatile long started;
+
+    private volatile boolean reported;
+
+    PollTask(Pollable pollable) {
+      this.pollable = pollable;
+    }
+
+    void schedule() {
+      if (busy.compareAndSet(false, true)) {
+        started = System.currentTimeMillis();
+        reported = false;
+        pollExecutor.execute(this);
+      } else if (!reported && (System.currentTimeMillis() - started > pollTimeout)) {
+        reported = true;
+        ctracer.warning("run", "poll of " + pollable + " did not return within " + pollTimeout + " ms");
+      }
+    }
+
+    public void run() {
+      try {
+        pollable.poll();
+      } catch (RuntimeException rte) {
+        // ignore runtime exceptions thrown by poll
+        ctracer.debug("run", rte);
+      } catch (CardTerminalException cte) {
+        ctracer.debug("run", cte);
+      } finally {
+        busy.set(false);
+      }
+    }
+  }
+
+
+  /**
+   * Creates named daemon threads, so that event handling never prevents
+   * the VM from terminating.
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
 }
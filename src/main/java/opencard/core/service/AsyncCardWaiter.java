@@ -0,0 +1,130 @@
+/*
+ * Wait for a smart card without blocking a thread
+ */
+package opencard.core.service;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import opencard.core.event.CTListener;
+import opencard.core.event.CardTerminalEvent;
+import opencard.core.event.EventGenerator;
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.util.Tracer;
+
+/**
+ * AsyncCardWaiter completes a future with the first smartcard matching a
+ * card request. Like <tt>CardWaiter</tt> it is registered as a card terminal
+ * event listener, but no thread is blocked while waiting. The listener is
+ * removed as soon as the future is completed, cancelled or the timeout set
+ * in the card request expires.
+ *
+ * @see opencard.core.service.SmartCard#waitForCardAsync
+ * @see opencard.core.service.CardWaiter
+ */
+class AsyncCardWaiter implements CTListener {
+  private static Tracer ctracer = new Tracer (AsyncCardWaiter.class);
+
+  /** Timer shared by all waiters to complete timed out requests. */
+  private static ScheduledExecutorService timer = null;
+
+  /** Future completed with the SmartCard object. */
+  private final CompletableFuture<SmartCard> future = new CompletableFuture<SmartCard>();
+
+  /** CardRequest to be satisfied when waiting. */
+  private final CardRequest cardRequest_;
+
+  /** lock handle provided by lock owner */
+  private final Object lockHandle_;
+
+  /**
+   * Creates new instance.
+   *
+   * @param cardRequest The request specifying wait parameters.
+   * @param lockHandle  The handle obtained when locking the terminal or <tt>null</tt>.
+   */
+  AsyncCardWaiter(CardRequest cardRequest, Object lockHandle)
+  {
+    ctracer.debug("<init>", "Request: " + cardRequest);
+    cardRequest_ = cardRequest;
+    lockHandle_ = lockHandle;
+  }
+
+  /**
+   * Starts waiting for a card and returns the future completed with it.
+   * The future is completed with <tt>null</tt> if the timeout set in the
+   * request expires.
+   *
+   * @return the future for the SmartCard object
+   */
+  CompletableFuture<SmartCard> start() throws CardTerminalException {
+    future.whenComplete((card, ex) -> EventGenerator.getGenerator().removeCTListener(this));
+
+    EventGenerator.getGenerator().addCTListener(this);
+
+    // If the wait mode is ANYCARD, we also must check cards which are
+    // already present in a slot.
+    try {
+      if (cardRequest_.getWaitBehavior() == CardRequest.ANYCARD)
+        EventGenerator.getGenerator().createEventsForPresentCards(this);
+    } catch (CardTerminalException | RuntimeException e) {
+      // completing the future removes the listener
+      future.completeExceptionally(e);
+      throw e;
+    }
+
+    if (cardRequest_.isTimeoutSet() && !future.isDone()) {
+      ScheduledFuture<?> timeout = getTimer().schedule(() -> future.complete(null),
+                                                       cardRequest_.getTimeout(), TimeUnit.SECONDS);
+      future.whenComplete((card, ex) -> timeout.cancel(false));
+    }
+    return future;
+  }
+
+  /**
+   * Reacts on card insertion event. Completes the future if a SmartCard
+   * object matching the request can be obtained.
+   *
+   * @param ctEvent CardTerminalEvent received.
+   */
+  public void cardInserted(CardTerminalEvent ctEvent) {
+    if (future.isDone())
+      return;
+
+    ctracer.debug("cardInserted", "CTEvent: " + ctEvent);
+    try {
+      SmartCard sc = SmartCard.getSmartCard(ctEvent, cardRequest_, lockHandle_);
+      if ((sc != null) && !future.complete(sc)) {
+        // Someone else was faster or the request was cancelled
+        sc.close();
+      }
+    } catch (CardTerminalException e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Reacts on card removal events. Not of interest here.
+   *
+   * @param ctEvent CardTerminalEvent received.
+   */
+  public void cardRemoved(CardTerminalEvent ctEvent) {}
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "OCF Card Request Timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return timer;
+  }
+}
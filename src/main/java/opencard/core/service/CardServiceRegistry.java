@@ -36,14 +36,16 @@
 package opencard.core.service;
 
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import opencard.core.event.CardTerminalEvent;
 import opencard.core.terminal.CardID;
 import opencard.core.terminal.CardTerminal;
 import opencard.core.terminal.CardTerminalException;
+import opencard.core.terminal.CardTerminalRegistry;
 import opencard.core.terminal.SlotChannel;
 import opencard.core.util.Tracer;
 
@@ -79,12 +81,16 @@ public final class CardServiceRegistry {
   private final static CardServiceRegistry registry = new CardServiceRegistry();
 
   /** Registered <tt>CardServiceFactories</tt>. */
-  private Vector factories = new Vector();
+  private Vector<Object> factories = new Vector<Object>();
+
+  /** Set if <tt>factories</tt> contains factories not yet instantiated. */
+  private volatile boolean hasPendingFactories = false;
 
   /** Keep track of Slots for which a SlotChannel already exists.
-  * each entry's key is the hashCode of the CardTerminal plus the slotID
+  * each entry's key identifies the CardTerminal and the slotID, the
+  * entry serves as lock for opening the channel and creating the scheduler
   */
-  private Hashtable slot2channel = new Hashtable();
+  private final ConcurrentHashMap<SlotKey, SlotEntry> slot2channel = new ConcurrentHashMap<SlotKey, SlotEntry>();
 
 
   /**
@@ -94,6 +100,7 @@ public final class CardServiceRegistry {
    */
   private CardServiceRegistry () {
     ctracer.debug("<init>", "instantiating");
+    CardTerminalRegistry.getRegistry().addRemovalCallback(this::removeSlotEntries);
   }
   /**
    * Adds a <tt>CardServiceFactory</tt> to the registry.
@@ -104,37 +111,90 @@ public final class CardServiceRegistry {
     itracer.debug("add", " " + factory);
     factories.addElement(factory);
   }
+  /**
+   * Adds a <tt>CardServiceFactory</tt> to the registry that is instantiated
+   * on the first lookup of a card service. Factories that can not be
+   * instantiated are reported and dropped at that time.
+   *
+   * @param factoryName  The class name of the <tt>CardServiceFactory</tt> to add.
+   */
+  void addLazy(String factoryName) {
+    itracer.debug("addLazy", " " + factoryName);
+    synchronized (factories) {
+      factories.addElement(new PendingFactory(factoryName));
+      hasPendingFactories = true;
+    }
+  }
+  /**
+   * Instantiates all factories added with <tt>addLazy</tt>, keeping their
+   * position in the list of registered factories.
+   */
+  private void resolvePendingFactories() {
+    synchronized (factories) {
+      if (!hasPendingFactories)
+        return;
+
+      for (int i = 0; i < factories.size(); ) {
+        Object o = factories.elementAt(i);
+        if (!(o instanceof PendingFactory)) {
+          i++;
+          continue;
+        }
+
+        String factoryName = ((PendingFactory) o).factoryName;
+        long start = System.currentTimeMillis();
+        try {
+          Class<?> factoryClass = Class.forName(factoryName);
+          factories.setElementAt((CardServiceFactory) factoryClass.getDeclaredConstructor().newInstance(), i);
+          i++;
+        } catch (ClassNotFoundException cnfe) {
+          ctracer.error("resolvePendingFactories", "Class \"" + factoryName + "\" not found");
+          factories.removeElementAt(i);
+        } catch (InstantiationException ie) {
+          ctracer.error("resolvePendingFactories", "Class \"" + factoryName + "\" not instantiatable");
+          factories.removeElementAt(i);
+        } catch (IllegalAccessException iae) {
+          ctracer.error("resolvePendingFactories", "Class \"" + factoryName + "\" constructor not accessible");
+          factories.removeElementAt(i);
+        } catch (NoSuchMethodException nsme) {
+          ctracer.error("resolvePendingFactories", "Class \"" + factoryName + "\" has no default constructor");
+          factories.removeElementAt(i);
+        } catch (InvocationTargetException ite) {
+          ctracer.error("resolvePendingFactories", "Class \"" + factoryName + "\" constructor failed: " + ite.getCause());
+          factories.removeElementAt(i);
+        } catch (ClassCastException cce) {
+          ctracer.error("resolvePendingFactories", "Class \"" + factoryName + "\" is not a CardServiceFactory");
+          factories.removeElementAt(i);
+        }
+        SmartCard.recordStartupTiming(factoryName, System.currentTimeMillis() - start);
+      }
+      hasPendingFactories = false;
+    }
+  }
   /**
    * Allocates a <tt>CardServiceScheduler</tt> for <tt>slot</tt>.
+   * The caller must hold the lock of the <tt>SlotEntry</tt> for the channel.
    */
   private CardServiceScheduler allocateCardServiceScheduler(SlotChannel channel)
   throws CardTerminalException
   {
-    CardServiceScheduler scheduler = null;
-
-    // Synchronize to implement atomic test-and-set behavior.
-    synchronized (channel) {
-      scheduler = (CardServiceScheduler) channel.getScheduler();
-      if (scheduler == null) {
-        // This is a new SlotChannel, so we need to allocate a scheduler
+    // This is a new SlotChannel, so we need to allocate a scheduler
+    itracer.debug("allocateCardServiceScheduler",
+                  "instantiating CardServiceScheduler");
+    CardServiceScheduler scheduler = new CardServiceScheduler(channel);
+    channel.setScheduler(scheduler);
+
+    // Is there a PrimaryCardServiceFactory? We take the first that we find
+    // The primary CardServiceFactory sets up the smartcard. It my do things
+    // such as protocol selection etc.
+    Enumeration factories = getCardServiceFactories();
+    while (factories.hasMoreElements()) {
+      CardServiceFactory factory = (CardServiceFactory) factories.nextElement();
+      if (factory instanceof PrimaryCardServiceFactory) {
         itracer.debug("allocateCardServiceScheduler",
-                      "instantiating CardServiceScheduler");
-        scheduler = new CardServiceScheduler(channel);
-        channel.setScheduler(scheduler);
-
-        // Is there a PrimaryCardServiceFactory? We take the first that we find
-        // The primary CardServiceFactory sets up the smartcard. It my do things
-        // such as protocol selection etc.
-        Enumeration factories = getCardServiceFactories();
-        while (factories.hasMoreElements()) {
-          CardServiceFactory factory = (CardServiceFactory) factories.nextElement();
-          if (factory instanceof PrimaryCardServiceFactory) {
-            itracer.debug("allocateCardServiceScheduler",
-                          "setting up card via PrimaryCardServiceFactory" + factory);
-            ((PrimaryCardServiceFactory) factory).setupSmartCard(channel);
-            break;
-          }
-        }
+                      "setting up card via PrimaryCardServiceFactory" + factory);
+        ((PrimaryCardServiceFactory) factory).setupSmartCard(channel);
+        break;
       }
     }
     return scheduler;
@@ -200,6 +260,8 @@ public final class CardServiceRegistry {
    * @return an enumeration of the registered card service factories
    */
   public final Enumeration getCardServiceFactories() {
+    if (hasPendingFactories)
+      resolvePendingFactories();
     return((Vector) factories.clone()).elements();
   }
   /**
@@ -296,26 +358,28 @@ public final class CardServiceRegistry {
     SlotChannel channel = null;
     int slotID = ctEvent.getSlotID();
     CardID cid = terminal.getCardID(slotID);
-    Integer hashCode = new Integer(terminal.hashCode()+slotID);
+    CardServiceScheduler scheduler = null;
 
     // allocate a CardServiceScheduler
 
-    // Here we need a synchronized statement to assure atomic test-and-set semantics for the
-    // slot channel.
-    synchronized (slot2channel) {
-      channel = (SlotChannel) slot2channel.get(hashCode);
+    // Only acquisitions for the same slot are serialized to assure atomic
+    // test-and-set semantics for the slot channel and its scheduler.
+    SlotEntry entry = getSlotEntry(terminal, slotID);
+    synchronized (entry) {
+      channel = entry.channel;
       if ((channel != null) && (channel.getLockHandle() == lockHandle)) {
         itracer.debug("getSmartCard", "secondary waitForCard(); don't need to open SlotChannel again");
       } else {
         // get new channel and store it (this will also check validity of lock handle)
         channel = terminal.openSlotChannel(slotID,lockHandle);
-        slot2channel.put(hashCode, channel);
+        entry.channel = channel;
+      }
+
+      scheduler = (CardServiceScheduler)channel.getScheduler();
+      if (scheduler==null) {
+        scheduler=allocateCardServiceScheduler(channel);
+        newScheduler=true;
       }
-    }
-    CardServiceScheduler scheduler = (CardServiceScheduler)channel.getScheduler();
-    if (scheduler==null) {
-      scheduler=allocateCardServiceScheduler(channel);
-      newScheduler=true;
     }
 
     // check if card request is satisfied
@@ -384,11 +448,32 @@ public final class CardServiceRegistry {
    * @param scheduler  The <tt>CardServiceScheduler</tt> to release.
    */
   protected void releaseScheduler(CardServiceScheduler scheduler) {
-    int hashCode = scheduler.getSlotChannel().getCardTerminal().hashCode()+
-                   scheduler.getSlotChannel().getSlotNumber();
+    SlotChannel channel = scheduler.getSlotChannel();
+    SlotKey key = new SlotKey(channel.getCardTerminal(), channel.getSlotNumber());
+
+    SlotEntry entry = slot2channel.get(key);
+    if (entry != null) {
+      synchronized (entry) {
+        // Only forget the channel this scheduler was allocated for
+        if (entry.channel == channel) {
+          entry.channel = null;
+        }
+      }
+    }
+  }
 
+  /**
+   * Gets the entry for a slot, creating it atomically if required.
+   */
+  private SlotEntry getSlotEntry(CardTerminal terminal, int slotID) {
+    return slot2channel.computeIfAbsent(new SlotKey(terminal, slotID), k -> new SlotEntry());
+  }
 
-    slot2channel.remove(new Integer(hashCode));
+  /**
+   * Forgets the slots of a terminal removed from the <tt>CardTerminalRegistry</tt>.
+   */
+  private void removeSlotEntries(CardTerminal terminal) {
+    slot2channel.keySet().removeIf(key -> key.terminal == terminal);
   }
   /**
    * Removes the passed <tt>CardServiceFactory</tt> from the registry.
@@ -400,6 +485,58 @@ public final class CardServiceRegistry {
     itracer.debug("remove", " " + factory);
     factories.removeElement(factory);
   }
+  /**
+   * Removes all factories from the registry, including those not yet instantiated.
+   */
+  void removeAll() {
+    itracer.debug("removeAll", "");
+    synchronized (factories) {
+      factories.removeAllElements();
+      hasPendingFactories = false;
+    }
+  }
+  /**
+   * Placeholder for a <tt>CardServiceFactory</tt> added with <tt>addLazy</tt>.
+   */
+  private static final class PendingFactory {
+    final String factoryName;
+
+    PendingFactory(String factoryName) {
+      this.factoryName = factoryName;
+    }
+  }
+
+  /**
+   * Identifies a slot by the identity of its <tt>CardTerminal</tt> and the slot number.
+   */
+  private static final class SlotKey {
+    private final CardTerminal terminal;
+    private final int slotID;
+
+    SlotKey(CardTerminal terminal, int slotID) {
+      this.terminal = terminal;
+      this.slotID = slotID;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof SlotKey))
+        return false;
+      SlotKey other = (SlotKey) o;
+      return (terminal == other.terminal) && (slotID == other.slotID);
+    }
+
+    public int hashCode() {
+      return System.identityHashCode(terminal) * 31 + slotID;
+    }
+  }
+
+  /**
+   * The <tt>SlotChannel</tt> currently open for a slot, used as lock for the slot.
+   */
+  private static final class SlotEntry {
+    SlotChannel channel;
+  }
+
   /**
    * Gets a meaningful <tt>String</tt> representation of this
    * <tt>CardServiceRegistry</tt>.
@@ -0,0 +1,114 @@
+/*
+ * Receive all smart cards matching a card request
+ */
+package opencard.core.service;
+
+
+import java.util.function.Consumer;
+
+import opencard.core.event.CTListener;
+import opencard.core.event.CardTerminalEvent;
+import opencard.core.event.EventGenerator;
+import opencard.core.terminal.CardTerminalException;
+import opencard.core.util.Tracer;
+
+/**
+ * A <tt>CardSubscription</tt> passes a <tt>SmartCard</tt> object to a
+ * consumer for each inserted card that matches a card request. The
+ * subscription is a card terminal event listener and remains active until
+ * <tt>cancel</tt> is called. The timeout set in the card request is ignored.
+ * <p>
+ * The consumer is called on the event dispatcher thread of this
+ * subscription, so cards are delivered one at a time and in the order
+ * of insertion. The consumer takes ownership of the <tt>SmartCard</tt>
+ * object and must close it when done.
+ *
+ * @see opencard.core.service.SmartCard#subscribe
+ */
+public final class CardSubscription implements CTListener {
+  private static Tracer ctracer = new Tracer (CardSubscription.class);
+
+  /** CardRequest to be satisfied by inserted cards. */
+  private final CardRequest cardRequest_;
+
+  /** lock handle provided by lock owner */
+  private final Object lockHandle_;
+
+  /** Consumer receiving the SmartCard objects. */
+  private final Consumer<SmartCard> consumer_;
+
+  private volatile boolean cancelled = false;
+
+  /**
+   * Creates new instance.
+   *
+   * @param cardRequest The request cards must satisfy.
+   * @param lockHandle  The handle obtained when locking the terminal or <tt>null</tt>.
+   * @param consumer    The consumer receiving the SmartCard objects.
+   */
+  CardSubscription(CardRequest cardRequest, Object lockHandle, Consumer<SmartCard> consumer)
+  {
+    ctracer.debug("<init>", "Request: " + cardRequest);
+    cardRequest_ = cardRequest;
+    lockHandle_ = lockHandle;
+    consumer_ = consumer;
+  }
+
+  /**
+   * Registers the subscription and delivers cards already present if the
+   * wait behavior of the request is <tt>ANYCARD</tt>.
+   */
+  void start() throws CardTerminalException {
+    EventGenerator.getGenerator().addCTListener(this);
+
+    try {
+      if (cardRequest_.getWaitBehavior() == CardRequest.ANYCARD)
+        EventGenerator.getGenerator().createEventsForPresentCards(this);
+    } catch (CardTerminalException | RuntimeException e) {
+      // the caller never receives the subscription, so it can not cancel it
+      cancel();
+      throw e;
+    }
+  }
+
+  /**
+   * Ends the subscription. No further cards are passed to the consumer.
+   */
+  public void cancel() {
+    cancelled = true;
+    EventGenerator.getGenerator().removeCTListener(this);
+  }
+
+  /**
+   * Determines whether the subscription has been cancelled.
+   *
+   * @return <tt>true</tt> if <tt>cancel</tt> has been called
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Reacts on card insertion event. Passes the SmartCard object to the
+   * consumer if the card matches the request.
+   *
+   * @param ctEvent CardTerminalEvent received.
+   */
+  public void cardInserted(CardTerminalEvent ctEvent) throws CardTerminalException {
+    if (cancelled)
+      return;
+
+    ctracer.debug("cardInserted", "CTEvent: " + ctEvent);
+    SmartCard sc = SmartCard.getSmartCard(ctEvent, cardRequest_, lockHandle_);
+    if (sc != null) {
+      consumer_.accept(sc);
+    }
+  }
+
+  /**
+   * Reacts on card removal events. Not of interest here.
+   *
+   * @param ctEvent CardTerminalEvent received.
+   */
+  public void cardRemoved(CardTerminalEvent ctEvent) {}
+}
@@ -36,10 +36,20 @@
 package opencard.core.service;
 
 
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import opencard.core.OpenCardConstants;
 import opencard.core.OpenCardRuntimeException;
@@ -92,11 +102,20 @@ public final class SmartCard {
   /** Vector for keeping track of allocated <TT>CardServices</TT>. */
   private Vector allocatedCS = new Vector();
 
+  /** Cached <TT>CardServices</TT> keyed by the requested class, if enabled. */
+  private volatile Hashtable serviceCache = null;
+
   private static Vector smartCardCache = new Vector();
 
   /** Reference counter for keeping track of the users that called start() */
   private static int refCount_ = 0;
 
+  /** Default time in ms to wait for all card terminal factories during start() */
+  private static final int DEFAULT_STARTUP_TIMEOUT = 10000;
+
+  /** Time in ms spent to set up each terminal and service factory */
+  private static Map<String, Long> startupTimings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
   /** return version information about OCF
   * It returns a string of the form
   * <p>OCF1.2;IBM Reference Implementation, Build Hudson, 21-May-1999</p>
@@ -190,6 +209,11 @@ public final class SmartCard {
       //     we set the state to SMARTCARD_CLOSED
       if (mutexCardChannel != null)
         endMutex();
+      if (serviceCache != null) {
+        synchronized (serviceCache) {
+          serviceCache.clear();
+        }
+      }
       scheduler.releaseSmartCard(this);
       // scheduler = null;
     }
@@ -198,14 +222,10 @@ public final class SmartCard {
   /**
    * Configures the <TT>CardServiceRegistry</TT> with the <TT>CardServiceFactory</TT>
    * classes stated in the property "OpenCard.services".
-   *
-   * @exception CardServiceException
-   *    if at least one of the service factories in the properties file
-   *    could not be instantiated. OpenCard may still be able to run with
-   *    those that could be instantiated.
+   * The factories are instantiated on the first lookup of a card service,
+   * factories that can not be instantiated are reported at that time.
    */
   private static void configureServiceRegistry()
-  throws CardServiceException
   {
     CardServiceRegistry serviceRegistry = CardServiceRegistry.getRegistry();
 
@@ -213,29 +233,11 @@ public final class SmartCard {
     getRegistryEntry(OpenCardConstants.CARD_SERVICE_REGISTRY_TAG);
 
     if (recordTokenizer != null) {
-      StringBuffer message = new StringBuffer(); // for error handling
-
       // ... parse the record into elements
       while (recordTokenizer.hasMoreElements()) {
         String factoryName = (String) recordTokenizer.nextElement();
-
-        try {
-          Class factoryClass = Class.forName(factoryName);
-          serviceRegistry.add((CardServiceFactory) factoryClass.newInstance());
-        } catch (ClassNotFoundException cnfe) {
-          ctracer.error("<configureServiceRegistry>", cnfe.getMessage());
-          message.append("\nClass \"").append(factoryName).append("\" not found");
-        } catch (InstantiationException ie) {
-          ctracer.error ("<configureServiceRegistry>", ie.getMessage());
-          message.append("\nClass \"").append(factoryName).append("\" not instantiatable");
-        } catch (IllegalAccessException iae) {
-          ctracer.error ("<configureServiceRegistry>", iae.getMessage());
-          message.append("\nClass \"").append(factoryName).append("\" constructor not accessible");
-        }
+        serviceRegistry.addLazy(factoryName);
       }
-
-      if (message.length() > 0)
-        throw new CardServiceException(message.toString());
     } else {
       ctracer.debug("configureServiceRegistry", "no services entry in properties");
     }
@@ -254,22 +256,125 @@ public final class SmartCard {
   throws ClassNotFoundException,
   CardTerminalException
   {
-    CardTerminalRegistry d_terminalRegistry = CardTerminalRegistry.getRegistry();
+    final CardTerminalRegistry d_terminalRegistry = CardTerminalRegistry.getRegistry();
 
     StringTokenizer recordTokenizer =
     getRegistryEntry (OpenCardConstants.CARD_TERMINAL_REGISTRY_TAG);
-    Hashtable factories = new Hashtable ();
+    final Hashtable factories = new Hashtable ();
 
     if (recordTokenizer != null) {
-      // ... parse the record into elements
+      // ... group the records by factory. Records for the same factory are
+      //     handled in sequence, different factories are set up concurrently
+      Map<String, Vector<String>> recordsByFactory = new LinkedHashMap<String, Vector<String>>();
       while (recordTokenizer.hasMoreElements () ) {
         String record = (String) recordTokenizer.nextElement();
-        handleTerminalFactoryEntries (record, factories, d_terminalRegistry);
+        StringTokenizer elementTokenizer = new StringTokenizer(record, "|");
+        if (!elementTokenizer.hasMoreTokens())
+          continue;
+        String factoryName = elementTokenizer.nextToken();
+        Vector<String> records = recordsByFactory.get(factoryName);
+        if (records == null) {
+          records = new Vector<String>();
+          recordsByFactory.put(factoryName, records);
+        }
+        records.addElement(record);
+      }
+
+      Map<String, FutureTask<Void>> tasks = new LinkedHashMap<String, FutureTask<Void>>();
+      for (final Map.Entry<String, Vector<String>> e : recordsByFactory.entrySet()) {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+          public Void call() throws Exception {
+            long start = System.currentTimeMillis();
+            for (String record : e.getValue()) {
+              handleTerminalFactoryEntries (record, factories, d_terminalRegistry);
+            }
+            recordStartupTiming(e.getKey(), System.currentTimeMillis() - start);
+            return null;
+          }
+        });
+        Thread t = new Thread(task, "OCF Startup " + e.getKey());
+        t.setDaemon(true);
+        t.start();
+        tasks.put(e.getKey(), task);
+      }
+
+      long timeout = getStartupTimeout();
+      long deadline = System.currentTimeMillis() + timeout;
+      Throwable failure = null;
+
+      for (Map.Entry<String, FutureTask<Void>> e : tasks.entrySet()) {
+        try {
+          e.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+          // The factory may still register its terminals when it completes
+          ctracer.error("configureTerminalRegistry", "factory " + e.getKey() + " not ready within " + timeout + " ms");
+        } catch (ExecutionException ee) {
+          ctracer.error("configureTerminalRegistry", ee.getCause());
+          if (failure == null) {
+            failure = ee.getCause();
+          }
+        } catch (InterruptedException ie) {
+          // Stop waiting, factories still complete in the background
+          ctracer.error("configureTerminalRegistry", ie);
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+
+      // ... e.g. UnsatisfiedLinkError from a missing native PC/SC or CT-API library
+      if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      if (failure instanceof ClassNotFoundException) {
+        throw (ClassNotFoundException) failure;
+      }
+      if (failure instanceof CardTerminalException) {
+        throw (CardTerminalException) failure;
+      }
+      if (failure != null) {
+        throw new CardTerminalException(failure.toString());
       }
     } else {
       ctracer.debug("configureTerminalRegistry", "no terminals in properties");
     }
   } // configureTerminalRegistry
+  /**
+   * Returns the time in ms to wait for all terminal factories, which is
+   * configured with the property "OpenCard.terminals.startupTimeout".
+   * The factories are set up concurrently, so the timeout is a single
+   * deadline shared by all factories.
+   */
+  private static long getStartupTimeout() {
+    String value = SystemAccess.getSystemAccess().getProperty(OpenCardConstants.CARD_TERMINAL_STARTUP_TIMEOUT);
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException nfe) {
+        ctracer.error("getStartupTimeout", "invalid value " + value);
+      }
+    }
+    return DEFAULT_STARTUP_TIMEOUT;
+  }
+  /**
+   * Records the time spent to set up a terminal or service factory.
+   */
+  static void recordStartupTiming(String component, long ms) {
+    ctracer.info("<start>", component + " ready after " + ms + " ms");
+    startupTimings.put(component, Long.valueOf(ms));
+  }
+  /**
+   * Returns the time in ms spent to set up each card terminal factory and
+   * card service factory. Terminal factories are set up in <tt>start()</tt>,
+   * service factories on the first lookup of a card service. Terminal
+   * factories that did not complete within the startup timeout are missing.
+   *
+   * @return map of factory class name to set up time in ms
+   */
+  public static Map<String, Long> getStartupTimings() {
+    synchronized (startupTimings) {
+      return new LinkedHashMap<String, Long>(startupTimings);
+    }
+  }
   /**
    * Releases exclusive access to the card.
    */
@@ -333,7 +438,44 @@ public final class SmartCard {
     itracer.debug("getCardService", "(" + clazz + ")");
 
     assertSmartCardOpen();
-    cs = CardServiceRegistry.getRegistry().
+
+    Hashtable cache = serviceCache;
+    if (cache != null) {
+      synchronized (cache) {
+        CachedCardService entry = (CachedCardService) cache.get(clazz);
+        if ((entry != null) && (entry.block == block)) {
+          entry.refCount++;
+          itracer.debug("getCardService", "cache hit for " + clazz +
+                        ", " + entry.refCount + " references");
+          return entry.service;
+        }
+      }
+    }
+
+    // ... create outside the cache lock, as service initialization may exchange APDUs
+    cs = createCardService(clazz, block);
+
+    if (cache != null) {
+      synchronized (cache) {
+        // ... a concurrent caller may have cached an instance meanwhile,
+        //     in which case this instance remains uncached
+        if (cache.get(clazz) == null) {
+          cache.put(clazz, new CachedCardService(cs, block));
+        }
+      }
+    }
+
+    return cs;
+  }
+
+  /**
+   * (Helper) Obtains a new <tt>CardService</tt> instance from the
+   * <tt>CardServiceRegistry</tt> and keeps track of it.
+   */
+  private CardService createCardService(Class clazz, boolean block)
+  throws ClassNotFoundException, CardServiceException
+  {
+    CardService cs = CardServiceRegistry.getRegistry().
          getCardServiceInstance(clazz, cid, scheduler, this, block);
 
     // ... check whether mutex is in force
@@ -345,6 +487,96 @@ public final class SmartCard {
 
     return cs;
   }
+
+  /**
+   * Releases a <tt>CardService</tt> obtained via <tt>getCardService</tt>.
+   * If service caching is enabled, the reference count of the cached
+   * instance is decremented and the instance is dropped when the last
+   * reference has been released. Services which are not cached are
+   * dropped immediately.
+   * <br>
+   * Releasing a service is optional. Services that are never released
+   * are dropped when the <tt>SmartCard</tt> is closed.
+   *
+   * @param cs  the <tt>CardService</tt> to release
+   *
+   * @see #setCardServiceCaching
+   */
+  public void releaseCardService(CardService cs) {
+    itracer.debug("releaseCardService", "(" + cs + ")");
+
+    Hashtable cache = serviceCache;
+    if (cache != null) {
+      synchronized (cache) {
+        Enumeration keys = cache.keys();
+        while (keys.hasMoreElements()) {
+          Object key = keys.nextElement();
+          CachedCardService entry = (CachedCardService) cache.get(key);
+          if (entry.service == cs) {
+            entry.refCount--;
+            if (entry.refCount > 0) {
+              return;
+            }
+            cache.remove(key);
+            break;
+          }
+        }
+      }
+    }
+
+    allocatedCS.removeElement(cs);
+    ctracer.debug("releaseCardService", allocatedCS.size() + " elements in cache");
+  }
+
+  /**
+   * Enables or disables caching of <tt>CardService</tt> instances.
+   * With caching enabled, repeated calls to <tt>getCardService</tt>
+   * with the same class and blocking mode return the same instance,
+   * avoiding the lookup through the <tt>CardServiceRegistry</tt> and
+   * preserving state kept by the service between calls. Each call
+   * increments a reference count that is decremented by
+   * <tt>releaseCardService</tt>.
+   * <br>
+   * Caching is disabled by default. Disabling caching drops all
+   * cached entries, but does not invalidate service instances already
+   * handed out.
+   *
+   * @param enabled  <tt>true</tt> to enable caching
+   *
+   * @see #releaseCardService
+   */
+  public synchronized void setCardServiceCaching(boolean enabled) {
+    if (enabled) {
+      if (serviceCache == null) {
+        serviceCache = new Hashtable();
+      }
+    } else {
+      serviceCache = null;
+    }
+  }
+
+  /**
+   * Determines whether <tt>CardService</tt> instances are cached.
+   *
+   * @return <tt>true</tt> if caching is enabled
+   */
+  public boolean isCardServiceCaching() {
+    return serviceCache != null;
+  }
+
+  /**
+   * Entry in the <tt>CardService</tt> cache.
+   */
+  private static final class CachedCardService {
+    final CardService service;
+    final boolean block;
+    int refCount = 1;
+
+    CachedCardService(CardService service, boolean block) {
+      this.service = service;
+      this.block = block;
+    }
+  }
   /**
    *  Returns a tokenizer for the given property entry.
    */
@@ -480,11 +712,7 @@ public final class SmartCard {
       }
 
       // Remove all card service factories from CardServiceRegistry singleton.
-      CardServiceRegistry serviceRegistry = CardServiceRegistry.getRegistry();
-      Enumeration serviceFactories = serviceRegistry.getCardServiceFactories();
-      while (serviceFactories.hasMoreElements()) {
-        serviceRegistry.remove((CardServiceFactory) serviceFactories.nextElement());
-      }
+      CardServiceRegistry.getRegistry().removeAll();
 
       EventGenerator.getGenerator().removeAllCTListener();
       
@@ -543,6 +771,7 @@ public final class SmartCard {
 
       Tracer.init();
       EventGenerator.getGenerator();
+      startupTimings.clear();
       configureTerminalRegistry();
       configureServiceRegistry();
 
@@ -647,6 +876,95 @@ public final class SmartCard {
     return newCard;
   }
   
+  /**
+   * Waits asynchronously for a card to be inserted into any of the card
+   * terminals attached to the system. The returned future is completed with
+   * the first <tt>SmartCard</tt> object matching the provided
+   * <tt>CardRequest</tt> or with <tt>null</tt> if the timeout set in the
+   * request expires. No thread is blocked while waiting, cancelling the future
+   * ends the wait.
+   *
+   * @param     req
+   *            A <tt>CardRequest</tt> object describing the kind of
+   *            smart card that we are interested in.
+   * @return    A future for the <tt>SmartCard</tt> object.
+   *
+   * @see #waitForCard(CardRequest)
+   */
+  public static CompletableFuture<SmartCard> waitForCardAsync(CardRequest req)
+  throws CardTerminalException
+  {
+    return waitForCardAsync(req, null);
+  }
+
+  /**
+   * Waits asynchronously for a card to be inserted into any of the locked
+   * card terminals attached to the system.
+   *
+   * @param     req
+   *            A <tt>CardRequest</tt> object describing the kind of
+   *            smart card that we are interested in.
+   * @param     lockHandle
+   *            handle obtained by lock owner when locking a terminal. This
+   *            parameter is only necessary for locked terminals / slots.
+   * @return    A future for the <tt>SmartCard</tt> object.
+   *
+   * @see #waitForCard(CardRequest, Object)
+   */
+  public static CompletableFuture<SmartCard> waitForCardAsync(CardRequest req, Object lockHandle)
+  throws CardTerminalException
+  {
+    ctracer.debug("waitForCardAsync", "passing request " + req + " to CardServiceRegistry");
+
+    return new AsyncCardWaiter(req, lockHandle).start();
+  }
+
+  /**
+   * Subscribes to all cards inserted into any of the card terminals attached
+   * to the system that match the provided <tt>CardRequest</tt>. Each matching
+   * card is passed as <tt>SmartCard</tt> object to the consumer until the
+   * subscription is cancelled. If the wait behavior of the request is
+   * <tt>ANYCARD</tt>, cards already present are passed as well.
+   *
+   * @param     req
+   *            A <tt>CardRequest</tt> object describing the kind of
+   *            smart card that we are interested in.
+   * @param     consumer
+   *            The consumer receiving the <tt>SmartCard</tt> objects.
+   * @return    The subscription, which can be used to cancel it.
+   *
+   * @see CardSubscription
+   */
+  public static CardSubscription subscribe(CardRequest req, Consumer<SmartCard> consumer)
+  throws CardTerminalException
+  {
+    return subscribe(req, null, consumer);
+  }
+
+  /**
+   * Subscribes to all cards inserted into any of the locked card terminals
+   * that match the provided <tt>CardRequest</tt>.
+   *
+   * @param     req
+   *            A <tt>CardRequest</tt> object describing the kind of
+   *            smart card that we are interested in.
+   * @param     lockHandle
+   *            handle obtained by lock owner when locking a terminal. This
+   *            parameter is only necessary for locked terminals / slots.
+   * @param     consumer
+   *            The consumer receiving the <tt>SmartCard</tt> objects.
+   * @return    The subscription, which can be used to cancel it.
+   */
+  public static CardSubscription subscribe(CardRequest req, Object lockHandle, Consumer<SmartCard> consumer)
+  throws CardTerminalException
+  {
+    ctracer.debug("subscribe", "passing request " + req + " to CardServiceRegistry");
+
+    CardSubscription subscription = new CardSubscription(req, lockHandle, consumer);
+    subscription.start();
+    return subscription;
+  }
+
   /**
    * Reset inserted card
    * 
@@ -658,6 +976,20 @@ public final class SmartCard {
       cid = scheduler.reset(null, warm, false);
       return cid;
   }
+
+  /**
+   * Reset inserted card using a card channel already allocated by the caller
+   * 
+   * @param channel the allocated card channel
+   * @param warm true for a warm reset
+   * @return CardID of card in reader
+   * 
+   * @throws CardTerminalException
+   */
+  public CardID reset(CardChannel channel, boolean warm) throws CardTerminalException {
+      cid = scheduler.reset(channel, warm, false);
+      return cid;
+  }
   
   /**
    * Sets the APDU tracer that monitors all APDU to and from the card-
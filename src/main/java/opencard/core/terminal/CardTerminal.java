@@ -101,6 +101,9 @@ public abstract class CardTerminal {
 
   private Object ctListenerMonitor = new String("ctListenerMonitor");
 
+  /** default for automatic response handling in new slot channels */
+  private boolean automaticResponseHandling = false;
+
 
   /**
    * Instantiates a <tt>CardTerminal</tt> object.
@@ -390,6 +393,7 @@ public abstract class CardTerminal {
         throw new InvalidSlotChannelException("slot channel already allocated", this);
 
       channel = new SlotChannel(this, slotID, lockHandle);
+      channel.setAutomaticResponseHandling(automaticResponseHandling);
       channels.addElement(channel);
     } // synchronized
 
@@ -520,6 +524,28 @@ public abstract class CardTerminal {
   }
 
 
+  /** Enable or disable automatic response handling for slot channels
+   * opened after this call. With automatic response handling, 61xx and
+   * 6Cxx status words are resolved by the slot channel.
+   *
+   * @param     enabled
+   *            <tt>true</tt> to enable automatic response handling
+   * @see SlotChannel#setAutomaticResponseHandling
+   */
+  public void setAutomaticResponseHandling(boolean enabled) {
+    automaticResponseHandling = enabled;
+  }
+
+
+  /** Determine whether new slot channels resolve 61xx and 6Cxx status words.
+   *
+   * @return <tt>true</tt> if automatic response handling is enabled
+   */
+  public boolean isAutomaticResponseHandling() {
+    return automaticResponseHandling;
+  }
+
+
   /** Returns a printable representation of this <tt>CardTerminal</tt> object.<p>
    *
    * @return   A <tt>String</tt> representing this <tt>CardTerminal</tt> object.
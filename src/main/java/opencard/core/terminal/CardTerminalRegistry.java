@@ -39,6 +39,8 @@ package opencard.core.terminal;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import opencard.core.event.CTListener;
 import opencard.core.event.EventGenerator;
@@ -79,6 +81,10 @@ public final class CardTerminalRegistry {
   private static final CardTerminalRegistry registry = new CardTerminalRegistry();
   private Vector registeredTerminals = new Vector ();
 
+  /** callbacks informed about terminals removed from the registry */
+  private final CopyOnWriteArrayList<Consumer<CardTerminal>> removalCallbacks =
+    new CopyOnWriteArrayList<Consumer<CardTerminal>>();
+
   /**
   * The Observer is the bridge to the opencard.core.event package
   * which creates events for card insertion/card removal
@@ -87,6 +93,32 @@ public final class CardTerminalRegistry {
     observer=o;
   }
 
+  /**
+   * Registers a callback which is informed when a terminal is removed from
+   * the registry, so that resources kept for the terminal can be released.
+   *
+   * @param     callback
+   *            The callback receiving the removed <tt>CardTerminal</tt>.
+   */
+  public void addRemovalCallback(Consumer<CardTerminal> callback) {
+    removalCallbacks.add(callback);
+  }
+
+
+  /**
+   * Informs the removal callbacks about a removed terminal.
+   */
+  private void terminalRemoved(CardTerminal terminal) {
+    for (Consumer<CardTerminal> callback : removalCallbacks) {
+      try {
+        callback.accept(terminal);
+      } catch (RuntimeException rte) {
+        ctracer.error("terminalRemoved", rte);
+      }
+    }
+  }
+
+
   /**
    * Constructs the system wide <tt>CardTerminalRegistry</tt>.
    */
@@ -201,6 +233,7 @@ public final class CardTerminalRegistry {
     throws CardTerminalException {
 
     CardTerminal ct = null;
+    CardTerminal removed = null;
 
     // iterate over all registered terminals and find the
     // terminal named <tt>name</tt>
@@ -211,11 +244,16 @@ public final class CardTerminalRegistry {
         if (ct.getName().equals(name)) {
           ct.close();
           registeredTerminals.removeElementAt(i);
+          removed = ct;
           break;    // leave loop here
         }
       }
     }
 
+    if (removed != null) {
+      terminalRemoved(removed);
+    }
+
     return false;
   }
 
@@ -243,6 +281,10 @@ public final class CardTerminalRegistry {
 
     boolean taskAccomplished = registeredTerminals.removeElement (terminal);
 
+    if (taskAccomplished) {
+      terminalRemoved(terminal);
+    }
+
     ctracer.debug("remove", "status " + taskAccomplished);
     return taskAccomplished;
   }
@@ -35,6 +35,8 @@
 
 package opencard.core.terminal;
 
+import java.nio.ByteBuffer;
+
 import opencard.core.OpenCardRuntimeException;
 
 /**
@@ -112,6 +114,46 @@ public class ResponseAPDU extends APDU {
   } // data
 
 
+  /**
+   * Gets the length of the data field of the APDU.
+   *
+   * @return the number of bytes preceding <tt>SW1</tt> and <tt>SW2</tt>
+   */
+  public int dataLength() {
+    return apdu_length > 2 ? apdu_length - 2 : 0;
+  }
+
+
+  /**
+   * Copies the data field of the APDU into the given buffer, without
+   * allocating an intermediate array as <tt>data</tt> does.
+   *
+   * @param buffer   the buffer receiving the data field
+   * @param offset   the position in the buffer for the first byte
+   * @return         the number of bytes copied
+   *
+   * @exception IndexOutOfBoundsException
+   *            thrown when the data field does not fit into the buffer
+   */
+  public int copyDataTo(byte[] buffer, int offset) {
+    int len = dataLength();
+    System.arraycopy(apdu_buffer, 0, buffer, offset, len);
+    return len;
+  }
+
+
+  /**
+   * Gets a read-only view on the data field of the APDU.
+   * The data is not copied, so the view reflects later modifications of
+   * the APDU buffer and must not be used after <tt>clear</tt>.
+   *
+   * @return a read-only buffer positioned at the first byte of the data field
+   */
+  public ByteBuffer dataBuffer() {
+    return ByteBuffer.wrap(apdu_buffer, 0, dataLength()).slice().asReadOnlyBuffer();
+  }
+
+
   /**
    * Gets the value of <tt>SW1</tt> and <tt>SW2</tt> as a short integer.
    * It is computed as: (((sw1<<8)&0xFF00) | (sw2&0xFF)).
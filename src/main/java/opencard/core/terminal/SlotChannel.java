@@ -36,6 +36,8 @@
 package opencard.core.terminal;
 
 
+import java.util.Arrays;
+
 import opencard.core.util.APDUTracer;
 import opencard.core.util.Tracer;
 
@@ -50,6 +52,22 @@ import opencard.core.util.Tracer;
  */
 
 public final class SlotChannel {
+
+    /** Never split command APDUs using command chaining */
+    public static final int CHAINING_OFF = 0;
+
+    /** Always send extended length command APDUs using command chaining */
+    public static final int CHAINING_ON = 1;
+
+    /** Use command chaining if card or terminal lack extended length support */
+    public static final int CHAINING_AUTO = 2;
+
+    /** Maximum number of response bytes collected with GET RESPONSE */
+    private static final int MAX_RESPONSE_LENGTH = 65536;
+
+    /** Maximum number of GET RESPONSE commands issued for a single command */
+    private static final int MAX_GET_RESPONSE = 256;
+
     private Tracer itracer = new Tracer(this, SlotChannel.class);
     private APDUTracer aPDUTracer = null;
     
@@ -67,6 +85,18 @@ public final class SlotChannel {
      */
     private Object lockHandle;
 
+    /** Resolve 61xx and 6Cxx status words in the channel */
+    private boolean automaticResponseHandling = false;
+
+    /** Buffer accumulating response data of GET RESPONSE sequences */
+    private byte[] responseBuffer = null;
+
+    /** Command chaining mode, one of CHAINING_OFF, CHAINING_ON or CHAINING_AUTO */
+    private int commandChaining = CHAINING_AUTO;
+
+    /** Result of the capability check for CHAINING_AUTO, null if not yet determined */
+    private Boolean chainingRequired = null;
+
     /** Instantiate a <tt>SlotChannel</tt>.
      *
      * @param     terminal
@@ -112,6 +142,202 @@ public final class SlotChannel {
      *            Thrown when terminal.sendAPDU failed.
      */
     public ResponseAPDU sendAPDU(CommandAPDU capdu)
+      throws CardTerminalException {
+        if (isExtendedLength(capdu.getBuffer(), capdu.getLength()) && useCommandChaining()) {
+            return sendAPDUChained(capdu);
+        }
+        if (automaticResponseHandling) {
+            return sendAPDUResolvingResponse(capdu);
+        }
+        return transmit(capdu);
+    }
+
+    /**
+     * @deprecated
+     */
+    public ResponseAPDU sendAPDU(CommandAPDU capdu, int ms)
+      throws CardTerminalException {
+        if (automaticResponseHandling) {
+            return sendAPDUResolvingResponse(capdu);
+        }
+        return this.terminal.sendAPDU(this, capdu);
+    }
+
+    /** Enable or disable the automatic handling of response status words.
+     * If enabled, a status word 6Cxx to a short command APDU causes the
+     * command to be resent with Le set to xx and a status word 61xx
+     * causes GET RESPONSE commands to be issued until all response data
+     * has been received. The caller obtains a single <tt>ResponseAPDU</tt>
+     * with the complete response data and the final status word.
+     *
+     * @param     enabled
+     *            <tt>true</tt> to resolve 61xx and 6Cxx in the channel
+     */
+    public void setAutomaticResponseHandling(boolean enabled) {
+        this.automaticResponseHandling = enabled;
+    }
+
+    /** Determine whether 61xx and 6Cxx status words are resolved in the channel.
+     *
+     * @return <tt>true</tt> if automatic response handling is enabled
+     */
+    public boolean isAutomaticResponseHandling() {
+        return automaticResponseHandling;
+    }
+
+    /** Set the command chaining mode.
+     * With command chaining, an extended length command APDU is sent as a
+     * sequence of short command APDUs with the chaining bit '10' set in CLA
+     * for all but the last. The response data is collected with GET RESPONSE
+     * and returned in a single <tt>ResponseAPDU</tt>.
+     * <p>
+     * In mode <tt>CHAINING_AUTO</tt> chaining is used if the card announces
+     * command chaining in the card capabilities of the historical bytes and
+     * either the card does not announce extended length support or the
+     * terminal reports the feature <tt>extendedLength</tt> as <tt>false</tt>.
+     *
+     * @param     mode
+     *            one of CHAINING_OFF, CHAINING_ON or CHAINING_AUTO
+     */
+    public void setCommandChaining(int mode) {
+        this.commandChaining = mode;
+        this.chainingRequired = null;
+    }
+
+    /** Return the command chaining mode.
+     *
+     * @return one of CHAINING_OFF, CHAINING_ON or CHAINING_AUTO
+     */
+    public int getCommandChaining() {
+        return commandChaining;
+    }
+
+    /** Determine whether extended length command APDUs are sent with command chaining.
+     */
+    private boolean useCommandChaining()
+      throws CardTerminalException {
+        if (commandChaining != CHAINING_AUTO) {
+            return commandChaining == CHAINING_ON;
+        }
+
+        Boolean required = chainingRequired;
+        if (required == null) {
+            boolean[] caps = getCardCapabilities(this.terminal.getCardID(this.slotID));
+            boolean cardChaining = caps[0];
+            boolean cardExtended = caps[1];
+            boolean terminalExtended = !"false".equals(this.terminal.features().getProperty("extendedLength"));
+
+            required = Boolean.valueOf(cardChaining && !(cardExtended && terminalExtended));
+            itracer.debug("useCommandChaining", "chaining " + (required.booleanValue() ? "required" : "not required"));
+            chainingRequired = required;
+        }
+        return required.booleanValue();
+    }
+
+    /** Extract command chaining and extended length support from the card capabilities
+     * in the historical bytes.
+     *
+     * @return array with chaining support at index 0 and extended length support at index 1
+     */
+    private static boolean[] getCardCapabilities(CardID cid) {
+        boolean[] caps = new boolean[2];
+
+        byte[] hb = (cid == null) ? null : cid.getHistoricals();
+        if ((hb == null) || (hb.length < 1)) {
+            return caps;
+        }
+
+        int end = hb.length;
+        if (hb[0] == 0x00) {
+            end -= 3;                               // Status indicator at the end
+        } else if (hb[0] != (byte)0x80) {
+            return caps;                            // No COMPACT-TLV encoding
+        }
+
+        int i = 1;
+        while (i < end) {
+            int tag = (hb[i] >> 4) & 0x0F;
+            int len = hb[i] & 0x0F;
+            i++;
+            if ((tag == 7) && (len >= 3) && (i + 2 < hb.length)) {
+                caps[0] = (hb[i + 2] & 0x80) != 0;  // Command chaining
+                caps[1] = (hb[i + 2] & 0x40) != 0;  // Extended Lc and Le fields
+                break;
+            }
+            i += len;
+        }
+        return caps;
+    }
+
+    /** Determine whether the command APDU uses extended length encoding.
+     */
+    private static boolean isExtendedLength(byte[] apdu, int length) {
+        return (length >= 7) && (apdu[4] == 0);
+    }
+
+    /** Send an extended length command APDU as chain of short command APDUs.
+     */
+    private synchronized ResponseAPDU sendAPDUChained(CommandAPDU capdu)
+      throws CardTerminalException {
+
+        byte[] apdu = capdu.getBuffer();
+        int length = capdu.getLength();
+        int lc = 0;
+        boolean hasLe = true;
+
+        if (length > 7) {
+            lc = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+            hasLe = (length > 7 + lc);
+        }
+
+        byte cla = apdu[0];
+        int offset = 7;
+        int remaining = lc;
+        byte[] command = new byte[5 + 255 + 1];
+
+        try {
+            ResponseAPDU rapdu;
+            do {
+                int chunk = remaining > 255 ? 255 : remaining;
+                boolean last = (chunk == remaining);
+
+                command[0] = last ? cla : (byte)(cla | 0x10);
+                System.arraycopy(apdu, 1, command, 1, 3);
+                int clen = 4;
+                if (chunk > 0) {
+                    command[clen++] = (byte)chunk;
+                    System.arraycopy(apdu, offset, command, clen, chunk);
+                    clen += chunk;
+                }
+                if (last && hasLe) {
+                    command[clen++] = 0;            // Le = 256, more data is fetched with GET RESPONSE
+                }
+
+                CommandAPDU com = new CommandAPDU(clen);
+                com.append(Arrays.copyOf(command, clen));
+                rapdu = transmit(com);
+
+                offset += chunk;
+                remaining -= chunk;
+
+                if (!last && (rapdu.sw() != 0x9000)) {
+                    itracer.debug("sendAPDUChained", "chain aborted with SW " + Integer.toHexString(rapdu.sw()));
+                    return rapdu;
+                }
+            } while (remaining > 0);
+
+            if (rapdu.sw1() == (byte)0x61) {
+                return collectResponse(cla, rapdu);
+            }
+            return rapdu;
+        } finally {
+            Arrays.fill(command, (byte)0);
+        }
+    }
+
+    /** Send a <tt>CommandAPDU</tt> and trace command and response.
+     */
+    private ResponseAPDU transmit(CommandAPDU capdu)
       throws CardTerminalException {
         if (aPDUTracer == null) {
             return this.terminal.sendAPDU(this, capdu);
@@ -122,12 +348,130 @@ public final class SlotChannel {
         return rapdu;
     }
 
-    /**
-     * @deprecated
+    /** Send a <tt>CommandAPDU</tt>, resend on 6Cxx and collect data on 61xx.
      */
-    public ResponseAPDU sendAPDU(CommandAPDU capdu, int ms)
+    private synchronized ResponseAPDU sendAPDUResolvingResponse(CommandAPDU capdu)
       throws CardTerminalException {
-        return this.terminal.sendAPDU(this, capdu);
+
+        // Terminals may clear the command after sending, so keep a copy for a resend
+        int clen = capdu.getLength();
+        byte[] command = null;
+        if (isShortCommandWithLe(capdu.getBuffer(), clen)) {
+            command = new byte[clen];
+            System.arraycopy(capdu.getBuffer(), 0, command, 0, clen);
+        }
+        byte cla = capdu.getBuffer()[0];
+
+        try {
+            ResponseAPDU rapdu = transmit(capdu);
+
+            if ((rapdu.sw1() == (byte)0x6C) && (command != null)) {
+                itracer.debug("sendAPDU", "resending with Le=" + (rapdu.sw2() & 0xFF));
+                command[clen - 1] = rapdu.sw2();
+                rapdu = transmit(new CommandAPDU(command, clen));
+            }
+
+            if (rapdu.sw1() != (byte)0x61) {
+                return rapdu;
+            }
+
+            return collectResponse(cla, rapdu);
+        } finally {
+            if (command != null) {
+                Arrays.fill(command, (byte)0);
+            }
+        }
+    }
+
+    /** Issue GET RESPONSE until the card returns a status word other than 61xx.
+     *
+     * @exception CardTerminalException
+     *            if the card continues to signal 61xx beyond MAX_GET_RESPONSE
+     *            commands or MAX_RESPONSE_LENGTH bytes of response data
+     */
+    private ResponseAPDU collectResponse(byte cla, ResponseAPDU rapdu)
+      throws CardTerminalException {
+
+        int len = 0;
+        int count = 0;
+
+        try {
+            while (true) {
+                int dlen = rapdu.getLength() - 2;
+                if (len + dlen > MAX_RESPONSE_LENGTH) {
+                    rapdu.clear();
+                    throw new CardTerminalException("Response data exceeds " + MAX_RESPONSE_LENGTH + " bytes",
+                      terminal, slotID);
+                }
+                len = appendResponseData(rapdu.getBuffer(), dlen, len);
+
+                if (rapdu.sw1() != (byte)0x61) {
+                    break;
+                }
+
+                if (++count > MAX_GET_RESPONSE) {
+                    rapdu.clear();
+                    throw new CardTerminalException("Card requested more than " + MAX_GET_RESPONSE + " GET RESPONSE commands",
+                      terminal, slotID);
+                }
+
+                // GET RESPONSE on the logical channel of the original command
+                CommandAPDU getResponse = new CommandAPDU(5);
+                getResponse.append((byte)(cla & 0x03));
+                getResponse.append((byte)0xC0);
+                getResponse.append((byte)0x00);
+                getResponse.append((byte)0x00);
+                getResponse.append(rapdu.sw2());
+                rapdu.clear();
+                rapdu = transmit(getResponse);
+
+                if (rapdu.sw1() == (byte)0x6C) {
+                    getResponse.setLength(4);
+                    getResponse.append(rapdu.sw2());
+                    rapdu = transmit(getResponse);
+                }
+            }
+
+            ResponseAPDU result = new ResponseAPDU(len + 2);
+            byte[] rb = result.getBuffer();
+            System.arraycopy(responseBuffer, 0, rb, 0, len);
+            rb[len] = rapdu.sw1();
+            rb[len + 1] = rapdu.sw2();
+            result.setLength(len + 2);
+            return result;
+        } finally {
+            Arrays.fill(responseBuffer, 0, len, (byte)0);
+        }
+    }
+
+    /** Append response data to the accumulation buffer, growing it if required.
+     *
+     * @return the new length of data in the buffer
+     */
+    private int appendResponseData(byte[] data, int dlen, int len) {
+        if (responseBuffer == null) {
+            responseBuffer = new byte[Math.max(512, len + dlen)];
+        } else if (len + dlen > responseBuffer.length) {
+            byte[] nb = new byte[Math.max(responseBuffer.length << 1, len + dlen)];
+            System.arraycopy(responseBuffer, 0, nb, 0, len);
+            Arrays.fill(responseBuffer, (byte)0);
+            responseBuffer = nb;
+        }
+        System.arraycopy(data, 0, responseBuffer, len, dlen);
+        return len + dlen;
+    }
+
+    /** Determine whether the command is a short case 2 or case 4 APDU, which ends with Le.
+     */
+    private static boolean isShortCommandWithLe(byte[] apdu, int length) {
+        if (length == 5) {
+            return true;                            // Case 2
+        }
+        if (length < 6) {
+            return false;
+        }
+        int lc = apdu[4] & 0xFF;
+        return (lc != 0) && (length == 5 + lc + 1); // Case 4
     }
 
     /** Return the <tt>Slot</tt> object associated with this <tt>SlotChannel</tt>.
@@ -179,6 +523,7 @@ public final class SlotChannel {
     public CardID reset(boolean warm)
       throws CardTerminalException {
 
+        chainingRequired = null;
     	CardID cid = this.terminal.reset(this, warm);
     	if (aPDUTracer != null) {
     		aPDUTracer.traceAnswerToReset(this, cid);
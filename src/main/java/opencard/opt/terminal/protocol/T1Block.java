@@ -53,7 +53,7 @@ public class T1Block {
   /** use LDR (XOR) algorithm for EDC byte */
   public static final int EDC_LDR                    = 1;
 
-  /** use CRC16 algorithm for EDC byte - not implemented */
+  /** use CRC16 algorithm (ISO 3309) for EDC bytes */
   public static final int EDC_CRC                    = 2;
 
   /** indicates error free operation */
@@ -107,25 +107,61 @@ public class T1Block {
   public static final int S_BLOCK                    = 0xC0;
 
 
-  /** Node address (NAD) */
-  private byte   NAD = 0;
+  /** maximum length of the information field */
+  public static final int MAX_INF_LENGTH             = 254;
 
-  /** Protocol control byte (PCB) */
-  private byte   PCB = 0;
+  /** maximum length of a raw block with prologue, information field and CRC */
+  public static final int MAX_BLOCK_LENGTH           = 3 + MAX_INF_LENGTH + 2;
 
-  /** Length (LEN) of information field */
-  private int    LEN = 0; // PTR 0197: int instead byte to avoid overflow
 
-  /** Information field (DAT) */
-  private byte[] DAT = null;
+  /** raw block: NAD, PCB, LEN, information field and EDC */
+  private byte[] block = null;
 
-  /** EDC information */
-  private int    EDC = 0;
+  /** offset of the raw block in the buffer */
+  private int    offset = 0;
 
   /** used EDC algorithm: EDC_LDR or EDC_CRC */
   private int    algForEDC = 0;
 
 
+  /** <tt>Constructor</tt>
+   *
+   * creates an empty block that can be reused with <tt>encode</tt> and <tt>decode</tt>.
+   *
+   * @param edcInfo
+   *        EDC_LDR (XOR) or EDC_CRC
+   */
+  public T1Block(int edcInfo) {
+    this(new byte[MAX_BLOCK_LENGTH], 0, edcInfo);
+  }
+
+  /** <tt>Constructor</tt>
+   *
+   * creates an empty block working on a caller-owned buffer. The buffer must provide
+   * MAX_BLOCK_LENGTH bytes starting at offset. <tt>encode</tt> writes the raw block
+   * into the buffer and <tt>decode</tt> verifies a block received into the buffer in place.
+   *
+   * @param buffer
+   *        the buffer holding the raw block
+   * @param offset
+   *        the offset of the raw block in the buffer
+   * @param edcInfo
+   *        EDC_LDR (XOR) or EDC_CRC
+   */
+  public T1Block(byte[] buffer, int offset, int edcInfo) {
+    if ((offset < 0) || (buffer.length - offset < MAX_BLOCK_LENGTH))
+      throw new IllegalArgumentException("buffer too small for T1 block");
+
+    block = buffer;
+    this.offset = offset;
+    algForEDC = edcInfo;
+
+    block[offset] = 0;
+    block[offset + 1] = 0;
+    block[offset + 2] = 0;
+    setEDC(calcEDC());
+  }
+
   /** <tt>Constructor</tt>
    *
    * @param src
@@ -143,52 +179,120 @@ public class T1Block {
   public T1Block(int src, int dest, int pcb, byte[] dat, int edcInfo)
          throws T1BlockLengthException, T1BlockEDCErrorException {
 
-    NAD = (byte)(((dest & 0x7) << 4) + (src & 0x7));
-    PCB = (byte)pcb;
+    int len = (dat != null) ? dat.length : 0;
 
-    if (dat != null) {
-      if (dat.length > 254)
-        throw new T1DataPacketTooLongException("info-field of I-BLOCK must not be greater than 254 bytes");
+    if (len > MAX_INF_LENGTH)
+      throw new T1DataPacketTooLongException("info-field of I-BLOCK must not be greater than 254 bytes");
 
-      LEN = dat.length;
-    } else
-      LEN = 0;
-
-    DAT = dat;
-    algForEDC = edcInfo;
-    EDC = calcEDC();
+    block = new byte[3 + len + getEDCLength(edcInfo)];
+    encode(src, dest, pcb, dat, 0, len, edcInfo);
   }
 
   /** create Block object from raw T1-Block */
   public T1Block(byte[] rawBytes, int edcInfo)
          throws T1BlockLengthException, T1BlockEDCErrorException {
-    NAD = rawBytes[0];
-    PCB = rawBytes[1];
-    LEN = rawBytes[2]&0xff;
 
-    // save type of EDC algorithm
+    block = new byte[rawBytes.length];
+    decode(rawBytes, 0, rawBytes.length, edcInfo);
+  }
+
+  /** <tt>encode</tt>
+   *
+   * writes the raw block into the buffer of this object and calculates the EDC in place.
+   *
+   * @param src
+   *        source-address for T1 block
+   * @param dest
+   *        destination-address for T1-Block
+   * @param pcb
+   *        protocol control byte
+   * @param dat
+   *        buffer containing the info data, may be null if datLength is 0
+   * @param datOffset
+   *        offset of the info data in dat
+   * @param datLength
+   *        length of the info data
+   * @param edcInfo
+   *        EDC_LDR (XOR) or EDC_CRC
+   * @return the length of the raw block
+   * @exception T1BlockLengthException
+   *            thrown when the block does not fit into the buffer
+   */
+  public int encode(int src, int dest, int pcb, byte[] dat, int datOffset, int datLength, int edcInfo)
+         throws T1BlockLengthException {
+
+    if (datLength > MAX_INF_LENGTH)
+      throw new T1DataPacketTooLongException("info-field of I-BLOCK must not be greater than 254 bytes");
+
+    int length = 3 + datLength + getEDCLength(edcInfo);
+
+    if (block.length - offset < length)
+      throw new T1BlockLengthException("block does not fit into buffer");
+
     algForEDC = edcInfo;
 
-    // length of rawBytes correct? (LDR-mode)
-    if (rawBytes.length == LEN + 4) {
-      DAT = new byte[LEN];
-      System.arraycopy(rawBytes, 3, DAT, 0, LEN);
-      EDC = rawBytes[rawBytes.length - 1];
-    } else
-    // length of rawBytes correct? (CRC-mode)
-    if (rawBytes.length == LEN + 5) {
+    block[offset] = (byte)(((dest & 0x7) << 4) + (src & 0x7));
+    block[offset + 1] = (byte)pcb;
+    block[offset + 2] = (byte)datLength;
 
-      disableCRC();
+    if (datLength > 0)
+      System.arraycopy(dat, datOffset, block, offset + 3, datLength);
 
-      DAT = new byte[LEN];
-      System.arraycopy(rawBytes, 3, DAT, 0, LEN);
-      EDC = (rawBytes[rawBytes.length - 2] << 8) + rawBytes[rawBytes.length - 1];
+    setEDC(calcEDC());
 
-    } else
+    return length;
+  }
+
+  /** <tt>decode</tt>
+   *
+   * takes a raw block into this object and verifies length and EDC. If rawBytes and rawOffset
+   * refer to the buffer of this object, the block is verified in place without copying.
+   *
+   * @param rawBytes
+   *        buffer containing the raw block
+   * @param rawOffset
+   *        offset of the raw block in rawBytes
+   * @param length
+   *        length of the raw block
+   * @param edcInfo
+   *        EDC_LDR (XOR) or EDC_CRC
+   * @return the length of the information field
+   * @exception T1BlockLengthException
+   *            thrown when the length does not match the LEN byte or exceeds the buffer
+   * @exception T1BlockEDCErrorException
+   *            thrown when the EDC differs from the calculated value
+   */
+  public int decode(byte[] rawBytes, int rawOffset, int length, int edcInfo)
+         throws T1BlockLengthException, T1BlockEDCErrorException {
+
+    // length of rawBytes correct?
+    if ((length < 3) || (length != 3 + (rawBytes[rawOffset + 2] & 0xFF) + getEDCLength(edcInfo)))
       throw new T1BlockLengthException("block length mismatch detected");
 
+    if (block.length - offset < length)
+      throw new T1BlockLengthException("block does not fit into buffer");
+
+    if ((rawBytes != block) || (rawOffset != offset))
+      System.arraycopy(rawBytes, rawOffset, block, offset, length);
+
+    // save type of EDC algorithm
+    algForEDC = edcInfo;
+
     if (!checkEDC())
       throw new T1BlockEDCErrorException("EDC error detected");
+
+    return getLEN();
+  }
+
+  /** getEDCLength
+   *
+   * returns the number of EDC bytes appended to a block for the given algorithm
+   *
+   * @param edcAlg
+   *        EDC_LDR or EDC_CRC
+   */
+  public static int getEDCLength(int edcAlg) {
+    return (edcAlg == EDC_CRC) ? 2 : 1;
   }
 
   /** calcEDC
@@ -196,66 +300,121 @@ public class T1Block {
    * calculates the EDC-field according to the used EDC algorithm
    */
   public int calcEDC() {
-    int edc = 0;
-
-    // if CRC is used throw exception
-    disableCRC();
+    return calcEDC(block, offset, 3 + getLEN(), algForEDC);
+  }
 
-    if (algForEDC == EDC_LDR) {
-      edc = 0;
-      edc = NAD ^ PCB ^ (byte)LEN;
+  /** calcEDC
+   *
+   * calculates the EDC over prologue and information field of a raw block
+   *
+   * @param buffer
+   *        buffer containing the raw block
+   * @param off
+   *        offset of the raw block in buffer
+   * @param len
+   *        length of prologue and information field
+   * @param edcAlg
+   *        EDC_LDR (XOR) or EDC_CRC (ISO 3309, polynomial x^16 + x^12 + x^5 + 1, bit reversed)
+   */
+  public static int calcEDC(byte[] buffer, int off, int len, int edcAlg) {
+    int edc = 0;
 
-      if (DAT != null)
-        for (int i=0; i<DAT.length; i++)
-          edc = edc ^ DAT[i];
+    if (edcAlg == EDC_CRC) {
+      edc = 0xFFFF;
+      for (int i=off; i<off + len; i++) {
+        edc ^= buffer[i] & 0xFF;
+        for (int j=0; j<8; j++) {
+          if ((edc & 1) == 1)
+            edc = (edc >>> 1) ^ 0x8408;
+          else
+            edc = edc >>> 1;
+        }
+      }
+    } else {
+      for (int i=off; i<off + len; i++)
+        edc = edc ^ buffer[i];
 
+      edc &= 0xFF;
     }
-      return edc;
+    return edc;
   }
 
   /** checks the correctness of the given EDC byte (true, if EDC is correct) */
   public boolean checkEDC() {
-    boolean retVal = false;
-
-    return (EDC == calcEDC());
+    return (getEDC() == calcEDC());
   }
 
   /** returns byte array with raw block data */
   public byte[] getBlock() {
-    byte[] block;
+    byte[] raw = new byte[getLength()];
 
-    // if CRC is used throw exception
-    disableCRC();
+    System.arraycopy(block, offset, raw, 0, raw.length);
+    return raw;
+  }
 
-    if (DAT != null) {
-      block = new byte[DAT.length + 4];
-      System.arraycopy(DAT, 0, block, 3, DAT.length);
-    } else
-      block = new byte[4];
+  /** copies the raw block data into the given buffer and returns the number of bytes copied */
+  public int getBlock(byte[] buffer, int off) {
+    int length = getLength();
 
-    block[0] = NAD;
-    block[1] = PCB;
-    block[2] = (byte)LEN;
-    block[block.length - 1] = (byte)(0xFF & EDC); // only LDR!!!!!
+    System.arraycopy(block, offset, buffer, off, length);
+    return length;
+  }
 
+  /** returns the buffer holding the raw block, which is not copied */
+  public byte[] getBuffer() {
     return block;
   }
 
+  /** returns the offset of the raw block in the buffer */
+  public int getOffset() {
+    return offset;
+  }
+
+  /** returns the length of the raw block including the EDC */
+  public int getLength() {
+    return 3 + getLEN() + getEDCLength(algForEDC);
+  }
+
+  /** returns the offset of the information field in the buffer */
+  public int getDataOffset() {
+    return offset + 3;
+  }
+
+  /** copies the information field into the given buffer and returns the number of bytes copied */
+  public int copyDataTo(byte[] buffer, int off) {
+    int len = getLEN();
+
+    System.arraycopy(block, offset + 3, buffer, off, len);
+    return len;
+  }
+
+  private void setEDC(int edc) {
+    int pos = offset + 3 + getLEN();
+
+    if (algForEDC == EDC_CRC) {
+      block[pos] = (byte)(0xFF & (edc >> 8));
+      block[pos + 1] = (byte)(0xFF & edc);
+    } else
+      block[pos] = (byte)(0xFF & edc);
+  }
+
   public int getBlockType() throws T1UnknownBlockException {
-    if ((~PCB & 0x80) != 0)
+    byte pcb = getPCB();
+
+    if ((~pcb & 0x80) != 0)
       return I_BLOCK;
 
-    if ((PCB & 0xC0) == 0x80)
+    if ((pcb & 0xC0) == 0x80)
       return R_BLOCK;
 
-    if ((PCB & 0xC0) == 0xC0)
+    if ((pcb & 0xC0) == 0xC0)
       return S_BLOCK;
 
     throw new T1UnknownBlockException();
   }
 
   public byte getNAD() {
-    return NAD;
+    return block[offset];
   }
 
   public int getSourceID() {
@@ -267,19 +426,28 @@ public class T1Block {
   }
 
   public byte getPCB() {
-    return PCB;
+    return block[offset + 1];
   }
 
   public int getLEN() {
-    return LEN;
+    return block[offset + 2] & 0xFF;
   }
 
+  /** returns a copy of the information field */
   public byte[] getDATA() {
-    return DAT;
+    byte[] dat = new byte[getLEN()];
+
+    copyDataTo(dat, 0);
+    return dat;
   }
 
   public int getEDC() {
-    return EDC;
+    int pos = offset + 3 + getLEN();
+
+    if (algForEDC == EDC_CRC)
+      return ((block[pos] & 0xFF) << 8) | (block[pos + 1] & 0xFF);
+
+    return block[pos] & 0xFF;
   }
 
   public int getEDCAlgorithm() {
@@ -300,15 +468,12 @@ public class T1Block {
     return 0;
   }
 
-  /** disableCRC is used as long as CRC algorithm is not implemented */
-  private void disableCRC() {
-    if (algForEDC == EDC_CRC)
-      throw new T1BlockNotImplementedFeatureException("CRC-algorithm is not implemented!");
-  }
-
   /** toString returns informations about this block object (not yet optimized) */
   public String toString() {
     int blockType;
+    byte PCB = getPCB();
+    int LEN = getLEN();
+    int EDC = getEDC();
 
     StringBuffer info = new StringBuffer("T1-BLOCK\n--------\n");
 
@@ -324,11 +489,11 @@ public class T1Block {
       switch(blockType) {
         case I_BLOCK:
           info.append("blocktype  = I-BLOCK\n");
-          info.append("  N(S)     = " + (PCB >> 6) + "\n");
+          info.append("  N(S)     = " + ((PCB >> 6) & 0x01) + "\n");
           info.append("  chaining = " + (((PCB & 0x20) == 0x20) ? "yes\n" : "no\n"));
           info.append("  infolen  = " + LEN + "\n");
           if (getLEN() > 0)
-            info.append("  infodata = " + HexString.hexify(DAT) + "\n");
+            info.append("  infodata = " + HexString.hexify(getDATA()) + "\n");
           break;
 
         case R_BLOCK:
@@ -377,7 +542,7 @@ public class T1Block {
           }
           info.append("  infolen  = " + LEN + "\n");
           if (getLEN() > 0)
-            info.append("  infodata = " + HexString.hexify(DAT) + "\n");
+            info.append("  infodata = " + HexString.hexify(getDATA()) + "\n");
           break;
       }
 
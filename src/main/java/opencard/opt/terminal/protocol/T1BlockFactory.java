@@ -55,12 +55,12 @@ public class T1BlockFactory {
    *        the destID of the frame for the NAD-byte (0-7)
    * @param edcAlg
    *        the used algorithm for calculation of the EDC byte
-   *        possible values: T1Block.USE_LDR, T1Block.USE_CRC
+   *        possible values: T1Block.EDC_LDR, T1Block.EDC_CRC
    * @param sendSequenceNumber
    *        the sequence number of the frame
    *        internal used value is (sendSequenceNumber mod 2)
    * @param moreDataBit
-   *        true for chained block (not implemented), false for normal operation
+   *        true for chained block, false for the last or only block
    * @param data
    *        application data
    * @see   T1Block
@@ -80,6 +80,49 @@ public class T1BlockFactory {
     return new T1Block(sourceID, destID, pcb, data, edcAlg);
   }
 
+  /** <tt>createIBlock</tt>
+   *
+   * encodes I-Block according to ISO7816-3 into a reusable block without allocating memory
+   *
+   * @param block
+   *        the reusable block the I-Block is encoded into
+   * @param sourceID
+   *        the sourceID of the frame for the NAD-byte (0-7)
+   * @param destID
+   *        the destID of the frame for the NAD-byte (0-7)
+   * @param edcAlg
+   *        the used algorithm for calculation of the EDC byte
+   *        possible values: T1Block.EDC_LDR, T1Block.EDC_CRC
+   * @param sendSequenceNumber
+   *        the sequence number of the frame
+   *        internal used value is (sendSequenceNumber mod 2)
+   * @param moreDataBit
+   *        true for chained block, false for the last or only block
+   * @param data
+   *        buffer containing the application data
+   * @param offset
+   *        offset of the application data in data
+   * @param length
+   *        length of the application data
+   * @return the given block
+   * @see   T1Block
+   */
+  public static T1Block createIBlock(T1Block block, int sourceID, int destID, int edcAlg,
+                                     int sendSequenceNumber, boolean moreDataBit,
+                                     byte[] data, int offset, int length)
+                                     throws T1Exception {
+
+    // set sendSequenceBit
+    int pcb = 0xFF & ((sendSequenceNumber % 2) << 6);
+
+    // set moreDataBit
+    if (moreDataBit)
+      pcb = 0xFF & (pcb | 0x20);
+
+    block.encode(sourceID, destID, pcb, data, offset, length, edcAlg);
+    return block;
+  }
+
   /** <tt>createRBlock</tt>
    *
    * creates R-Block according to ISO7816-3
@@ -112,6 +155,42 @@ public class T1BlockFactory {
     return new T1Block(sourceID, destID, pcb, null, edcAlg);
   }
 
+  /** <tt>createRBlock</tt>
+   *
+   * encodes R-Block according to ISO7816-3 into a reusable block without allocating memory
+   *
+   * @param block
+   *        the reusable block the R-Block is encoded into
+   * @param sourceID
+   *        the sourceID of the frame for the NAD-byte (0-7)
+   * @param destID
+   *        the destID of the frame for the NAD-byte (0-7)
+   * @param edcAlg
+   *        the used algorithm for calculation of the EDC byte
+   *        possible values: EDC_LDR, EDC_CRC
+   * @param sequenceNumber
+   *        the sequence number of the related frame
+   *        internal used value is (sequenceNumber mod 2)
+   * @param errInfo
+   *        indicates the error
+   *        possible values: T1Block.ERROR_NONE, T1Block.ERROR_EDC, T1Block.ERROR_OTHER
+   * @return the given block
+   * @see   T1Block
+   */
+  public static T1Block createRBlock(T1Block block, int sourceID, int destID, int edcAlg,
+                                     int sequenceNumber, int errInfo)
+                        throws T1Exception {
+
+    // setup PCB-byte for R-Block
+    int pcb = 0xFF & (0x80 | ((sequenceNumber % 2) << 4));
+
+    // add errInfo
+    pcb = 0xFF & (pcb | errInfo);
+
+    block.encode(sourceID, destID, pcb, null, 0, 0, edcAlg);
+    return block;
+  }
+
   /** <tt>createSBlock</tt>
    *
    * creates S-Block according to ISO7816-3
@@ -148,4 +227,39 @@ public class T1BlockFactory {
     return new T1Block(sourceID, destID, pcb, data, edcAlg);
   }
 
+  /** <tt>createSBlock</tt>
+   *
+   * encodes S-Block according to ISO7816-3 into a reusable block without allocating memory
+   *
+   * @param block
+   *        the reusable block the S-Block is encoded into
+   * @param sourceID
+   *        the sourceID of the frame for the NAD-byte (0-7)
+   * @param destID
+   *        the destID of the frame for the NAD-byte (0-7)
+   * @param edcAlg
+   *        the used algorithm for calculation of the EDC byte
+   *        possible values: EDC_LDR, EDC_CRC
+   * @param statusInfo
+   *        indicates the request or response, see <tt>createSBlock</tt> above
+   * @param data
+   *        buffer containing the information field
+   * @param offset
+   *        offset of the information field in data
+   * @param length
+   *        length of the information field
+   * @return the given block
+   * @see   T1Block
+   */
+  public static T1Block createSBlock(T1Block block, int sourceID, int destID, int edcAlg,
+                                     int statusInfo, byte[] data, int offset, int length)
+                        throws T1Exception {
+
+    // setup PCB-byte for S-Block
+    int pcb = 0xFF & (0xC0 | statusInfo);
+
+    block.encode(sourceID, destID, pcb, data, offset, length, edcAlg);
+    return block;
+  }
+
 }
@@ -37,12 +37,12 @@ package opencard.opt.terminal.protocol;
 
 import opencard.core.util.Tracer;
 
-/** <tt>T1Protocol</tt> is a small subset of the T1 block protocol.
+/** <tt>T1Protocol</tt> implements the T1 block protocol.
  *
- *  NOTE: T1Protocol IS NOT IN FINAL STATE!!!!!!!!!!!!!!!
- *
- *  - chaining is not supported
- *  - EDC-byte calculation only with LDR (XORed), CRC is not provided.
+ *  - I-block chaining in both directions, blocks sent are limited to IFSC bytes
+ *  - IFSD announced to the card via S-block (IFS REQUEST), IFSC changed by the card is honoured
+ *  - EDC calculation with LDR (XORed) or CRC16
+ *  - waiting time extension requested by the card multiplies the block waiting time for one block
  *
  *  see     ISO7816_3P9
  *
@@ -88,9 +88,11 @@ public abstract class T1Protocol {
   }
 
   /** <tt>getBlockWaitingTime</tt> returns the currently used block waiting time in milliseconds.
+   *  If the card requested a waiting time extension, the returned value is the block waiting
+   *  time multiplied by the requested factor until the next block has been received.
    */
   public int getBlockWaitingTime() {
-    return blockWaitingTime;
+    return blockWaitingTime * wtxMultiplier;
   }
 
   /** <tt>setBlockWaitingTime</tt> sets the block waiting time in milliseconds.
@@ -111,6 +113,83 @@ public abstract class T1Protocol {
     return remoteAddress;
   }
 
+  /** <tt>getEDCAlgorithm</tt> returns the algorithm used for the EDC field of all blocks.
+   */
+  public int getEDCAlgorithm() {
+    return edcAlgorithm;
+  }
+
+  /** <tt>setEDCAlgorithm</tt> sets the algorithm used for the EDC field of all blocks.
+   *
+   * @param edcAlg
+   *        T1Block.EDC_LDR or T1Block.EDC_CRC as indicated by TC3 in the ATR
+   */
+  public void setEDCAlgorithm(int edcAlg) {
+    if ((edcAlg != T1Block.EDC_LDR) && (edcAlg != T1Block.EDC_CRC))
+      throw new IllegalArgumentException("unknown EDC algorithm " + edcAlg);
+    edcAlgorithm = edcAlg;
+  }
+
+  /** <tt>getIFSC</tt> returns the maximum size of the information field of blocks sent to the card.
+   */
+  public int getIFSC() {
+    return ifsc;
+  }
+
+  /** <tt>setIFSC</tt> sets the maximum size of the information field of blocks sent to the card.
+   *
+   * @param size
+   *        the IFSC as indicated by TA3 in the ATR (1 - 254)
+   */
+  public void setIFSC(int size) {
+    if ((size < 1) || (size > MAX_IFS))
+      throw new IllegalArgumentException("IFSC must be in the range 1 to " + MAX_IFS);
+    ifsc = size;
+  }
+
+  /** <tt>getIFSD</tt> returns the maximum size of the information field of blocks received from the card.
+   */
+  public int getIFSD() {
+    return ifsd;
+  }
+
+  /** <tt>setIFSD</tt> sets the maximum size of the information field of blocks received from the card.
+   *  The new size is announced to the card with the next call to <tt>open</tt> or <tt>negotiateIFSD</tt>.
+   *
+   * @param size
+   *        the IFSD (1 - 254)
+   */
+  public void setIFSD(int size) {
+    if ((size < 1) || (size > MAX_IFS))
+      throw new IllegalArgumentException("IFSD must be in the range 1 to " + MAX_IFS);
+    ifsd = size;
+  }
+
+  /** <tt>negotiateIFSD</tt> announces the IFSD to the card with a S-block (IFS REQUEST).
+   *
+   * @exception T1Exception
+   *            thrown when the card did not confirm the IFSD.
+   */
+  public synchronized void negotiateIFSD() throws T1Exception {
+    T1Block ifsRequest = T1BlockFactory.createSBlock(sBlock,
+                                                     hostAddress,
+                                                     remoteAddress,
+                                                     edcAlgorithm,
+                                                     T1Block.S_IFS_REQUEST,
+                                                     new byte[] { (byte)ifsd }, 0, 1);
+
+    T1Block result = internalTransmit(RETRIES, ifsRequest);
+
+    if ((result == null) ||
+        (result.getBlockType() != T1Block.S_BLOCK) ||
+        (result.getControlBits() != T1Block.S_IFS_RESPONSE) ||
+        (result.getLEN() != 1) ||
+        ((result.getBuffer()[result.getDataOffset()] & 0xFF) != ifsd))
+      throw new T1Exception("IFS response error");
+
+    ctracer.debug("negotiateIFSD", "IFSD set to " + ifsd + " bytes");
+  }
+
   /** <tt>getSendSequenceCounter</tt>
    */
   public int getSendSequenceCounter() {
@@ -204,63 +283,122 @@ public abstract class T1Protocol {
   public synchronized byte[] transmit(int hostAddress, int remoteAddress, byte[] sendData)
     throws T1IOException, T1TimeoutException, T1Exception {
 
-    // bytes to send to the receiver
-    int bytesLeft = sendData.length;
-
-    // length of the current data field to send
-    int dataLen = 0;
+    if (responseBuffer == null)
+      responseBuffer = new byte[MAX_RESPONSE];
 
-    byte[] data = null;
+    int len = transmit(hostAddress, remoteAddress, sendData, 0, sendData.length, responseBuffer, 0);
 
-    T1Block recvBlock = null;
+    // return the application data byte array
+    byte[] response = new byte[len];
+    System.arraycopy(responseBuffer, 0, response, 0, len);
+    return response;
+  }
 
-    while (bytesLeft > 0) {
 
-      boolean chaining;
+  /** <tt>transmit</tt>
+   * sends the data to the terminal and waits for result until timeout is reached.
+   * transmit handles a subset of T1 error-recognition and -recovering.
+   * The command is encoded directly from the caller's buffer and the response is assembled
+   * in the caller's buffer, so no memory is allocated per block.
+   *
+   * @param     hostAddress
+   * @param     remoteAddress
+   *            use another remote-address as previously given by constructor.
+   * @param     sendData
+   *            buffer containing the data for the terminal
+   * @param     sendOffset
+   *            offset of the data in sendData
+   * @param     sendLength
+   *            length of the data
+   * @param     recvBuffer
+   *            buffer receiving the response
+   * @param     recvOffset
+   *            offset in recvBuffer for the response
+   * @return    the length of the response
+   * @exception T1IOException
+   *            thrown when IO error occurs (send- or receivemethods) or the response exceeds recvBuffer
+   * @exception T1TimeoutException
+   *            thrown when timeout limit reached for transmitting data
+   */
+  public synchronized int transmit(int hostAddress, int remoteAddress,
+                                   byte[] sendData, int sendOffset, int sendLength,
+                                   byte[] recvBuffer, int recvOffset)
+    throws T1IOException, T1TimeoutException, T1Exception {
 
-      // copy subpackage into new buffer - make decision about chaining
-      if (bytesLeft > ifs) {
-        //dataLen = ifs;
-        //chaining = true;
-        throw new T1IOException("block too long - chaining is not supported!");
-      } else {
-        dataLen = bytesLeft;
-        chaining = false;
-      }
+    T1Block recvBlock = null;
 
-      data = new byte[dataLen];
-      System.arraycopy(sendData, sendData.length - bytesLeft, data, 0, dataLen);
+    int offset = sendOffset;
+    int end = sendOffset + sendLength;
 
-      // subtract size of sent data
-      bytesLeft -= dataLen;
+    // send the data in I-blocks of at most IFSC bytes, all but the last with the more-data bit set
+    do {
+      int dataLen = Math.min(end - offset, ifsc);
+      boolean chaining = (offset + dataLen < end);
 
       // pack sendData into T1 I-block
-      T1Block sendBlock = T1BlockFactory.createIBlock(hostAddress,
+      T1Block sendBlock = T1BlockFactory.createIBlock(iBlock,
+                                                      hostAddress,
                                                       remoteAddress,
-                                                      T1Block.EDC_LDR,          // use XOR-algorithm
+                                                      edcAlgorithm,
                                                       getSendSequenceCounter(),
                                                       chaining, // chaining used?
-                                                      data);
+                                                      sendData, offset, dataLen);
+
+      offset += dataLen;
 
       // set current I-Block
-      blockSequence[getSendSequenceCounter() % 2] = sendBlock;
+      lastIBlock = sendBlock;
 
       // exchange the data
-      recvBlock = internalTransmit(5, sendBlock);
+      recvBlock = internalTransmit(RETRIES, sendBlock);
 
-      if (sendBlock.getBlockType() == T1Block.I_BLOCK)
-        incSendSequenceCounter();
+      incSendSequenceCounter();
 
+      // a chained I-block must be acknowledged with a R-block requesting the next block
+      if (chaining && ((recvBlock == null) || (recvBlock.getBlockType() != T1Block.R_BLOCK)))
+        throw new T1IOException("chained I-block not acknowledged by receiver");
 
+    } while (offset < end);
 
-    } // while (bytesLeft > 0)
+    if ((recvBlock == null) || (recvBlock.getBlockType() != T1Block.I_BLOCK))
+      throw new T1IOException("no I-block received as response");
 
-    // return the application data byte array
-    return recvBlock.getDATA();
+    int pos = recvOffset;
+
+    // receive chained response, each I-block with the more-data bit set is acknowledged with a R-block
+    while (true) {
+      if (recvBlock.getLEN() > recvBuffer.length - pos)
+        throw new T1IOException("response exceeds receive buffer");
+
+      pos += recvBlock.copyDataTo(recvBuffer, pos);
+
+      if (!isChained(recvBlock))
+        break;
+
+      T1Block ack = T1BlockFactory.createRBlock(rBlock,
+                                                hostAddress,
+                                                remoteAddress,
+                                                edcAlgorithm,
+                                                getRecvSequenceCounter(),
+                                                T1Block.ERROR_NONE);
+
+      recvBlock = internalTransmit(RETRIES, ack);
+
+      if ((recvBlock == null) || (recvBlock.getBlockType() != T1Block.I_BLOCK))
+        throw new T1IOException("chained response interrupted");
+    }
+
+    return pos - recvOffset;
   }
 
 
 
+  /** <tt>isChained</tt> returns true if the more-data bit is set in the given I-block
+   */
+  private static boolean isChained(T1Block block) {
+    return (block.getPCB() & 0x20) == 0x20;
+  }
+
   protected boolean isBlockComplete(byte[] rawBytes, int len) {
     boolean complete = false;
 
@@ -268,7 +406,7 @@ public abstract class T1Protocol {
       if ((len >= 4) && (rawBytes.length >= 4))
       {
         int hdrlen = rawBytes[2]&0xFF;
-        if (hdrlen + 4 == len) {
+        if (hdrlen + 3 + T1Block.getEDCLength(edcAlgorithm) == len) {
           complete = true;
         }
       }
@@ -285,12 +423,51 @@ public abstract class T1Protocol {
 
   private int blockWaitingTime = 0;
 
+  /** factor for the block waiting time requested by the card with S-block (WTX REQUEST) */
+  private int wtxMultiplier = 1;
+
   private int sBlockCounter = 0;
   private int rBlockCounter = 0;
 
-  private int ifs = 32;
+  /** number of attempts to exchange a block */
+  private static final int RETRIES = 5;
+
+  /** maximum number of consecutive WTX or IFS requests accepted from the card for a single block */
+  private static final int MAX_S_REQUESTS = 256;
+
+  /** maximum size of the information field */
+  private static final int MAX_IFS = 254;
+
+  /** information field size for the card, default according to ISO7816-3 */
+  private int ifsc = 32;
+
+  /** information field size for the interface device */
+  private int ifsd = MAX_IFS;
+
+  private int edcAlgorithm = T1Block.EDC_LDR;
+
+  /** maximum length of a response APDU with extended length */
+  private static final int MAX_RESPONSE = 65538;
 
-  private T1Block[] blockSequence = new T1Block[2];
+  /** reusable blocks for I-, R- and S-blocks sent and for blocks received by subclasses */
+  private T1Block iBlock = new T1Block(T1Block.EDC_LDR);
+  private T1Block rBlock = new T1Block(T1Block.EDC_LDR);
+  private T1Block sBlock = new T1Block(T1Block.EDC_LDR);
+  private T1Block receiveBlock = new T1Block(T1Block.EDC_LDR);
+
+  /** last I-block sent, repeated if requested by the receiver */
+  private T1Block lastIBlock = null;
+
+  /** buffer to assemble responses returned as byte array, allocated on first use */
+  private byte[] responseBuffer = null;
+
+  /** <tt>getReceiveBlock</tt> returns a block owned by the protocol that implementations of
+   *  <tt>exchangeData</tt> can decode received blocks into with <tt>T1Block.decode</tt>,
+   *  instead of allocating a new block for each response.
+   */
+  protected T1Block getReceiveBlock() {
+    return receiveBlock;
+  }
 
   /** <tt>initProtocol</tt>
    * initialize protocol.
@@ -305,51 +482,32 @@ public abstract class T1Protocol {
    */
   private void initProtocol() throws T1Exception {
 
-    // create S-block with RESYNCH REQUEST
-    T1Block resyncRequest = T1BlockFactory.createSBlock(hostAddress,
-                                                        remoteAddress,
-                                                        T1Block.EDC_LDR,
-                                                        T1Block.S_RESYNCH_REQUEST,
-                                                        null);
-
-    // create S-block with INFORMATION FIELD SIZE REQUEST (limited to 0x7F bytes per block)
-    T1Block ifsRequest = T1BlockFactory.createSBlock(hostAddress,
-                                                     remoteAddress,
-                                                     T1Block.EDC_LDR,
-                                                     T1Block.S_IFS_REQUEST,
-                                                     new byte[] { (byte)ifs });
-
     // three attempts possible
     for (int i=0; i<3; i++) {
+      // create S-block with RESYNCH REQUEST
+      T1Block resyncRequest = T1BlockFactory.createSBlock(sBlock,
+                                                          hostAddress,
+                                                          remoteAddress,
+                                                          edcAlgorithm,
+                                                          T1Block.S_RESYNCH_REQUEST,
+                                                          null, 0, 0);
+
       // transmit S-block - answer must be S-block with RESYNCH_RESPONSE
       T1Block result = null;
       try {
         ctracer.debug("initProtocol", "Send S-BLOCK to reader for init-request.");
-        result = internalTransmit(5, resyncRequest);
+        result = internalTransmit(RETRIES, resyncRequest);
 
         if (result.getBlockType() == T1Block.S_BLOCK)
           if (result.getControlBits() == T1Block.S_RESYNCH_RESPONSE) {
             sBlockCounter = 0;
             rBlockCounter = 0;
+            lastIBlock = null;
 
-            // send InformationFieldSize-request to terminal (new field size 0x7F bytes)
-            result = internalTransmit(5, ifsRequest);
-
-            if (result.getBlockType() == T1Block.S_BLOCK)
-              if (result.getControlBits() == T1Block.S_IFS_RESPONSE) {
-                if (result.getLEN() == 1) {
-
-                  byte b = result.getDATA()[0];
-                  ifs = (int)(b & 0x7F);
-                  if ((b & 0x80) == 0x80)
-                    ifs += 0x80;
+            // announce the information field size of the interface device
+            negotiateIFSD();
 
-                  ctracer.debug("initProtocol", "IFS set to " + ifs + " + bytes length");
-
-                  return;
-                } else
-                  ctracer.error("initProtocol", "IFS response error");
-              }
+            return;
           }
       } catch(Exception e) {
         ctracer.critical("initProtocol", "Reader initialization failed.");
@@ -361,7 +519,8 @@ public abstract class T1Protocol {
 
   /** <tt>internalTransmit</tt>
    *
-   * exchanges blocks with T1 protocol handling.
+   * exchanges blocks with T1 protocol handling. WTX and IFS requests from the card are answered
+   * in a loop, at most MAX_S_REQUESTS times in a row.
    *
    * @param     retryCount
    *            number of retries left for transmitting data
@@ -375,81 +534,132 @@ public abstract class T1Protocol {
   protected T1Block internalTransmit(int retryCount, T1Block dataBlock) throws T1Exception {
     T1Block recvBlock = null;
 
-    // exchange data with receiver
-
-    // for I-blocks increase the send-sequence-counter
-//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
     if (retryCount == 0)
       throw new T1Exception("to many retries - transfer aborted");
 
+    int sRequests = 0;
 
-    try {
+    while (true) {
+      try {
 
-      // exchange data with terminal layer
-      recvBlock = exchangeData(dataBlock);
+        // exchange data with terminal layer
+        try {
+          recvBlock = exchangeData(dataBlock);
+        } finally {
+          // a waiting time extension is only valid for the block following the WTX response
+          wtxMultiplier = 1;
+        }
 
-      if (recvBlock == null)
-        throw new T1BlockEDCErrorException();
+        if (recvBlock == null)
+          throw new T1BlockEDCErrorException();
 
-      // check the type of the recvBlock
-      switch(recvBlock.getBlockType()) {
+        // check the type of the recvBlock
+        switch(recvBlock.getBlockType()) {
 
-        // I-block returned - data exchange was successful
-        case T1Block.I_BLOCK:
+          // I-block returned - data exchange was successful
+          case T1Block.I_BLOCK:
 
-          // increase the receiver sequence count on every correctly received I-block
-          incRecvSequenceCounter();
+            // increase the receiver sequence count on every correctly received I-block
+            incRecvSequenceCounter();
 
-          // return the received I-block
-          return recvBlock;
+            // return the received I-block
+            return recvBlock;
 
-        // receiver detected error
-        case T1Block.R_BLOCK:
-          // resend the last block
-          recvBlock = internalTransmit(retryCount - 1, blockSequence[recvBlock.getRequestedSequenceNumber() % 2]);
-          break;
+          // receiver acknowledged chained block or detected error
+          case T1Block.R_BLOCK:
+            if (lastIBlock != null) {
+              int ns = (lastIBlock.getPCB() >> 6) & 0x01;
+              int nr = recvBlock.getRequestedSequenceNumber() & 0x01;
 
-        case T1Block.S_BLOCK:
+              // receiver requests the last I-block again
+              if (nr == ns)
+                return internalTransmit(retryCount - 1, lastIBlock);
 
-          // WTX request from ICC
-          if (recvBlock.getControlBits() == T1Block.S_WTX_REQUEST) {
-            // create WTX-responseblock
-            T1Block wtxResponse = T1BlockFactory.createSBlock(dataBlock.getSourceAddress(),
-                                                              dataBlock.getDestinationAddress(),
-                                                              T1Block.EDC_LDR,
-                                                              T1Block.S_WTX_RESPONSE,
-                                                              recvBlock.getDATA());
-            return internalTransmit(retryCount - 1, wtxResponse);
-          }
+              // receiver requests the next block of the chain
+              if (isChained(lastIBlock))
+                return recvBlock;
+            }
+
+            // resend the last block
+            recvBlock = internalTransmit(retryCount - 1, dataBlock);
+            break;
+
+          case T1Block.S_BLOCK:
+
+            if ((recvBlock.getControlBits() == T1Block.S_WTX_REQUEST) ||
+                (recvBlock.getControlBits() == T1Block.S_IFS_REQUEST)) {
+              if (++sRequests > MAX_S_REQUESTS)
+                throw new T1Exception("too many WTX or IFS requests - transfer aborted");
+            }
+
+            // WTX request from ICC
+            if (recvBlock.getControlBits() == T1Block.S_WTX_REQUEST) {
+              if (recvBlock.getLEN() == 1) {
+                wtxMultiplier = Math.max(1, recvBlock.getBuffer()[recvBlock.getDataOffset()] & 0xFF);
+                ctracer.debug("internalTransmit", "Waiting time extension by factor " + wtxMultiplier);
+              }
 
-          // check for
-          // - last sent block == S_BLOCK?
-          // - received S_Block == RESYNCH RESPONSE?
-          if (dataBlock.getBlockType() == T1Block.S_BLOCK)
-            if (dataBlock.getControlBits() == T1Block.S_RESYNCH_REQUEST)
-              if (recvBlock.getControlBits() == T1Block.S_RESYNCH_RESPONSE)
+              // create WTX-responseblock and continue with the block returned for it
+              dataBlock = T1BlockFactory.createSBlock(sBlock,
+                                                      dataBlock.getSourceAddress(),
+                                                      dataBlock.getDestinationAddress(),
+                                                      edcAlgorithm,
+                                                      T1Block.S_WTX_RESPONSE,
+                                                      recvBlock.getBuffer(),
+                                                      recvBlock.getDataOffset(),
+                                                      recvBlock.getLEN());
+              continue;
+            }
+
+            // IFS request from ICC changes the information field size for blocks sent to the card
+            if (recvBlock.getControlBits() == T1Block.S_IFS_REQUEST) {
+              if (recvBlock.getLEN() == 1) {
+                int size = recvBlock.getBuffer()[recvBlock.getDataOffset()] & 0xFF;
+                if ((size >= 1) && (size <= MAX_IFS)) {
+                  ifsc = size;
+                  ctracer.debug("internalTransmit", "IFSC set to " + ifsc + " bytes");
+                }
+              }
+              dataBlock = T1BlockFactory.createSBlock(sBlock,
+                                                      dataBlock.getSourceAddress(),
+                                                      dataBlock.getDestinationAddress(),
+                                                      edcAlgorithm,
+                                                      T1Block.S_IFS_RESPONSE,
+                                                      recvBlock.getBuffer(),
+                                                      recvBlock.getDataOffset(),
+                                                      recvBlock.getLEN());
+              continue;
+            }
+
+            // check for
+            // - last sent block == S_BLOCK?
+            // - received S_Block == response to the request?
+            if (dataBlock.getBlockType() == T1Block.S_BLOCK)
+              if (recvBlock.getControlBits() == (dataBlock.getControlBits() | 0x20))
                 return recvBlock;
 
+        }
+      } catch(T1UnknownBlockException ube) {
+      } catch(T1BlockEDCErrorException beee) {
+        T1Block resendRequest = T1BlockFactory.createRBlock(rBlock,
+                                                            hostAddress,
+                                                            remoteAddress,
+                                                            edcAlgorithm,
+                                                            getRecvSequenceCounter(),
+                                                            T1Block.ERROR_EDC);
+        recvBlock = internalTransmit(retryCount - 1, resendRequest);
       }
-    } catch(T1UnknownBlockException ube) {
-    } catch(T1BlockEDCErrorException beee) {
-      T1Block resendRequest = T1BlockFactory.createRBlock(hostAddress,
-                                                          remoteAddress,
-                                                          T1Block.EDC_LDR,
-                                                          getRecvSequenceCounter(),
-                                                          T1Block.ERROR_EDC);
-      incSendSequenceCounter();
-      blockSequence[getSendSequenceCounter() % 2] = resendRequest;
-      recvBlock = internalTransmit(retryCount - 1, resendRequest);
-    }
 
-    // no usable result reached
-    return recvBlock;
+      // no usable result reached
+      return recvBlock;
+    }
   }
 
   /** <tt>exchangeData</tt>
    *
-   * responsible for the real data-transfer.
+   * responsible for the real data-transfer. The send block is reused by the protocol after the
+   * call, so it must not be returned as received block. Implementations may decode the received
+   * block into the block returned by <tt>getReceiveBlock</tt> to avoid allocating memory.
    *
    * @param     sendBlock
    *            the T1-block with the send-data inside.